@@ -0,0 +1,30 @@
+package com.signalfx.common.proto;
+
+import com.google.protobuf.MessageLite;
+
+/**
+ * <p>Helpers for code that has to run against classes generated for either the full or the lite
+ * protobuf runtime.</p>
+ *
+ * <p>Lite builders inherit {@code build()} from {@code GeneratedMessageLite.Builder} instead of
+ * overriding it, so a call compiled against the full-runtime classes (returning the concrete
+ * message type) fails to link against the lite ones.  Building through the
+ * {@link MessageLite.Builder} interface links against both.</p>
+ */
+public final class ProtocolBufferBuilders {
+
+    private ProtocolBufferBuilders() {
+    }
+
+    /**
+     * Builds a message through the {@link MessageLite.Builder} interface.
+     *
+     * @param builder    Builder of the message
+     * @param <T>        Type of the built message
+     * @return The built message
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends MessageLite> T build(MessageLite.Builder builder) {
+        return (T) builder.build();
+    }
+}
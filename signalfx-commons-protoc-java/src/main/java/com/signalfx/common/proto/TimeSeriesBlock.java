@@ -0,0 +1,438 @@
+package com.signalfx.common.proto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.Datum;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.PointValue;
+
+/**
+ * <p>A compact, immutable encoding of the points of a single timeseries.  Timestamps are stored as
+ * delta-of-deltas and values as the XOR against the previous value, the same scheme time-series
+ * databases use for in-memory blocks.  Regularly reported points typically take a couple of bytes
+ * each instead of the ~100 bytes held by a {@link PointValue} instance.</p>
+ *
+ * <p>Integer and double values can be mixed within a block.  String values are not supported.
+ * Points without a timestamp are decoded with a timestamp of 0.</p>
+ */
+public final class TimeSeriesBlock {
+
+    public static final int TYPE_NONE = 0;
+    public static final int TYPE_INT = 1;
+    public static final int TYPE_DOUBLE = 2;
+
+    private static final int TYPE_BITS = 2;
+    private static final int LEADING_ZEROS_BITS = 6;
+    private static final int MEANINGFUL_BITS = 6;
+
+    private final long[] words;
+    private final int bitCount;
+    private final int size;
+
+    private TimeSeriesBlock(long[] words, int bitCount, int size) {
+        this.words = words;
+        this.bitCount = bitCount;
+        this.size = size;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Restores a block previously serialized with {@link #toByteArray()}.
+     *
+     * @param bytes    Serialized block
+     * @return The decoded block
+     */
+    public static TimeSeriesBlock parseFrom(byte[] bytes) {
+        if (bytes.length < 8) {
+            throw new IllegalArgumentException("truncated block");
+        }
+        int size = readInt(bytes, 0);
+        int bitCount = readInt(bytes, 4);
+        int byteCount = (bitCount + 7) >>> 3;
+        if (size < 0 || bitCount < 0 || bytes.length < 8 + byteCount) {
+            throw new IllegalArgumentException("truncated block");
+        }
+        long[] words = new long[(bitCount + 63) >>> 6];
+        for (int i = 0; i < byteCount; i++) {
+            words[i >>> 3] |= (bytes[8 + i] & 0xFFL) << (56 - ((i & 7) << 3));
+        }
+        return new TimeSeriesBlock(words, bitCount, size);
+    }
+
+    /**
+     * @return Number of points in this block
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return Number of bytes this block occupies once serialized
+     */
+    public int getEncodedSize() {
+        return 8 + ((bitCount + 7) >>> 3);
+    }
+
+    /**
+     * Serializes this block so it can be spilled to disk or sent elsewhere.
+     *
+     * @return Encoded block, readable with {@link #parseFrom(byte[])}
+     */
+    public byte[] toByteArray() {
+        int byteCount = (bitCount + 7) >>> 3;
+        byte[] bytes = new byte[8 + byteCount];
+        writeInt(bytes, 0, size);
+        writeInt(bytes, 4, bitCount);
+        for (int i = 0; i < byteCount; i++) {
+            bytes[8 + i] = (byte) (words[i >>> 3] >>> (56 - ((i & 7) << 3)));
+        }
+        return bytes;
+    }
+
+    public Reader newReader() {
+        return new Reader(this);
+    }
+
+    /**
+     * Decodes every point of this block.
+     *
+     * @return Points in the order they were added
+     */
+    public List<PointValue> toPointValues() {
+        List<PointValue> points = new ArrayList<PointValue>(size);
+        Reader reader = newReader();
+        while (reader.next()) {
+            points.add(reader.toPointValue());
+        }
+        return points;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static boolean fits(long value, int bits) {
+        long bound = 1L << (bits - 1);
+        return value >= -bound && value < bound;
+    }
+
+    /**
+     * Appends points to a block.  A builder can keep being appended to after {@link #build()} is
+     * called; each built block is a snapshot of the points added so far.
+     */
+    public static final class Builder {
+        private long[] words = new long[4];
+        private int bitCount;
+        private int size;
+
+        private long previousTimestamp;
+        private long previousDelta;
+        private long previousBits;
+        private int previousType;
+        private int previousLeadingZeros = -1;
+        private int previousTrailingZeros;
+
+        private Builder() {
+        }
+
+        public Builder add(long timestamp, long value) {
+            append(timestamp, TYPE_INT, value);
+            return this;
+        }
+
+        public Builder add(long timestamp, double value) {
+            append(timestamp, TYPE_DOUBLE, Double.doubleToRawLongBits(value));
+            return this;
+        }
+
+        /**
+         * Adds a point that has no value.
+         *
+         * @param timestamp    Timestamp of the point
+         * @return this
+         */
+        public Builder addEmpty(long timestamp) {
+            append(timestamp, TYPE_NONE, 0);
+            return this;
+        }
+
+        public Builder add(PointValue pointValue) {
+            if (!pointValue.hasValue()) {
+                return addEmpty(pointValue.getTimestamp());
+            }
+            Datum datum = pointValue.getValue();
+            if (datum.hasIntValue()) {
+                return add(pointValue.getTimestamp(), datum.getIntValue());
+            }
+            if (datum.hasDoubleValue()) {
+                return add(pointValue.getTimestamp(), datum.getDoubleValue());
+            }
+            if (datum.hasStrValue()) {
+                throw new IllegalArgumentException("String values cannot be block encoded");
+            }
+            return addEmpty(pointValue.getTimestamp());
+        }
+
+        public Builder addAll(Iterable<PointValue> pointValues) {
+            for (PointValue pointValue : pointValues) {
+                add(pointValue);
+            }
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public TimeSeriesBlock build() {
+            return new TimeSeriesBlock(Arrays.copyOf(words, (bitCount + 63) >>> 6), bitCount,
+                    size);
+        }
+
+        private void append(long timestamp, int type, long bits) {
+            if (size == 0) {
+                writeBits(timestamp, 64);
+                writeBits(type, TYPE_BITS);
+                if (type != TYPE_NONE) {
+                    writeBits(bits, 64);
+                }
+            } else {
+                appendTimestamp(timestamp);
+                if (type == previousType) {
+                    writeBits(0, 1);
+                } else {
+                    writeBits(1, 1);
+                    writeBits(type, TYPE_BITS);
+                }
+                if (type != TYPE_NONE) {
+                    appendValue(bits);
+                }
+            }
+            previousTimestamp = timestamp;
+            previousType = type;
+            if (type != TYPE_NONE) {
+                previousBits = bits;
+            }
+            size++;
+        }
+
+        private void appendTimestamp(long timestamp) {
+            long delta = timestamp - previousTimestamp;
+            long deltaOfDelta = delta - previousDelta;
+            previousDelta = delta;
+
+            if (deltaOfDelta == 0) {
+                writeBits(0, 1);
+            } else if (fits(deltaOfDelta, 7)) {
+                writeBits(0x2, 2);
+                writeBits(deltaOfDelta, 7);
+            } else if (fits(deltaOfDelta, 9)) {
+                writeBits(0x6, 3);
+                writeBits(deltaOfDelta, 9);
+            } else if (fits(deltaOfDelta, 12)) {
+                writeBits(0xE, 4);
+                writeBits(deltaOfDelta, 12);
+            } else if (fits(deltaOfDelta, 32)) {
+                writeBits(0x1E, 5);
+                writeBits(deltaOfDelta, 32);
+            } else {
+                writeBits(0x1F, 5);
+                writeBits(deltaOfDelta, 64);
+            }
+        }
+
+        private void appendValue(long bits) {
+            long xor = bits ^ previousBits;
+            if (xor == 0) {
+                writeBits(0, 1);
+                return;
+            }
+            int leadingZeros = Long.numberOfLeadingZeros(xor);
+            int trailingZeros = Long.numberOfTrailingZeros(xor);
+            if (previousLeadingZeros >= 0 && leadingZeros >= previousLeadingZeros
+                    && trailingZeros >= previousTrailingZeros) {
+                // Meaningful bits fit in the previous window; reuse it.
+                writeBits(0x2, 2);
+                writeBits(xor >>> previousTrailingZeros,
+                        64 - previousLeadingZeros - previousTrailingZeros);
+            } else {
+                int meaningful = 64 - leadingZeros - trailingZeros;
+                writeBits(0x3, 2);
+                writeBits(leadingZeros, LEADING_ZEROS_BITS);
+                writeBits(meaningful - 1, MEANINGFUL_BITS);
+                writeBits(xor >>> trailingZeros, meaningful);
+                previousLeadingZeros = leadingZeros;
+                previousTrailingZeros = trailingZeros;
+            }
+        }
+
+        private void writeBits(long value, int count) {
+            if (count < 64) {
+                value &= (1L << count) - 1;
+            }
+            int index = bitCount >>> 6;
+            if (index + 1 >= words.length) {
+                words = Arrays.copyOf(words, words.length * 2);
+            }
+            int free = 64 - (bitCount & 63);
+            if (count <= free) {
+                words[index] |= value << (free - count);
+            } else {
+                int remaining = count - free;
+                words[index] |= value >>> remaining;
+                words[index + 1] |= value << (64 - remaining);
+            }
+            bitCount += count;
+        }
+    }
+
+    /**
+     * Forward-only cursor over the points of a block.  Call {@link #next()} before reading each
+     * point.
+     */
+    public static final class Reader {
+        private final long[] words;
+        private final int size;
+        private int position;
+        private int index;
+
+        private long timestamp;
+        private long delta;
+        private long bits;
+        private int type;
+        private int leadingZeros;
+        private int trailingZeros;
+
+        private Reader(TimeSeriesBlock block) {
+            this.words = block.words;
+            this.size = block.size;
+        }
+
+        /**
+         * Advances to the next point.
+         *
+         * @return false once every point has been read
+         */
+        public boolean next() {
+            if (index >= size) {
+                return false;
+            }
+            if (index == 0) {
+                timestamp = readBits(64);
+                type = (int) readBits(TYPE_BITS);
+                if (type != TYPE_NONE) {
+                    bits = readBits(64);
+                }
+            } else {
+                readTimestamp();
+                if (readBits(1) != 0) {
+                    type = (int) readBits(TYPE_BITS);
+                }
+                if (type != TYPE_NONE) {
+                    readValue();
+                }
+            }
+            index++;
+            return true;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return One of {@link TimeSeriesBlock#TYPE_NONE}, {@link TimeSeriesBlock#TYPE_INT} or
+         *         {@link TimeSeriesBlock#TYPE_DOUBLE}
+         */
+        public int getType() {
+            return type;
+        }
+
+        public long getIntValue() {
+            return bits;
+        }
+
+        public double getDoubleValue() {
+            return Double.longBitsToDouble(bits);
+        }
+
+        public PointValue toPointValue() {
+            PointValue.Builder builder = PointValue.newBuilder().setTimestamp(timestamp);
+            switch (type) {
+            case TYPE_INT:
+                builder.setValue(Datum.newBuilder().setIntValue(bits));
+                break;
+            case TYPE_DOUBLE:
+                builder.setValue(Datum.newBuilder().setDoubleValue(getDoubleValue()));
+                break;
+            default:
+            }
+            return ProtocolBufferBuilders.build(builder);
+        }
+
+        private void readTimestamp() {
+            long deltaOfDelta;
+            if (readBits(1) == 0) {
+                deltaOfDelta = 0;
+            } else if (readBits(1) == 0) {
+                deltaOfDelta = readSigned(7);
+            } else if (readBits(1) == 0) {
+                deltaOfDelta = readSigned(9);
+            } else if (readBits(1) == 0) {
+                deltaOfDelta = readSigned(12);
+            } else if (readBits(1) == 0) {
+                deltaOfDelta = readSigned(32);
+            } else {
+                deltaOfDelta = readBits(64);
+            }
+            delta += deltaOfDelta;
+            timestamp += delta;
+        }
+
+        private void readValue() {
+            if (readBits(1) == 0) {
+                return;
+            }
+            if (readBits(1) != 0) {
+                leadingZeros = (int) readBits(LEADING_ZEROS_BITS);
+                int meaningful = (int) readBits(MEANINGFUL_BITS) + 1;
+                trailingZeros = 64 - leadingZeros - meaningful;
+            }
+            int meaningful = 64 - leadingZeros - trailingZeros;
+            bits ^= readBits(meaningful) << trailingZeros;
+        }
+
+        private long readSigned(int count) {
+            long value = readBits(count);
+            return (value << (64 - count)) >> (64 - count);
+        }
+
+        private long readBits(int count) {
+            int wordIndex = position >>> 6;
+            int used = position & 63;
+            int available = 64 - used;
+            long value = (words[wordIndex] << used) >>> (64 - count);
+            if (count > available) {
+                value |= words[wordIndex + 1] >>> (64 - (count - available));
+            }
+            position += count;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.signalfx.common.proto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.Datum;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.PointValue;
+
+public class TimeSeriesBlockTest {
+
+    @Test
+    public void testRoundTrip() {
+        List<PointValue> points = new ArrayList<PointValue>();
+        Random random = new Random(42);
+        long timestamp = 1500000000000L;
+        for (int i = 0; i < 1000; i++) {
+            timestamp += 10000 + random.nextInt(50) - 25;
+            PointValue.Builder builder = PointValue.newBuilder().setTimestamp(timestamp);
+            switch (i % 7) {
+            case 0:
+                builder.setValue(Datum.newBuilder().setIntValue(random.nextLong()));
+                break;
+            case 1:
+                break;
+            case 2:
+                builder.setValue(Datum.newBuilder().setDoubleValue(Double.NaN));
+                break;
+            default:
+                builder.setValue(Datum.newBuilder().setDoubleValue(random.nextGaussian() * 100));
+            }
+            points.add(builder.build());
+        }
+        points.add(PointValue.newBuilder().setTimestamp(Long.MIN_VALUE)
+                .setValue(Datum.newBuilder().setIntValue(Long.MAX_VALUE)).build());
+        points.add(PointValue.newBuilder().setTimestamp(Long.MAX_VALUE)
+                .setValue(Datum.newBuilder().setIntValue(Long.MIN_VALUE)).build());
+
+        TimeSeriesBlock block = TimeSeriesBlock.newBuilder().addAll(points).build();
+        assertEquals(points.size(), block.size());
+        assertEquals(points, block.toPointValues());
+        assertEquals(points, TimeSeriesBlock.parseFrom(block.toByteArray()).toPointValues());
+    }
+
+    @Test
+    public void testRegularSeriesIsCompact() {
+        TimeSeriesBlock.Builder builder = TimeSeriesBlock.newBuilder();
+        long serializedSize = 0;
+        for (int i = 0; i < 1000; i++) {
+            long timestamp = 1500000000000L + i * 10000L;
+            builder.add(timestamp, 1000L + i);
+            serializedSize += PointValue.newBuilder().setTimestamp(timestamp)
+                    .setValue(Datum.newBuilder().setIntValue(1000L + i)).build()
+                    .getSerializedSize();
+        }
+        TimeSeriesBlock block = builder.build();
+        assertTrue(block.getEncodedSize() * 4 < serializedSize);
+
+        TimeSeriesBlock.Reader reader = block.newReader();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(reader.next());
+            assertEquals(TimeSeriesBlock.TYPE_INT, reader.getType());
+            assertEquals(1500000000000L + i * 10000L, reader.getTimestamp());
+            assertEquals(1000L + i, reader.getIntValue());
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void testBuilderSnapshots() {
+        TimeSeriesBlock.Builder builder = TimeSeriesBlock.newBuilder().add(1000L, 1.5);
+        TimeSeriesBlock first = builder.build();
+        builder.add(2000L, 2.5);
+        assertEquals(1, first.size());
+        assertEquals(2, builder.build().size());
+        assertEquals(1.5, first.toPointValues().get(0).getValue().getDoubleValue(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStringValuesRejected() {
+        TimeSeriesBlock.newBuilder().add(PointValue.newBuilder().setTimestamp(1)
+                .setValue(Datum.newBuilder().setStrValue("value")).build());
+    }
+}
@@ -9,6 +9,7 @@ import org.apache.http.HttpEntity;
 import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.entity.ByteArrayEntity;
 
+import com.signalfx.common.proto.ProtocolBufferBuilders;
 import com.signalfx.endpoint.SignalFxReceiverEndpoint;
 import com.signalfx.metrics.SignalFxMetricsException;
 import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
@@ -40,8 +41,10 @@ public class HttpDataPointProtobufReceiverConnectionV2
 
     @Override
     protected HttpEntity getEntityForVersion(List<SignalFxProtocolBuffers.DataPoint> dataPoints) {
-        byte[] bodyBytes = SignalFxProtocolBuffers.DataPointUploadMessage.newBuilder()
-                .addAllDatapoints(dataPoints).build().toByteArray();
+        SignalFxProtocolBuffers.DataPointUploadMessage message = ProtocolBufferBuilders.build(
+                SignalFxProtocolBuffers.DataPointUploadMessage.newBuilder()
+                        .addAllDatapoints(dataPoints));
+        byte[] bodyBytes = message.toByteArray();
         return new ByteArrayEntity(bodyBytes, PROTO_TYPE);
     }
 
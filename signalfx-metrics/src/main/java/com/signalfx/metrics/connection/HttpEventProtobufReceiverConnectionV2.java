@@ -6,6 +6,7 @@ import org.apache.http.HttpEntity;
 import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.entity.ByteArrayEntity;
 
+import com.signalfx.common.proto.ProtocolBufferBuilders;
 import com.signalfx.endpoint.SignalFxReceiverEndpoint;
 import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
 
@@ -30,8 +31,9 @@ public class HttpEventProtobufReceiverConnectionV2
 
     @Override
     protected HttpEntity getEntityForVersion(List<SignalFxProtocolBuffers.Event> events) {
-        byte[] bodyBytes = SignalFxProtocolBuffers.EventUploadMessage.newBuilder()
-                .addAllEvents(events).build().toByteArray();
+        SignalFxProtocolBuffers.EventUploadMessage message = ProtocolBufferBuilders.build(
+                SignalFxProtocolBuffers.EventUploadMessage.newBuilder().addAllEvents(events));
+        byte[] bodyBytes = message.toByteArray();
         return new ByteArrayEntity(bodyBytes, PROTO_TYPE);
     }
 }
@@ -0,0 +1,167 @@
+package com.signalfx.metrics.connection;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.google.protobuf.CodedOutputStream;
+import com.signalfx.metrics.SignalFxMetricsException;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+/**
+ * <p>Datapoint receiver that hands datapoints to a host-local uploader through a memory-mapped
+ * ring file instead of the network.  Each datapoint becomes one record in its own slot; a
+ * {@link MappedRingReader} in another process tails the ring and does the sends.</p>
+ *
+ * <p>Writing threads claim slots with a compare-and-set on the write sequence, so each slot has
+ * exactly one writer and no locks are taken.  When the reader falls a full ring behind, the
+ * remaining datapoints of the call are dropped and a {@link SignalFxMetricsException} is thrown.
+ * </p>
+ *
+ * <p>Use one ring file per process.  Reopening the file of a process that crashed resumes after
+ * the last record it published.  Backfills are not supported.</p>
+ */
+public class MappedRingDataPointReceiver implements DataPointReceiver, Closeable {
+
+    public static final int DEFAULT_SLOT_COUNT = 65536;
+    public static final int DEFAULT_SLOT_SIZE = 512;
+
+    private final MappedRingFile ring;
+    private final AtomicLong nextSequence;
+    private final ThreadLocal<byte[]> scratch;
+
+    public MappedRingDataPointReceiver(File file) throws IOException {
+        this(file, DEFAULT_SLOT_COUNT, DEFAULT_SLOT_SIZE);
+    }
+
+    /**
+     * @param file         Ring file, created if missing
+     * @param slotCount    Number of slots, a power of two; ignored if the ring already exists
+     * @param slotSize     Bytes per slot including the 16 byte slot header; ignored if the ring
+     *                     already exists
+     * @throws IOException If the ring cannot be created or mapped
+     */
+    public MappedRingDataPointReceiver(File file, int slotCount, int slotSize) throws IOException {
+        this.ring = MappedRingFile.openOrCreate(file, slotCount, slotSize);
+        this.nextSequence = new AtomicLong(recoverNextSequence());
+        final int maxPayloadSize = ring.maxPayloadSize();
+        this.scratch = new ThreadLocal<byte[]>() {
+            @Override
+            protected byte[] initialValue() {
+                return new byte[maxPayloadSize];
+            }
+        };
+    }
+
+    private long recoverNextSequence() {
+        long next = ring.readerCursor();
+        for (int i = 0; i < ring.slotCount; i++) {
+            next = Math.max(next, ring.buffer.getLong(ring.slotOffset(i)));
+        }
+        return next;
+    }
+
+    @Override
+    public void addDataPoints(String auth, List<SignalFxProtocolBuffers.DataPoint> dataPoints)
+            throws SignalFxMetricsException {
+        if (dataPoints.isEmpty()) {
+            return;
+        }
+        byte[] token = auth.getBytes(StandardCharsets.UTF_8);
+        if (token.length > Short.MAX_VALUE) {
+            throw new SignalFxMetricsException("Auth token too long");
+        }
+        byte[] payload = scratch.get();
+        payload[0] = (byte) (token.length >>> 8);
+        payload[1] = (byte) token.length;
+        System.arraycopy(token, 0, payload, 2, token.length);
+        int headerLength = 2 + token.length;
+        CRC32 crc = new CRC32();
+
+        for (int i = 0; i < dataPoints.size(); i++) {
+            SignalFxProtocolBuffers.DataPoint dataPoint = dataPoints.get(i);
+            int length = headerLength + dataPoint.getSerializedSize();
+            if (length > payload.length) {
+                throw new SignalFxMetricsException("Datapoint of " + length
+                        + " bytes does not fit a ring slot of " + payload.length + " bytes");
+            }
+            try {
+                CodedOutputStream output = CodedOutputStream.newInstance(payload, headerLength,
+                        length - headerLength);
+                dataPoint.writeTo(output);
+                output.flush();
+            } catch (IOException e) {
+                throw new SignalFxMetricsException("Unable to serialize datapoint", e);
+            }
+            long sequence = claim();
+            if (sequence < 0) {
+                throw new SignalFxMetricsException("Datapoint ring full, dropped "
+                        + (dataPoints.size() - i) + " datapoints");
+            }
+            publish(sequence, payload, length,
+                    MappedRingFile.checksum(crc, sequence + 1, payload, length));
+        }
+    }
+
+    private long claim() {
+        while (true) {
+            long sequence = nextSequence.get();
+            if (sequence - ring.readerCursor() >= ring.slotCount) {
+                return -1;
+            }
+            if (nextSequence.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    private void publish(long sequence, byte[] payload, int length, int crc) {
+        int offset = ring.slotOffset(sequence);
+        ByteBuffer slot = ring.buffer.duplicate();
+        // Buffer's position(int), as ByteBuffer's override does not exist on Java 8.
+        ((Buffer) slot).position(offset + MappedRingFile.SLOT_HEADER_SIZE);
+        slot.put(payload, 0, length);
+        ring.buffer.putInt(offset + 8, length);
+        ring.buffer.putInt(offset + 12, crc);
+        ring.buffer.putLong(offset, sequence + 1);
+    }
+
+    /**
+     * @return Number of records written but not yet consumed by the reader
+     */
+    public long getPendingRecords() {
+        return nextSequence.get() - ring.readerCursor();
+    }
+
+    @Override
+    public void backfillDataPoints(String auth, String metric, String metricType, String orgId,
+                                   Map<String, String> dimensions,
+                                   List<SignalFxProtocolBuffers.PointValue> datumPoints)
+            throws SignalFxMetricsException {
+        throw new SignalFxMetricsException("Backfill is not supported through a datapoint ring");
+    }
+
+    @Override
+    public Map<String, Boolean> registerMetrics(String auth,
+                                                Map<String, SignalFxProtocolBuffers.MetricType> metricTypes)
+            throws SignalFxMetricsException {
+        Map<String, Boolean> res = new HashMap<String, Boolean>();
+        for (Map.Entry<String, SignalFxProtocolBuffers.MetricType> i : metricTypes.entrySet()) {
+            res.put(i.getKey(), true);
+        }
+        return res;
+    }
+
+    @Override
+    public void close() throws IOException {
+        ring.close();
+    }
+}
@@ -0,0 +1,162 @@
+package com.signalfx.metrics.connection;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Layout of the memory-mapped ring shared by {@link MappedRingDataPointReceiver} and
+ * {@link MappedRingReader}.</p>
+ *
+ * <pre>
+ * header (64 bytes):  magic int | version int | slot count int | slot size int | reader cursor long
+ * slot (slot size):   sequence long | length int | crc32 int | payload
+ * payload:            token length short | token utf-8 | serialized DataPoint
+ * </pre>
+ *
+ * <p>Record {@code n} lives in slot {@code n % slotCount}.  Its sequence word is written last and
+ * holds {@code n + 1}, so a zeroed slot is never mistaken for record 0.  Stores to the mapping are
+ * not ordered, so a reader may see the new sequence word together with the length, checksum and
+ * payload of the record the slot held a lap earlier.  The checksum therefore covers the sequence
+ * word as well as the payload (see {@link #checksum}): stale or half-written contents do not match
+ * the sequence the reader expects, and the reader only accepts a slot whose sequence word and
+ * checksum both match.</p>
+ */
+final class MappedRingFile implements Closeable {
+
+    static final int MAGIC = 0x53465852;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 64;
+    static final int SLOT_HEADER_SIZE = 16;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int SLOT_COUNT_OFFSET = 8;
+    private static final int SLOT_SIZE_OFFSET = 12;
+    private static final int READER_CURSOR_OFFSET = 16;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    final MappedByteBuffer buffer;
+    final int slotCount;
+    final int slotSize;
+
+    private MappedRingFile(RandomAccessFile file, int slotCount, int slotSize) throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.slotCount = slotCount;
+        this.slotSize = slotSize;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) slotCount * slotSize);
+    }
+
+    /**
+     * Opens the ring in {@code path}, creating it with the given geometry if the file is missing
+     * or empty.  An existing ring keeps the geometry it was created with.
+     */
+    static MappedRingFile openOrCreate(File path, int slotCount, int slotSize) throws IOException {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("Slot count must be a power of two: " + slotCount);
+        }
+        if (slotSize < 64 || slotSize % 8 != 0) {
+            throw new IllegalArgumentException("Slot size must be a multiple of 8, at least 64: "
+                    + slotSize);
+        }
+        if (HEADER_SIZE + (long) slotCount * slotSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Ring larger than 2GB");
+        }
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            if (file.length() == 0) {
+                file.setLength(HEADER_SIZE + (long) slotCount * slotSize);
+                MappedRingFile ring = new MappedRingFile(file, slotCount, slotSize);
+                ring.buffer.putInt(VERSION_OFFSET, VERSION);
+                ring.buffer.putInt(SLOT_COUNT_OFFSET, slotCount);
+                ring.buffer.putInt(SLOT_SIZE_OFFSET, slotSize);
+                ring.buffer.putLong(READER_CURSOR_OFFSET, 0);
+                ring.buffer.putInt(MAGIC_OFFSET, MAGIC);
+                return ring;
+            }
+            return map(path, file);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing ring.
+     */
+    static MappedRingFile open(File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            return map(path, file);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static MappedRingFile map(File path, RandomAccessFile file) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            throw new IOException("Not a datapoint ring: " + path);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (file.getChannel().read(header, header.position()) < 0) {
+                throw new IOException("Truncated datapoint ring: " + path);
+            }
+        }
+        if (header.getInt(MAGIC_OFFSET) != MAGIC) {
+            throw new IOException("Not a datapoint ring: " + path);
+        }
+        if (header.getInt(VERSION_OFFSET) != VERSION) {
+            throw new IOException("Unsupported datapoint ring version "
+                    + header.getInt(VERSION_OFFSET) + ": " + path);
+        }
+        int slotCount = header.getInt(SLOT_COUNT_OFFSET);
+        int slotSize = header.getInt(SLOT_SIZE_OFFSET);
+        if (file.length() < HEADER_SIZE + (long) slotCount * slotSize) {
+            throw new IOException("Truncated datapoint ring: " + path);
+        }
+        return new MappedRingFile(file, slotCount, slotSize);
+    }
+
+    int slotOffset(long sequence) {
+        return HEADER_SIZE + (int) (sequence & (slotCount - 1)) * slotSize;
+    }
+
+    /**
+     * @return CRC32 of the sequence word of a record followed by its payload
+     */
+    static int checksum(CRC32 crc, long sequenceWord, byte[] payload, int length) {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (sequenceWord >>> shift));
+        }
+        crc.update(payload, 0, length);
+        return (int) crc.getValue();
+    }
+
+    int maxPayloadSize() {
+        return slotSize - SLOT_HEADER_SIZE;
+    }
+
+    long readerCursor() {
+        return buffer.getLong(READER_CURSOR_OFFSET);
+    }
+
+    void setReaderCursor(long cursor) {
+        buffer.putLong(READER_CURSOR_OFFSET, cursor);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,186 @@
+package com.signalfx.metrics.connection;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+/**
+ * <p>Tails a ring written by {@link MappedRingDataPointReceiver}.  Records are delivered in
+ * write order.  The cursor stored in the ring only moves on {@link #commit()}, so an uploader that
+ * commits after a successful send delivers every record at least once, even across its own
+ * restarts.</p>
+ *
+ * <p>A slot that was claimed but never published, because its writer died mid-record, is skipped
+ * once a later record is published and the gap has persisted for the stall timeout.</p>
+ *
+ * <p>Not thread safe; use one reader per ring.</p>
+ */
+public class MappedRingReader implements Closeable {
+
+    public static final long DEFAULT_STALL_TIMEOUT_MS = 5000;
+
+    /**
+     * How far past a missing record to look for published ones before treating it as a gap.
+     */
+    private static final int GAP_LOOKAHEAD = 64;
+
+    private final MappedRingFile ring;
+    private final long stallTimeoutMs;
+    private final byte[] payload;
+    private final CRC32 crc = new CRC32();
+    private long position;
+    private long committed;
+    private long stalledSince = -1;
+    private long lostRecords;
+
+    /**
+     * Receives the records read from the ring.
+     */
+    public interface RecordHandler {
+        void onRecord(String auth, SignalFxProtocolBuffers.DataPoint dataPoint);
+    }
+
+    public MappedRingReader(File file) throws IOException {
+        this(file, DEFAULT_STALL_TIMEOUT_MS);
+    }
+
+    /**
+     * @param file              Existing ring file
+     * @param stallTimeoutMs    How long a missing record may hold up later ones before it is
+     *                          skipped
+     * @throws IOException If the file is not a ring or cannot be mapped
+     */
+    public MappedRingReader(File file, long stallTimeoutMs) throws IOException {
+        this.ring = MappedRingFile.open(file);
+        this.stallTimeoutMs = stallTimeoutMs;
+        this.payload = new byte[ring.maxPayloadSize()];
+        this.position = ring.readerCursor();
+        this.committed = position;
+    }
+
+    /**
+     * Reads published records past the current position.
+     *
+     * @param handler       Receives each record
+     * @param maxRecords    Maximum number of records to read
+     * @return Number of records delivered to the handler
+     */
+    public int read(RecordHandler handler, int maxRecords) {
+        int count = 0;
+        while (count < maxRecords) {
+            int length = readSlot(position);
+            if (length >= 0) {
+                stalledSince = -1;
+                position++;
+                if (deliver(handler, length)) {
+                    count++;
+                } else {
+                    lostRecords++;
+                }
+                continue;
+            }
+            if (!laterRecordPublished()) {
+                stalledSince = -1;
+                break;
+            }
+            long now = System.currentTimeMillis();
+            if (stalledSince < 0) {
+                stalledSince = now;
+            }
+            if (now - stalledSince < stallTimeoutMs) {
+                break;
+            }
+            position++;
+            lostRecords++;
+        }
+        return count;
+    }
+
+    /**
+     * Copies the record at {@code sequence} into the payload buffer.
+     *
+     * @return The payload length, or -1 if the record is not (completely) published yet
+     */
+    private int readSlot(long sequence) {
+        int offset = ring.slotOffset(sequence);
+        if (ring.buffer.getLong(offset) != sequence + 1) {
+            return -1;
+        }
+        int length = ring.buffer.getInt(offset + 8);
+        if (length < 2 || length > payload.length) {
+            return -1;
+        }
+        ByteBuffer slot = ring.buffer.duplicate();
+        // Buffer's position(int), as ByteBuffer's override does not exist on Java 8.
+        ((Buffer) slot).position(offset + MappedRingFile.SLOT_HEADER_SIZE);
+        slot.get(payload, 0, length);
+        if (MappedRingFile.checksum(crc, sequence + 1, payload, length)
+                != ring.buffer.getInt(offset + 12)) {
+            return -1;
+        }
+        return length;
+    }
+
+    private boolean deliver(RecordHandler handler, int length) {
+        int tokenLength = ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+        if (2 + tokenLength > length) {
+            return false;
+        }
+        SignalFxProtocolBuffers.DataPoint dataPoint;
+        try {
+            dataPoint = SignalFxProtocolBuffers.DataPoint.parser()
+                    .parseFrom(payload, 2 + tokenLength, length - 2 - tokenLength);
+        } catch (InvalidProtocolBufferException e) {
+            return false;
+        }
+        handler.onRecord(new String(payload, 2, tokenLength, StandardCharsets.UTF_8), dataPoint);
+        return true;
+    }
+
+    private boolean laterRecordPublished() {
+        int lookahead = Math.min(GAP_LOOKAHEAD, ring.slotCount - 1);
+        for (int i = 1; i <= lookahead; i++) {
+            long sequence = position + i;
+            if (ring.buffer.getLong(ring.slotOffset(sequence)) == sequence + 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Persists the current position, allowing writers to reuse the slots read so far.
+     */
+    public void commit() {
+        committed = position;
+        ring.setReaderCursor(position);
+    }
+
+    /**
+     * Moves back to the last committed position, for instance after a failed send.
+     */
+    public void rewind() {
+        position = committed;
+        stalledSince = -1;
+    }
+
+    /**
+     * @return Number of records skipped because they were never completely published or could
+     * not be decoded
+     */
+    public long getLostRecords() {
+        return lostRecords;
+    }
+
+    @Override
+    public void close() throws IOException {
+        ring.close();
+    }
+}
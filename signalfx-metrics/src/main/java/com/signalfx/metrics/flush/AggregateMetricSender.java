@@ -2,6 +2,7 @@ package com.signalfx.metrics.flush;
 
 import static java.util.Objects.requireNonNull;
 
+import com.signalfx.common.proto.ProtocolBufferBuilders;
 import com.signalfx.metrics.SignalFxMetricsException;
 import com.signalfx.metrics.auth.AuthToken;
 import com.signalfx.metrics.auth.NoAuthTokenException;
@@ -14,14 +15,13 @@ import com.signalfx.metrics.errorhandler.MetricErrorType;
 import com.signalfx.metrics.errorhandler.OnSendErrorHandler;
 import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
 import java.io.Closeable;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -55,6 +55,7 @@ public class AggregateMetricSender {
     private final EventReceiverFactory eventReceiverFactory;
     private final AuthToken authToken;
     private final Collection<OnSendErrorHandler> onSendErrorHandlerCollection;
+    private volatile MemoryBudget memoryBudget;
 
     public AggregateMetricSender(String defaultSourceName,
                                  DataPointReceiverFactory dataPointReceiverFactory,
@@ -88,6 +89,19 @@ public class AggregateMetricSender {
         return defaultSourceName;
     }
 
+    /**
+     * Bounds the datapoints and events buffered by sessions created from now on.
+     *
+     * @param memoryBudget    Budget shared by those sessions, or null for unbounded sessions
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
     private void communicateError(String message, MetricErrorType code,
                                   SignalFxMetricsException signalfxMetricsException) {
         for (OnSendErrorHandler onSendErrorHandler : onSendErrorHandlerCollection) {
@@ -103,14 +117,28 @@ public class AggregateMetricSender {
     private final class SessionImpl implements Session {
         private final Map<String, SignalFxProtocolBuffers
                 .MetricType> toBeRegisteredMetricPairs;
-        private final List<SignalFxProtocolBuffers.DataPoint> pointsToFlush;
-        private final List<SignalFxProtocolBuffers.Event> eventsToFlush;
+        private final BudgetedBuffer<SignalFxProtocolBuffers.DataPoint> pointsToFlush;
+        private final BudgetedBuffer<SignalFxProtocolBuffers.Event> eventsToFlush;
+        private final MemoryBudget budget;
+        private boolean shedReported;
+        private long lastShedReportNanos;
 
         private SessionImpl() {
             toBeRegisteredMetricPairs = new HashMap<String, SignalFxProtocolBuffers.MetricType>();
 
-            pointsToFlush = new ArrayList<SignalFxProtocolBuffers.DataPoint>();
-            eventsToFlush = new ArrayList<SignalFxProtocolBuffers.Event>();
+            budget = memoryBudget;
+            pointsToFlush = new BudgetedBuffer<SignalFxProtocolBuffers.DataPoint>(budget, false) {
+                @Override
+                String nameOf(SignalFxProtocolBuffers.DataPoint record) {
+                    return record.getMetric();
+                }
+            };
+            eventsToFlush = new BudgetedBuffer<SignalFxProtocolBuffers.Event>(budget, true) {
+                @Override
+                String nameOf(SignalFxProtocolBuffers.Event record) {
+                    return record.getEventType();
+                }
+            };
         }
 
         @Override
@@ -140,12 +168,12 @@ public class AggregateMetricSender {
                                               SignalFxProtocolBuffers.MetricType metricType,
                                               long value) {
             check(metric, metricType);
-            pointsToFlush.add(SignalFxProtocolBuffers.DataPoint.newBuilder()
+            addDatapoint(ProtocolBufferBuilders.<SignalFxProtocolBuffers.DataPoint>build(
+                    SignalFxProtocolBuffers.DataPoint.newBuilder()
                                       .setSource(source)
                                       .setMetricType(metricType)
                                       .setMetric(metric).setValue(
-                            SignalFxProtocolBuffers.Datum.newBuilder().setIntValue(value).build())
-                                      .build());
+                            SignalFxProtocolBuffers.Datum.newBuilder().setIntValue(value))));
             return this;
         }
 
@@ -154,28 +182,34 @@ public class AggregateMetricSender {
                                               SignalFxProtocolBuffers.MetricType metricType,
                                               double value) {
             check(metric, metricType);
-            pointsToFlush.add(SignalFxProtocolBuffers.DataPoint.newBuilder()
+            addDatapoint(ProtocolBufferBuilders.<SignalFxProtocolBuffers.DataPoint>build(
+                    SignalFxProtocolBuffers.DataPoint.newBuilder()
                                       .setSource(source)
                                       .setMetricType(metricType)
                                       .setMetric(metric).setValue(
-                            SignalFxProtocolBuffers.Datum.newBuilder().setDoubleValue(value).build())
-                                      .build());
+                            SignalFxProtocolBuffers.Datum.newBuilder().setDoubleValue(value))));
             return this;
         }
 
         @Override
         public Session setDatapoint(SignalFxProtocolBuffers.DataPoint datapoint) {
             check(datapoint.getMetric(), datapoint.getMetricType());
-            pointsToFlush.add(datapoint);
+            addDatapoint(datapoint);
             return this;
         }
 
         @Override
         public Session setEvent(SignalFxProtocolBuffers.Event event) {
             eventsToFlush.add(event);
+            reportShed(false);
             return this;
         }
 
+        private void addDatapoint(SignalFxProtocolBuffers.DataPoint datapoint) {
+            pointsToFlush.add(datapoint);
+            reportShed(false);
+        }
+
         @Override
         public Session setGauge(String metric, long value) {
             return setGauge(defaultSourceName, metric, value);
@@ -208,16 +242,48 @@ public class AggregateMetricSender {
 
         @Override
         public void close() {
-            final String authTokenStr;
             try {
-                authTokenStr = authToken.getAuthToken();
-            } catch (NoAuthTokenException e) {
-                communicateError("Unable to get auth token", MetricErrorType.AUTH_TOKEN_ERROR, e);
-                return;
+                reportShed(true);
+                final String authTokenStr;
+                try {
+                    authTokenStr = authToken.getAuthToken();
+                } catch (NoAuthTokenException e) {
+                    communicateError("Unable to get auth token", MetricErrorType.AUTH_TOKEN_ERROR, e);
+                    return;
+                }
+
+                flushDatapoints(authTokenStr);
+                flushEvents(authTokenStr);
+            } finally {
+                pointsToFlush.release();
+                eventsToFlush.release();
             }
+        }
 
-            flushDatapoints(authTokenStr);
-            flushEvents(authTokenStr);
+        /**
+         * Reports the records shed since the last report, right away the first time and at most
+         * once per report interval afterwards unless forced, so that sessions that are never
+         * closed report too.
+         */
+        private void reportShed(boolean force) {
+            if (pointsToFlush.getShedRecords() == 0 && eventsToFlush.getShedRecords() == 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (!force && shedReported && now - lastShedReportNanos
+                    < TimeUnit.MILLISECONDS.toNanos(budget.getShedReportIntervalMs())) {
+                return;
+            }
+            shedReported = true;
+            lastShedReportNanos = now;
+            String message = "Memory budget exceeded, shed " + pointsToFlush.getShedRecords()
+                    + " datapoints (" + pointsToFlush.getShedBytes() + " bytes) and "
+                    + eventsToFlush.getShedRecords() + " events ("
+                    + eventsToFlush.getShedBytes() + " bytes)";
+            pointsToFlush.clearShed();
+            eventsToFlush.clearShed();
+            communicateError(message, MetricErrorType.QUEUE_FULL,
+                    new SignalFxMetricsException(message));
         }
 
         private void flushDatapoints(String authTokenStr) {
@@ -250,7 +316,7 @@ public class AggregateMetricSender {
                 }
             }
 
-            Iterator<SignalFxProtocolBuffers.DataPoint> i = pointsToFlush.iterator();
+            Iterator<SignalFxProtocolBuffers.DataPoint> i = pointsToFlush.records().iterator();
             while (i.hasNext()) {
                 SignalFxProtocolBuffers.DataPoint currentEntry = i.next();
                 if (!registeredMetricPairs.contains(currentEntry.getMetric())) {
@@ -259,7 +325,7 @@ public class AggregateMetricSender {
             }
 
             try {
-                dataPointReceiver.addDataPoints(authTokenStr, pointsToFlush);
+                dataPointReceiver.addDataPoints(authTokenStr, pointsToFlush.records());
             } catch (SignalFxMetricsException e) {
                 communicateError("Unable to send datapoints", MetricErrorType.DATAPOINT_SEND_ERROR,
                         e);
@@ -279,7 +345,7 @@ public class AggregateMetricSender {
 
             try {
                 EventReceiver eventReceiver = eventReceiverFactory.createEventReceiver();
-                eventReceiver.addEvents(authTokenStr, eventsToFlush);
+                eventReceiver.addEvents(authTokenStr, eventsToFlush.records());
             } catch (SignalFxMetricsException e) {
                 communicateError("Unable to send events", MetricErrorType.EVENT_SEND_ERROR, e);
             }
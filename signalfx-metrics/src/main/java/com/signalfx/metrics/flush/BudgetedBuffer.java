@@ -0,0 +1,208 @@
+package com.signalfx.metrics.flush;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.protobuf.MessageLite;
+
+/**
+ * Records buffered by a session, accounted against an optional {@link MemoryBudget}.
+ *
+ * Not thread safe, like the session owning it; the budget itself is shared.
+ */
+abstract class BudgetedBuffer<T extends MessageLite> {
+    private final MemoryBudget budget;
+    private final boolean events;
+    private final List<T> records = new ArrayList<T>();
+    private long bytes;
+    private long offered;
+    private int shedRecords;
+    private long shedBytes;
+
+    /**
+     * @param budget    Budget to account against, or null for an unbounded buffer
+     * @param events    Whether shed records are reported as events rather than datapoints
+     */
+    BudgetedBuffer(MemoryBudget budget, boolean events) {
+        this.budget = budget;
+        this.events = events;
+    }
+
+    /**
+     * @return Name the budget's priorities are keyed by
+     */
+    abstract String nameOf(T record);
+
+    List<T> records() {
+        return records;
+    }
+
+    boolean isEmpty() {
+        return records.isEmpty();
+    }
+
+    /**
+     * @return Records shed since the last {@link #clearShed()}
+     */
+    int getShedRecords() {
+        return shedRecords;
+    }
+
+    /**
+     * @return Serialized bytes shed since the last {@link #clearShed()}
+     */
+    long getShedBytes() {
+        return shedBytes;
+    }
+
+    /**
+     * Resets the shed counts once they were reported.
+     */
+    void clearShed() {
+        shedRecords = 0;
+        shedBytes = 0;
+    }
+
+    void add(T record) {
+        offered++;
+        if (budget == null) {
+            records.add(record);
+            return;
+        }
+        int size = record.getSerializedSize();
+        if (budget.tryReserve(size)) {
+            append(record, size);
+            return;
+        }
+        switch (budget.getShedPolicy()) {
+            case DROP_OLDEST:
+                dropOldest(record, size);
+                break;
+            case DROP_BY_PRIORITY:
+                dropByPriority(record, size);
+                break;
+            case SAMPLE:
+                sample(record, size);
+                break;
+            default:
+                shed(size);
+        }
+    }
+
+    /**
+     * Gives the buffered bytes back to the budget and empties the buffer.
+     */
+    void release() {
+        if (budget != null) {
+            budget.release(bytes);
+        }
+        bytes = 0;
+        records.clear();
+    }
+
+    private void append(T record, int size) {
+        records.add(record);
+        bytes += size;
+    }
+
+    private void evict(int index) {
+        int size = records.get(index).getSerializedSize();
+        budget.release(size);
+        bytes -= size;
+        shed(size);
+    }
+
+    private void shed(long size) {
+        shedRecords++;
+        shedBytes += size;
+        budget.recordShed(events ? 0 : 1, events ? 1 : 0, size);
+    }
+
+    private void dropOldest(T record, int size) {
+        if (bytes + budget.getAvailableBytes() < size) {
+            shed(size);
+            return;
+        }
+        int evicted = 0;
+        boolean reserved = false;
+        while (!reserved && evicted < records.size()) {
+            evict(evicted++);
+            reserved = budget.tryReserve(size);
+        }
+        records.subList(0, evicted).clear();
+        if (reserved) {
+            append(record, size);
+        } else {
+            shed(size);
+        }
+    }
+
+    private void dropByPriority(T record, int size) {
+        int priority = budget.getPriority(nameOf(record));
+        final int[] priorities = new int[records.size()];
+        List<Integer> candidates = new ArrayList<Integer>();
+        long evictable = budget.getAvailableBytes();
+        for (int i = 0; i < records.size(); i++) {
+            priorities[i] = budget.getPriority(nameOf(records.get(i)));
+            if (priorities[i] < priority) {
+                candidates.add(i);
+                evictable += records.get(i).getSerializedSize();
+            }
+        }
+        if (evictable < size) {
+            shed(size);
+            return;
+        }
+        // Stable sort: oldest first within a priority.
+        Collections.sort(candidates, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(priorities[a], priorities[b]);
+            }
+        });
+        BitSet evicted = new BitSet(records.size());
+        boolean reserved = false;
+        for (int i = 0; !reserved && i < candidates.size(); i++) {
+            evict(candidates.get(i));
+            evicted.set(candidates.get(i));
+            reserved = budget.tryReserve(size);
+        }
+        int kept = 0;
+        for (int i = 0; i < records.size(); i++) {
+            if (!evicted.get(i)) {
+                records.set(kept++, records.get(i));
+            }
+        }
+        records.subList(kept, records.size()).clear();
+        if (reserved) {
+            append(record, size);
+        } else {
+            shed(size);
+        }
+    }
+
+    private void sample(T record, int size) {
+        long slot = ThreadLocalRandom.current().nextLong(offered);
+        if (slot >= records.size()) {
+            shed(size);
+            return;
+        }
+        int index = (int) slot;
+        if (records.get(index).getSerializedSize() + budget.getAvailableBytes() < size) {
+            shed(size);
+            return;
+        }
+        evict(index);
+        if (budget.tryReserve(size)) {
+            records.set(index, record);
+            bytes += size;
+        } else {
+            records.remove(index);
+            shed(size);
+        }
+    }
+}
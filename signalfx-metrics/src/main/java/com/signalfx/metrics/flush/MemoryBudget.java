@@ -0,0 +1,157 @@
+package com.signalfx.metrics.flush;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Caps the telemetry an {@link AggregateMetricSender} buffers across all of its open sessions.
+ * Datapoints and events are accounted at their serialized size, the number of bytes they will
+ * occupy on the wire.  This approximates their heap footprint from below: the protobuf objects
+ * holding them, with their headers, references and strings, take several times as much, so size
+ * the budget with that in mind.</p>
+ *
+ * <p>Once the budget is used up, a session makes room according to the {@link ShedPolicy}.  A
+ * session only ever sheds its own records; when other sessions hold the budget the incoming
+ * record is dropped.  Sessions report what they shed through the sender's
+ * {@link com.signalfx.metrics.errorhandler.OnSendErrorHandler}s as
+ * {@link com.signalfx.metrics.errorhandler.MetricErrorType#QUEUE_FULL}: as soon as they start
+ * shedding, then at most once per {@link #setShedReportIntervalMs report interval} while they
+ * keep shedding, and for the remainder when they are closed.</p>
+ *
+ * <pre>
+ * {@code
+ *  sender.setMemoryBudget(new MemoryBudget(16 * 1024 * 1024, MemoryBudget.ShedPolicy.DROP_OLDEST));
+ * }
+ * </pre>
+ */
+public class MemoryBudget {
+
+    public enum ShedPolicy {
+        /**
+         * Evict the session's oldest records until the new one fits.
+         */
+        DROP_OLDEST,
+        /**
+         * Evict the session's records of lower priority than the new one, lowest first and
+         * oldest first within a priority.  A record with no lower-priority records to evict is
+         * dropped.
+         */
+        DROP_BY_PRIORITY,
+        /**
+         * Keep a uniform sample of everything the session was given: the new record replaces a
+         * random buffered one with probability {@code buffered / offered}, and is dropped
+         * otherwise.
+         */
+        SAMPLE
+    }
+
+    public static final int DEFAULT_PRIORITY = 0;
+    public static final long DEFAULT_SHED_REPORT_INTERVAL_MS = 1000;
+
+    private final long maxBytes;
+    private final ShedPolicy shedPolicy;
+    private volatile long shedReportIntervalMs = DEFAULT_SHED_REPORT_INTERVAL_MS;
+    private final Map<String, Integer> priorities = new ConcurrentHashMap<String, Integer>();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong shedDataPoints = new AtomicLong();
+    private final AtomicLong shedEvents = new AtomicLong();
+    private final AtomicLong shedBytes = new AtomicLong();
+
+    /**
+     * @param maxBytes      Serialized bytes all sessions together may buffer
+     * @param shedPolicy    What to drop once the budget is used up
+     */
+    public MemoryBudget(long maxBytes, ShedPolicy shedPolicy) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        if (shedPolicy == null) {
+            throw new IllegalArgumentException("shedPolicy must not be null");
+        }
+        this.maxBytes = maxBytes;
+        this.shedPolicy = shedPolicy;
+    }
+
+    /**
+     * Sets how often a session that keeps shedding records reports them.
+     *
+     * @param shedReportIntervalMs    Minimum time between two reports of the same session
+     * @return this
+     */
+    public MemoryBudget setShedReportIntervalMs(long shedReportIntervalMs) {
+        this.shedReportIntervalMs = shedReportIntervalMs;
+        return this;
+    }
+
+    long getShedReportIntervalMs() {
+        return shedReportIntervalMs;
+    }
+
+    /**
+     * Sets the priority used by {@link ShedPolicy#DROP_BY_PRIORITY}; higher is kept longer.
+     *
+     * @param name        Metric name, or event type for events
+     * @param priority    Priority of the metric
+     * @return this
+     */
+    public MemoryBudget setPriority(String name, int priority) {
+        priorities.put(name, priority);
+        return this;
+    }
+
+    int getPriority(String name) {
+        Integer priority = priorities.get(name);
+        return priority == null ? DEFAULT_PRIORITY : priority;
+    }
+
+    ShedPolicy getShedPolicy() {
+        return shedPolicy;
+    }
+
+    boolean tryReserve(long bytes) {
+        while (true) {
+            long used = usedBytes.get();
+            if (used + bytes > maxBytes) {
+                return false;
+            }
+            if (usedBytes.compareAndSet(used, used + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    void release(long bytes) {
+        usedBytes.addAndGet(-bytes);
+    }
+
+    void recordShed(long dataPoints, long events, long bytes) {
+        shedDataPoints.addAndGet(dataPoints);
+        shedEvents.addAndGet(events);
+        shedBytes.addAndGet(bytes);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getAvailableBytes() {
+        return maxBytes - usedBytes.get();
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getShedDataPoints() {
+        return shedDataPoints.get();
+    }
+
+    public long getShedEvents() {
+        return shedEvents.get();
+    }
+
+    public long getShedBytes() {
+        return shedBytes.get();
+    }
+}
@@ -0,0 +1,93 @@
+package com.signalfx.metrics.connection;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+/**
+ * Measures datapoint records per second written into a {@link MappedRingDataPointReceiver} while
+ * a {@link MappedRingReader} drains the ring.
+ *
+ * <pre>
+ * java -cp ... com.signalfx.metrics.connection.MappedRingBenchmark [producers] [seconds] [batch]
+ * </pre>
+ */
+public class MappedRingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int producers = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final int batch = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        File file = File.createTempFile("benchmark", ".ring");
+        file.delete();
+        file.deleteOnExit();
+        final MappedRingDataPointReceiver writer = new MappedRingDataPointReceiver(file);
+        final MappedRingReader reader = new MappedRingReader(file);
+
+        final List<SignalFxProtocolBuffers.DataPoint> points =
+                new ArrayList<SignalFxProtocolBuffers.DataPoint>();
+        for (int i = 0; i < batch; i++) {
+            points.add(SignalFxProtocolBuffers.DataPoint.newBuilder()
+                    .setMetric("jvm.heap.used")
+                    .setMetricType(SignalFxProtocolBuffers.MetricType.GAUGE)
+                    .setTimestamp(System.currentTimeMillis())
+                    .addDimensions(SignalFxProtocolBuffers.Dimension.newBuilder()
+                            .setKey("host").setValue("host-" + i))
+                    .setValue(SignalFxProtocolBuffers.Datum.newBuilder().setIntValue(i))
+                    .build());
+        }
+
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final AtomicLong written = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    while (System.nanoTime() < deadline) {
+                        try {
+                            writer.addDataPoints("token", points);
+                            count += points.size();
+                        } catch (RuntimeException e) {
+                            // Ring full: give the reader a chance instead of spinning.
+                            dropped.incrementAndGet();
+                            Thread.yield();
+                        }
+                    }
+                    written.addAndGet(count);
+                    done.countDown();
+                }
+            }, "producer-" + p).start();
+        }
+
+        long read = 0;
+        MappedRingReader.RecordHandler discard = new MappedRingReader.RecordHandler() {
+            @Override
+            public void onRecord(String auth, SignalFxProtocolBuffers.DataPoint dataPoint) {
+            }
+        };
+        while (done.getCount() > 0 || writer.getPendingRecords() > 0) {
+            int n = reader.read(discard, 10000);
+            reader.commit();
+            read += n;
+            if (n == 0) {
+                Thread.yield();
+            }
+        }
+
+        System.out.printf("producers=%d batch=%d seconds=%d%n", producers, batch, seconds);
+        System.out.printf("written=%d read=%d full-ring batches=%d%n", written.get(), read,
+                dropped.get());
+        System.out.printf("records/sec per producer=%.0f total=%.0f%n",
+                written.get() / (double) seconds / producers, written.get() / (double) seconds);
+        writer.close();
+        reader.close();
+    }
+}
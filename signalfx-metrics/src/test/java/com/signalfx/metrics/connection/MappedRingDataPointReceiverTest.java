@@ -0,0 +1,159 @@
+package com.signalfx.metrics.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.signalfx.metrics.SignalFxMetricsException;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+public class MappedRingDataPointReceiverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File file = folder.newFile("app.ring");
+        MappedRingDataPointReceiver writer = new MappedRingDataPointReceiver(file, 16, 128);
+        MappedRingReader reader = new MappedRingReader(file);
+
+        writer.addDataPoints("token", Arrays.asList(point("a", 1), point("b", 2)));
+        writer.addDataPoints("other", Collections.singletonList(point("c", 3)));
+
+        Collector collector = new Collector();
+        assertEquals(3, reader.read(collector, 100));
+        assertEquals(Arrays.asList("token/a/1", "token/b/2", "other/c/3"), collector.records);
+        assertEquals(0, reader.read(collector, 100));
+
+        writer.close();
+        reader.close();
+    }
+
+    @Test
+    public void testFullRingDropsUntilCommitted() throws Exception {
+        File file = folder.newFile("app.ring");
+        MappedRingDataPointReceiver writer = new MappedRingDataPointReceiver(file, 4, 64);
+        MappedRingReader reader = new MappedRingReader(file);
+
+        try {
+            writer.addDataPoints("t", Arrays.asList(point("a", 1), point("a", 2), point("a", 3),
+                    point("a", 4), point("a", 5), point("a", 6)));
+            fail("Expected the ring to be full");
+        } catch (SignalFxMetricsException e) {
+            assertEquals("Datapoint ring full, dropped 2 datapoints", e.getMessage());
+        }
+
+        Collector collector = new Collector();
+        assertEquals(4, reader.read(collector, 100));
+        // Slots are only released on commit.
+        assertEquals(4, writer.getPendingRecords());
+        reader.commit();
+        writer.addDataPoints("t", Collections.singletonList(point("a", 7)));
+        assertEquals(1, reader.read(collector, 100));
+        assertEquals("t/a/7", collector.records.get(4));
+    }
+
+    @Test
+    public void testCursorsSurviveRestart() throws Exception {
+        File file = folder.newFile("app.ring");
+        MappedRingDataPointReceiver writer = new MappedRingDataPointReceiver(file, 8, 64);
+        writer.addDataPoints("t", Arrays.asList(point("a", 1), point("a", 2), point("a", 3)));
+        MappedRingReader reader = new MappedRingReader(file);
+        Collector collector = new Collector();
+        reader.read(collector, 2);
+        reader.commit();
+        reader.read(collector, 1);
+        writer.close();
+        reader.close();
+
+        // Neither side flushed anything on close: the new writer resumes after the last
+        // published record, the new reader after the last committed one.
+        writer = new MappedRingDataPointReceiver(file, 8, 64);
+        writer.addDataPoints("t", Collections.singletonList(point("a", 4)));
+        reader = new MappedRingReader(file);
+        collector = new Collector();
+        assertEquals(2, reader.read(collector, 100));
+        assertEquals(Arrays.asList("t/a/3", "t/a/4"), collector.records);
+    }
+
+    @Test
+    public void testSkipsRecordThatWasNeverPublished() throws Exception {
+        File file = folder.newFile("app.ring");
+        MappedRingDataPointReceiver writer = new MappedRingDataPointReceiver(file, 8, 64);
+        writer.addDataPoints("t", Arrays.asList(point("a", 1), point("a", 2), point("a", 3)));
+        writer.close();
+
+        // Tear the sequence word of the second slot, as if its writer died mid-record.
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(MappedRingFile.HEADER_SIZE + 64);
+        raw.writeLong(0);
+        raw.close();
+
+        MappedRingReader reader = new MappedRingReader(file, 0);
+        Collector collector = new Collector();
+        assertEquals(2, reader.read(collector, 100));
+        assertEquals(Arrays.asList("t/a/1", "t/a/3"), collector.records);
+        assertEquals(1, reader.getLostRecords());
+    }
+
+    @Test
+    public void testRejectsPreviousLapUnderNewSequence() throws Exception {
+        File file = folder.newFile("app.ring");
+        MappedRingDataPointReceiver writer = new MappedRingDataPointReceiver(file, 4, 64);
+        writer.addDataPoints("t", Arrays.asList(point("a", 1), point("a", 2), point("a", 3),
+                point("a", 4)));
+        MappedRingReader reader = new MappedRingReader(file);
+        assertEquals(4, reader.read(new Collector(), 100));
+        reader.commit();
+        writer.close();
+        reader.close();
+
+        // Record 4 reuses the first slot; make its sequence word visible before its contents.
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(MappedRingFile.HEADER_SIZE);
+        raw.writeLong(5);
+        raw.close();
+
+        reader = new MappedRingReader(file);
+        Collector collector = new Collector();
+        assertEquals(0, reader.read(collector, 100));
+        assertEquals(Collections.<String>emptyList(), collector.records);
+        reader.close();
+    }
+
+    @Test(expected = SignalFxMetricsException.class)
+    public void testBackfillIsUnsupported() throws Exception {
+        MappedRingDataPointReceiver writer =
+                new MappedRingDataPointReceiver(folder.newFile("app.ring"), 8, 64);
+        writer.backfillDataPoints("t", "a", "gauge", "org",
+                Collections.<String, String>emptyMap(),
+                Collections.<SignalFxProtocolBuffers.PointValue>emptyList());
+    }
+
+    static SignalFxProtocolBuffers.DataPoint point(String metric, long value) {
+        return SignalFxProtocolBuffers.DataPoint.newBuilder().setMetric(metric)
+                .setValue(SignalFxProtocolBuffers.Datum.newBuilder().setIntValue(value))
+                .build();
+    }
+
+    private static class Collector implements MappedRingReader.RecordHandler {
+        final List<String> records = new ArrayList<String>();
+
+        @Override
+        public void onRecord(String auth, SignalFxProtocolBuffers.DataPoint dataPoint) {
+            records.add(auth + "/" + dataPoint.getMetric() + "/"
+                    + dataPoint.getValue().getIntValue());
+        }
+    }
+}
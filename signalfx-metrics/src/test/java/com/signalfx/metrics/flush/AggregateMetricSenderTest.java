@@ -1,10 +1,24 @@
 package com.signalfx.metrics.flush;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.junit.Test;
 
+import com.signalfx.metrics.auth.StaticAuthToken;
+import com.signalfx.metrics.connection.StaticDataPointReceiverFactory;
+import com.signalfx.metrics.connection.StoredDataPointReceiver;
+import com.signalfx.metrics.errorhandler.CountingOnSendErrorHandler;
+import com.signalfx.metrics.errorhandler.MetricError;
+import com.signalfx.metrics.errorhandler.MetricErrorType;
+import com.signalfx.metrics.errorhandler.OnSendErrorHandler;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
 public class AggregateMetricSenderTest {
 
   @Test
@@ -21,4 +35,110 @@ public class AggregateMetricSenderTest {
   public void shouldNotFailOnNonNullDefaultSourceName() {
     new AggregateMetricSender("source", null, null, null, null);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void shouldDropOldestOverMemoryBudget() throws Exception {
+    MemoryBudget budget = new MemoryBudget(3 * pointSize("m0"), MemoryBudget.ShedPolicy.DROP_OLDEST);
+    StoredDataPointReceiver receiver = new StoredDataPointReceiver();
+    CountingOnSendErrorHandler errors = new CountingOnSendErrorHandler();
+    AggregateMetricSender sender = sender(receiver, errors);
+    sender.setMemoryBudget(budget);
+
+    try (AggregateMetricSender.Session session = sender.createSession()) {
+      for (int i = 0; i < 5; i++) {
+        session.setGauge("m" + i, i);
+      }
+      assertEquals(budget.getMaxBytes(), budget.getUsedBytes());
+    }
+
+    assertEquals(3, receiver.addDataPoints.size());
+    assertEquals("m2", receiver.addDataPoints.get(0).getMetric());
+    assertEquals(2, budget.getShedDataPoints());
+    assertEquals(2 * pointSize("m0"), budget.getShedBytes());
+    assertEquals(0, budget.getUsedBytes());
+    // Reported on the first shed record, then for the rest when the session closed.
+    assertEquals(2, errors.getValues().get(MetricErrorType.QUEUE_FULL).get());
+  }
+
+  @Test
+  public void shouldReportShedRecordsBeforeSessionCloses() throws Exception {
+    MemoryBudget budget = new MemoryBudget(pointSize("m0"), MemoryBudget.ShedPolicy.DROP_OLDEST)
+        .setShedReportIntervalMs(0);
+    final List<MetricError> reported = new ArrayList<MetricError>();
+    AggregateMetricSender sender = sender(new StoredDataPointReceiver(), new OnSendErrorHandler() {
+      @Override
+      public void handleError(MetricError metricError) {
+        reported.add(metricError);
+      }
+    });
+    sender.setMemoryBudget(budget);
+
+    AggregateMetricSender.Session session = sender.createSession();
+    session.setGauge("m0", 0);
+    assertEquals(0, reported.size());
+    session.setGauge("m1", 1);
+    session.setGauge("m2", 2);
+    assertEquals(2, reported.size());
+    assertEquals(MetricErrorType.QUEUE_FULL, reported.get(1).getMetricErrorType());
+    assertTrue(reported.get(1).getMessage().contains("shed 1 datapoints"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectMissingShedPolicy() {
+    new MemoryBudget(1024, null);
+  }
+
+  @Test
+  public void shouldDropLowerPriorityOverMemoryBudget() throws Exception {
+    MemoryBudget budget = new MemoryBudget(2 * pointSize("lo"),
+        MemoryBudget.ShedPolicy.DROP_BY_PRIORITY).setPriority("hi", 1);
+    StoredDataPointReceiver receiver = new StoredDataPointReceiver();
+    AggregateMetricSender sender = sender(receiver, new CountingOnSendErrorHandler());
+    sender.setMemoryBudget(budget);
+
+    try (AggregateMetricSender.Session session = sender.createSession()) {
+      session.setGauge("lo", 1);
+      session.setGauge("hi", 2);
+      session.setGauge("hi", 3);
+      session.setGauge("lo", 4);
+    }
+
+    assertEquals(2, receiver.addDataPoints.size());
+    assertEquals(2, receiver.addDataPoints.get(0).getValue().getIntValue());
+    assertEquals(3, receiver.addDataPoints.get(1).getValue().getIntValue());
+    assertEquals(2, budget.getShedDataPoints());
+  }
+
+  @Test
+  public void shouldSampleOverMemoryBudget() throws Exception {
+    MemoryBudget budget = new MemoryBudget(10 * pointSize("m0"), MemoryBudget.ShedPolicy.SAMPLE);
+    StoredDataPointReceiver receiver = new StoredDataPointReceiver();
+    AggregateMetricSender sender = sender(receiver, new CountingOnSendErrorHandler());
+    sender.setMemoryBudget(budget);
+
+    try (AggregateMetricSender.Session session = sender.createSession()) {
+      for (int i = 0; i < 1000; i++) {
+        session.setGauge("m0", i);
+      }
+    }
+
+    assertEquals(10, receiver.addDataPoints.size());
+    assertEquals(990, budget.getShedDataPoints());
+    assertEquals(0, budget.getUsedBytes());
+  }
+
+  private static AggregateMetricSender sender(StoredDataPointReceiver receiver,
+                                              OnSendErrorHandler errors) {
+    return new AggregateMetricSender("source", new StaticDataPointReceiverFactory(receiver),
+        new StaticAuthToken("token"), Collections.singletonList(errors));
+  }
+
+  private static int pointSize(String metric) {
+    return SignalFxProtocolBuffers.DataPoint.newBuilder()
+        .setSource("source")
+        .setMetricType(SignalFxProtocolBuffers.MetricType.GAUGE)
+        .setMetric(metric)
+        .setValue(SignalFxProtocolBuffers.Datum.newBuilder().setIntValue(0))
+        .build().getSerializedSize();
+  }
+}
@@ -0,0 +1,88 @@
+package com.signalfx.metrics.protobuf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.Test;
+
+import com.google.protobuf.GeneratedMessageLite;
+import com.signalfx.endpoint.SignalFxEndpoint;
+import com.signalfx.metrics.auth.StaticAuthToken;
+import com.signalfx.metrics.connection.HttpDataPointProtobufReceiverFactory;
+import com.signalfx.metrics.errorhandler.CountingOnSendErrorHandler;
+import com.signalfx.metrics.flush.AggregateMetricSender;
+
+/**
+ * Runs signalfx-metrics against the lite generated classes to make sure it doesn't depend on the
+ * full protobuf runtime.
+ */
+public class LiteRuntimeTest {
+
+    @Test
+    public void testGeneratedForLiteRuntime() throws ClassNotFoundException {
+        assertTrue(GeneratedMessageLite.class.isAssignableFrom(
+                SignalFxProtocolBuffers.DataPoint.class));
+        try {
+            Class.forName("com.google.protobuf.Descriptors");
+            throw new AssertionError("full protobuf runtime is on the classpath");
+        } catch (ClassNotFoundException expected) {
+        }
+    }
+
+    @Test
+    public void testSendDatapoints() throws Exception {
+        final List<SignalFxProtocolBuffers.DataPoint> received =
+                new CopyOnWriteArrayList<SignalFxProtocolBuffers.DataPoint>();
+        Server server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+                InputStream body = request.getInputStream();
+                if ("gzip".equals(request.getHeader("Content-Encoding"))) {
+                    body = new GZIPInputStream(body);
+                }
+                received.addAll(SignalFxProtocolBuffers.DataPointUploadMessage.parseFrom(body)
+                        .getDatapointsList());
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.getWriter().write("\"OK\"");
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+
+        try (AutoCloseable ignored = server::stop) {
+            URI uri = server.getURI();
+            CountingOnSendErrorHandler errors = new CountingOnSendErrorHandler();
+            AggregateMetricSender sender = new AggregateMetricSender("source",
+                    new HttpDataPointProtobufReceiverFactory(
+                            new SignalFxEndpoint(uri.getScheme(), uri.getHost(), uri.getPort())),
+                    new StaticAuthToken("token"),
+                    Collections.<com.signalfx.metrics.errorhandler.OnSendErrorHandler>singleton(
+                            errors));
+            try (AggregateMetricSender.Session session = sender.createSession()) {
+                session.setGauge("gauge", 1.5);
+                session.incrementCounter("counter", 3);
+            }
+
+            assertEquals(0, errors.getTotalErrorCount());
+            assertEquals(2, received.size());
+            assertEquals(1.5, received.get(0).getValue().getDoubleValue(), 0);
+            assertEquals(3, received.get(1).getValue().getIntValue());
+        }
+    }
+}
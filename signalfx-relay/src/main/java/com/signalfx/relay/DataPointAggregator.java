@@ -0,0 +1,152 @@
+package com.signalfx.relay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.signalfx.common.proto.ProtocolBufferBuilders;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.DataPoint;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.Datum;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.Dimension;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.MetricType;
+
+/**
+ * Merges datapoints of the same timeseries received between two flushes.  Counters are summed;
+ * gauges, cumulative counters and enums keep the most recent value.  Points are matched by
+ * metric and dimensions, whichever client sent them.
+ *
+ * Not thread safe; {@link RelayServer} guards it.
+ */
+class DataPointAggregator {
+
+    private static final Comparator<Dimension> DIMENSION_ORDER = new Comparator<Dimension>() {
+        @Override
+        public int compare(Dimension a, Dimension b) {
+            int result = a.getKey().compareTo(b.getKey());
+            return result != 0 ? result : a.getValue().compareTo(b.getValue());
+        }
+    };
+
+    private final Map<String, Map<SeriesKey, DataPoint>> pending =
+            new HashMap<String, Map<SeriesKey, DataPoint>>();
+    private int size;
+
+    /**
+     * @param token         Auth token the points were sent with
+     * @param dataPoints    Points to merge
+     * @return Number of distinct timeseries now pending
+     */
+    int add(String token, List<DataPoint> dataPoints) {
+        Map<SeriesKey, DataPoint> series = pending.get(token);
+        if (series == null) {
+            series = new LinkedHashMap<SeriesKey, DataPoint>();
+            pending.put(token, series);
+        }
+        for (DataPoint dataPoint : dataPoints) {
+            SeriesKey key = new SeriesKey(dataPoint);
+            DataPoint existing = series.get(key);
+            if (existing == null) {
+                series.put(key, dataPoint);
+                size++;
+            } else {
+                series.put(key, merge(existing, dataPoint));
+            }
+        }
+        return size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return Pending points grouped by auth token; the aggregator is empty afterwards
+     */
+    Map<String, List<DataPoint>> drain() {
+        Map<String, List<DataPoint>> drained = new HashMap<String, List<DataPoint>>();
+        for (Map.Entry<String, Map<SeriesKey, DataPoint>> entry : pending.entrySet()) {
+            drained.put(entry.getKey(), new ArrayList<DataPoint>(entry.getValue().values()));
+        }
+        pending.clear();
+        size = 0;
+        return drained;
+    }
+
+    static DataPoint merge(DataPoint existing, DataPoint incoming) {
+        if (existing.getMetricType() == MetricType.COUNTER && isNumeric(existing.getValue())
+                && isNumeric(incoming.getValue())) {
+            Datum.Builder sum = Datum.newBuilder();
+            if (existing.getValue().hasIntValue() && incoming.getValue().hasIntValue()) {
+                sum.setIntValue(existing.getValue().getIntValue()
+                        + incoming.getValue().getIntValue());
+            } else {
+                sum.setDoubleValue(toDouble(existing.getValue()) + toDouble(incoming.getValue()));
+            }
+            DataPoint.Builder merged = incoming.toBuilder().setValue(sum);
+            if (existing.getTimestamp() > incoming.getTimestamp()) {
+                merged.setTimestamp(existing.getTimestamp());
+            }
+            return ProtocolBufferBuilders.build(merged);
+        }
+        return existing.getTimestamp() > incoming.getTimestamp() ? existing : incoming;
+    }
+
+    private static boolean isNumeric(Datum datum) {
+        return datum.hasIntValue() || datum.hasDoubleValue();
+    }
+
+    private static double toDouble(Datum datum) {
+        return datum.hasIntValue() ? datum.getIntValue() : datum.getDoubleValue();
+    }
+
+    /**
+     * Identity of a timeseries: source, metric, metric type and dimensions regardless of order.
+     */
+    private static final class SeriesKey {
+        private final String source;
+        private final String metric;
+        private final MetricType metricType;
+        private final List<Dimension> dimensions;
+        private final int hashCode;
+
+        SeriesKey(DataPoint dataPoint) {
+            this.source = dataPoint.getSource();
+            this.metric = dataPoint.getMetric();
+            this.metricType = dataPoint.getMetricType();
+            if (dataPoint.getDimensionsCount() > 1) {
+                List<Dimension> sorted = new ArrayList<Dimension>(dataPoint.getDimensionsList());
+                Collections.sort(sorted, DIMENSION_ORDER);
+                this.dimensions = sorted;
+            } else {
+                this.dimensions = dataPoint.getDimensionsList();
+            }
+            int result = source.hashCode();
+            result = 31 * result + metric.hashCode();
+            result = 31 * result + metricType.hashCode();
+            this.hashCode = 31 * result + dimensions.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) o;
+            return hashCode == other.hashCode && metricType == other.metricType
+                    && metric.equals(other.metric) && source.equals(other.source)
+                    && dimensions.equals(other.dimensions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
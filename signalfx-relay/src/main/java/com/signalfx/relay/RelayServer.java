@@ -0,0 +1,372 @@
+package com.signalfx.relay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.signalfx.metrics.SignalFxMetricsException;
+import com.signalfx.metrics.connection.DataPointReceiver;
+import com.signalfx.metrics.connection.DataPointReceiverFactory;
+import com.signalfx.metrics.connection.EventReceiver;
+import com.signalfx.metrics.connection.EventReceiverFactory;
+import com.signalfx.metrics.errorhandler.MetricErrorImpl;
+import com.signalfx.metrics.errorhandler.MetricErrorType;
+import com.signalfx.metrics.errorhandler.OnSendErrorHandler;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+/**
+ * <p>Host-local relay for the ingest API.  Processes on the host send {@code /v2/datapoint} and
+ * {@code /v2/event} requests to the relay instead of SignalFx; the relay merges what it receives
+ * and forwards it upstream in large batches, so the host keeps a single set of upstream
+ * connections no matter how many processes report.</p>
+ *
+ * <p>Datapoints of the same timeseries received between two flushes are pre-aggregated (see
+ * {@link DataPointAggregator}); events are batched as-is.  Everything is kept per auth token,
+ * and requests without an {@code X-SF-TOKEN} header are rejected with 401.</p>
+ *
+ * <p>Timeseries are identified by metric and dimensions only, not by the process that sent them:
+ * processes reporting a gauge with the same identity overwrite each other, and only the value
+ * received last before a flush is forwarded.  Give each process a distinguishing dimension if
+ * their values must all reach SignalFx.</p>
+ *
+ * <pre>
+ * {@code
+ *  RelayServer relay = new RelayServer.Builder(
+ *          new HttpDataPointProtobufReceiverFactory(endpoint),
+ *          new HttpEventProtobufReceiverFactory(endpoint))
+ *      .setPort(8080)
+ *      .build();
+ *  relay.start();
+ * }
+ * </pre>
+ */
+public class RelayServer implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(RelayServer.class);
+
+    public static final String DEFAULT_HOST = "127.0.0.1";
+    public static final int DEFAULT_FLUSH_INTERVAL_MS = 1000;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 10000;
+
+    private final DataPointReceiverFactory dataPointReceiverFactory;
+    private final EventReceiverFactory eventReceiverFactory;
+    private final Collection<OnSendErrorHandler> onSendErrorHandlers;
+    private final int flushIntervalMs;
+    private final int maxBatchSize;
+    private final Server server;
+    private final ServerConnector connector;
+    private final ScheduledExecutorService flusher;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final DataPointAggregator dataPoints = new DataPointAggregator();
+    private Map<String, List<SignalFxProtocolBuffers.Event>> events =
+            new HashMap<String, List<SignalFxProtocolBuffers.Event>>();
+    private int eventCount;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private DataPointReceiver dataPointReceiver;
+    private EventReceiver eventReceiver;
+
+    protected RelayServer(Builder builder) {
+        this.dataPointReceiverFactory = builder.dataPointReceiverFactory;
+        this.eventReceiverFactory = builder.eventReceiverFactory;
+        this.onSendErrorHandlers = new ArrayList<OnSendErrorHandler>(builder.onSendErrorHandlers);
+        this.flushIntervalMs = builder.flushIntervalMs;
+        this.maxBatchSize = builder.maxBatchSize;
+
+        this.server = new Server();
+        this.connector = new ServerConnector(server);
+        this.connector.setHost(builder.host);
+        this.connector.setPort(builder.port);
+        this.server.addConnector(connector);
+        this.server.setHandler(new IngestHandler());
+
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "signalfx-relay-flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts accepting requests and flushing upstream.
+     *
+     * @throws IOException if the relay could not listen on its port
+     */
+    public void start() throws IOException {
+        if (dataPointReceiverFactory != null) {
+            dataPointReceiver = dataPointReceiverFactory.createDataPointReceiver();
+        }
+        if (eventReceiverFactory != null) {
+            eventReceiver = eventReceiverFactory.createEventReceiver();
+        }
+        try {
+            server.start();
+        } catch (Exception e) {
+            throw new IOException("Unable to start relay", e);
+        }
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        log.info("relay listening on {}", getURI());
+    }
+
+    /**
+     * @return Address the relay listens on, once started
+     */
+    public URI getURI() {
+        return URI.create("http://" + connector.getHost() + ":" + connector.getLocalPort());
+    }
+
+    /**
+     * Sends everything received so far upstream.
+     */
+    public void flush() {
+        Map<String, List<SignalFxProtocolBuffers.DataPoint>> pendingDataPoints;
+        Map<String, List<SignalFxProtocolBuffers.Event>> pendingEvents;
+        lock.lock();
+        try {
+            flushScheduled.set(false);
+            pendingDataPoints = dataPoints.drain();
+            pendingEvents = events;
+            events = new HashMap<String, List<SignalFxProtocolBuffers.Event>>();
+            eventCount = 0;
+        } finally {
+            lock.unlock();
+        }
+
+        for (Map.Entry<String, List<SignalFxProtocolBuffers.DataPoint>> entry
+                : pendingDataPoints.entrySet()) {
+            List<SignalFxProtocolBuffers.DataPoint> points = entry.getValue();
+            for (int i = 0; i < points.size(); i += maxBatchSize) {
+                try {
+                    dataPointReceiver.addDataPoints(entry.getKey(),
+                            points.subList(i, Math.min(points.size(), i + maxBatchSize)));
+                } catch (SignalFxMetricsException e) {
+                    communicateError("Unable to relay datapoints",
+                            MetricErrorType.DATAPOINT_SEND_ERROR, e);
+                }
+            }
+        }
+        for (Map.Entry<String, List<SignalFxProtocolBuffers.Event>> entry
+                : pendingEvents.entrySet()) {
+            try {
+                eventReceiver.addEvents(entry.getKey(), entry.getValue());
+            } catch (SignalFxMetricsException e) {
+                communicateError("Unable to relay events", MetricErrorType.EVENT_SEND_ERROR, e);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting requests and flushes what is still pending.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            server.stop();
+        } catch (Exception e) {
+            throw new IOException("Unable to stop relay", e);
+        } finally {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(flushIntervalMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flush();
+        }
+    }
+
+    private void addDataPoints(String token, List<SignalFxProtocolBuffers.DataPoint> points) {
+        int pending;
+        lock.lock();
+        try {
+            pending = dataPoints.add(token, points);
+        } finally {
+            lock.unlock();
+        }
+        flushIfFull(pending);
+    }
+
+    private void addEvents(String token, List<SignalFxProtocolBuffers.Event> received) {
+        int pending;
+        lock.lock();
+        try {
+            List<SignalFxProtocolBuffers.Event> tokenEvents = events.get(token);
+            if (tokenEvents == null) {
+                tokenEvents = new ArrayList<SignalFxProtocolBuffers.Event>();
+                events.put(token, tokenEvents);
+            }
+            tokenEvents.addAll(received);
+            eventCount += received.size();
+            pending = eventCount;
+        } finally {
+            lock.unlock();
+        }
+        flushIfFull(pending);
+    }
+
+    private void flushIfFull(int pending) {
+        if (pending >= maxBatchSize && flushScheduled.compareAndSet(false, true)) {
+            flusher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    private void communicateError(String message, MetricErrorType code,
+                                  SignalFxMetricsException signalfxMetricsException) {
+        log.debug(message, signalfxMetricsException);
+        for (OnSendErrorHandler onSendErrorHandler : onSendErrorHandlers) {
+            onSendErrorHandler
+                    .handleError(new MetricErrorImpl(message, code, signalfxMetricsException));
+        }
+    }
+
+    private class IngestHandler extends AbstractHandler {
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request,
+                           HttpServletResponse response) throws IOException {
+            baseRequest.setHandled(true);
+            boolean datapoints = "/v2/datapoint".equals(target);
+            if (!datapoints && !"/v2/event".equals(target)) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            if (!"POST".equals(request.getMethod())) {
+                response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+                return;
+            }
+
+            String token = request.getHeader("X-SF-TOKEN");
+            if (token == null || token.isEmpty()) {
+                response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "missing X-SF-TOKEN");
+                return;
+            }
+            InputStream body = request.getInputStream();
+            if ("gzip".equalsIgnoreCase(request.getHeader("Content-Encoding"))) {
+                body = new GZIPInputStream(body);
+            }
+            try {
+                if (datapoints) {
+                    if (dataPointReceiver == null) {
+                        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                        return;
+                    }
+                    addDataPoints(token, SignalFxProtocolBuffers.DataPointUploadMessage
+                            .parseFrom(body).getDatapointsList());
+                } else {
+                    if (eventReceiver == null) {
+                        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                        return;
+                    }
+                    addEvents(token, SignalFxProtocolBuffers.EventUploadMessage.parseFrom(body)
+                            .getEventsList());
+                }
+            } catch (InvalidProtocolBufferException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("application/json");
+            response.getWriter().write("\"OK\"");
+        }
+    }
+
+    /**
+     * Builder of relay instances
+     */
+    public static class Builder {
+        private final DataPointReceiverFactory dataPointReceiverFactory;
+        private final EventReceiverFactory eventReceiverFactory;
+        private final List<OnSendErrorHandler> onSendErrorHandlers =
+                new ArrayList<OnSendErrorHandler>();
+        private String host = DEFAULT_HOST;
+        private int port = 0;
+        private int flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+        private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+        /**
+         * @param dataPointReceiverFactory    Upstream for datapoints, or null to refuse them
+         * @param eventReceiverFactory        Upstream for events, or null to refuse them
+         */
+        public Builder(DataPointReceiverFactory dataPointReceiverFactory,
+                       EventReceiverFactory eventReceiverFactory) {
+            this.dataPointReceiverFactory = dataPointReceiverFactory;
+            this.eventReceiverFactory = eventReceiverFactory;
+        }
+
+        public Builder setHost(String host) {
+            this.host = host;
+            return this;
+        }
+
+        /**
+         * @param port    Port to listen on; 0 picks a free port
+         * @return this
+         */
+        public Builder setPort(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder setFlushIntervalMs(int flushIntervalMs) {
+            this.flushIntervalMs = flushIntervalMs;
+            return this;
+        }
+
+        /**
+         * @param maxBatchSize    Pending timeseries or events that trigger an early flush; also
+         *                        the largest batch sent upstream in one request
+         * @return this
+         */
+        public Builder setMaxBatchSize(int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        public Builder addOnSendErrorHandler(OnSendErrorHandler onSendErrorHandler) {
+            this.onSendErrorHandlers.add(onSendErrorHandler);
+            return this;
+        }
+
+        public RelayServer build() {
+            return new RelayServer(this);
+        }
+    }
+}
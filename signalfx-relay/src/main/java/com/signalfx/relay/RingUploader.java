@@ -0,0 +1,270 @@
+package com.signalfx.relay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.signalfx.metrics.SignalFxMetricsException;
+import com.signalfx.metrics.connection.DataPointReceiver;
+import com.signalfx.metrics.connection.DataPointReceiverFactory;
+import com.signalfx.metrics.connection.MappedRingDataPointReceiver;
+import com.signalfx.metrics.connection.MappedRingReader;
+import com.signalfx.metrics.errorhandler.MetricErrorImpl;
+import com.signalfx.metrics.errorhandler.MetricErrorType;
+import com.signalfx.metrics.errorhandler.OnSendErrorHandler;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+/**
+ * <p>Host-local uploader for datapoints handed over through memory-mapped rings.  Application
+ * processes each write their own {@code *.ring} file in a shared directory with
+ * {@link MappedRingDataPointReceiver}; the uploader picks up new rings as they appear, tails all
+ * of them and sends their datapoints upstream.</p>
+ *
+ * <p>A ring's cursor is committed only after its batch was accepted upstream.  After a failed
+ * send the batch is read again on the next poll, so datapoints are delivered at least once.</p>
+ */
+public class RingUploader implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(RingUploader.class);
+
+    public static final String RING_SUFFIX = ".ring";
+    public static final int DEFAULT_POLL_INTERVAL_MS = 100;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 10000;
+
+    private final File directory;
+    private final DataPointReceiverFactory dataPointReceiverFactory;
+    private final Collection<OnSendErrorHandler> onSendErrorHandlers;
+    private final int pollIntervalMs;
+    private final int maxBatchSize;
+    private final long stallTimeoutMs;
+    private final ScheduledExecutorService poller;
+    private final Map<File, MappedRingReader> readers = new LinkedHashMap<File, MappedRingReader>();
+
+    private DataPointReceiver dataPointReceiver;
+
+    protected RingUploader(Builder builder) {
+        this.directory = builder.directory;
+        this.dataPointReceiverFactory = builder.dataPointReceiverFactory;
+        this.onSendErrorHandlers = new ArrayList<OnSendErrorHandler>(builder.onSendErrorHandlers);
+        this.pollIntervalMs = builder.pollIntervalMs;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.stallTimeoutMs = builder.stallTimeoutMs;
+        this.poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "signalfx-ring-uploader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts polling the ring directory.
+     */
+    public void start() {
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, 0, pollIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Picks up new rings, uploads everything published so far and releases deleted rings.
+     */
+    public synchronized void poll() {
+        if (dataPointReceiver == null) {
+            dataPointReceiver = dataPointReceiverFactory.createDataPointReceiver();
+        }
+        discoverRings();
+        for (MappedRingReader reader : readers.values()) {
+            upload(reader);
+        }
+        releaseDeletedRings();
+    }
+
+    /**
+     * @return Number of rings currently tailed
+     */
+    public synchronized int getRingCount() {
+        return readers.size();
+    }
+
+    private void discoverRings() {
+        File[] rings = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(RING_SUFFIX);
+            }
+        });
+        if (rings == null) {
+            return;
+        }
+        for (File ring : rings) {
+            if (!readers.containsKey(ring)) {
+                try {
+                    readers.put(ring, new MappedRingReader(ring, stallTimeoutMs));
+                } catch (IOException e) {
+                    // Possibly still being created by its writer; retried on the next poll.
+                    log.debug("Unable to open ring {}", ring, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Unmaps the rings whose file was deleted, for instance by a restarted producer, so that
+     * their disk space is freed.  What they published was uploaded just before.
+     */
+    private void releaseDeletedRings() {
+        Iterator<Map.Entry<File, MappedRingReader>> it = readers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<File, MappedRingReader> entry = it.next();
+            if (entry.getKey().exists()) {
+                continue;
+            }
+            it.remove();
+            try {
+                entry.getValue().close();
+            } catch (IOException e) {
+                log.debug("Unable to close deleted ring {}", entry.getKey(), e);
+            }
+        }
+    }
+
+    private void upload(MappedRingReader reader) {
+        final Map<String, List<SignalFxProtocolBuffers.DataPoint>> batch =
+                new HashMap<String, List<SignalFxProtocolBuffers.DataPoint>>();
+        MappedRingReader.RecordHandler handler = new MappedRingReader.RecordHandler() {
+            @Override
+            public void onRecord(String auth, SignalFxProtocolBuffers.DataPoint dataPoint) {
+                List<SignalFxProtocolBuffers.DataPoint> points = batch.get(auth);
+                if (points == null) {
+                    points = new ArrayList<SignalFxProtocolBuffers.DataPoint>();
+                    batch.put(auth, points);
+                }
+                points.add(dataPoint);
+            }
+        };
+        while (true) {
+            batch.clear();
+            int read = reader.read(handler, maxBatchSize);
+            try {
+                for (Map.Entry<String, List<SignalFxProtocolBuffers.DataPoint>> entry
+                        : batch.entrySet()) {
+                    dataPointReceiver.addDataPoints(entry.getKey(), entry.getValue());
+                }
+            } catch (SignalFxMetricsException e) {
+                reader.rewind();
+                communicateError("Unable to upload datapoints",
+                        MetricErrorType.DATAPOINT_SEND_ERROR, e);
+                return;
+            }
+            reader.commit();
+            if (read < maxBatchSize) {
+                return;
+            }
+        }
+    }
+
+    private void communicateError(String message, MetricErrorType code,
+                                  SignalFxMetricsException signalfxMetricsException) {
+        log.debug(message, signalfxMetricsException);
+        for (OnSendErrorHandler onSendErrorHandler : onSendErrorHandlers) {
+            onSendErrorHandler
+                    .handleError(new MetricErrorImpl(message, code, signalfxMetricsException));
+        }
+    }
+
+    /**
+     * Stops polling, uploads what is still published and releases the rings.
+     */
+    @Override
+    public void close() throws IOException {
+        poller.shutdown();
+        try {
+            poller.awaitTermination(pollIntervalMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            poll();
+            for (MappedRingReader reader : readers.values()) {
+                reader.close();
+            }
+            readers.clear();
+        }
+    }
+
+    /**
+     * Builder of uploader instances
+     */
+    public static class Builder {
+        private final File directory;
+        private final DataPointReceiverFactory dataPointReceiverFactory;
+        private final List<OnSendErrorHandler> onSendErrorHandlers =
+                new ArrayList<OnSendErrorHandler>();
+        private int pollIntervalMs = DEFAULT_POLL_INTERVAL_MS;
+        private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        private long stallTimeoutMs = MappedRingReader.DEFAULT_STALL_TIMEOUT_MS;
+
+        /**
+         * @param directory                   Directory holding the {@code *.ring} files
+         * @param dataPointReceiverFactory    Upstream for datapoints
+         */
+        public Builder(File directory, DataPointReceiverFactory dataPointReceiverFactory) {
+            this.directory = directory;
+            this.dataPointReceiverFactory = dataPointReceiverFactory;
+        }
+
+        public Builder setPollIntervalMs(int pollIntervalMs) {
+            this.pollIntervalMs = pollIntervalMs;
+            return this;
+        }
+
+        /**
+         * @param maxBatchSize    Most records read from one ring per upstream request
+         * @return this
+         */
+        public Builder setMaxBatchSize(int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * @param stallTimeoutMs    How long a record that was never completely written may hold
+         *                          up the rest of its ring
+         * @return this
+         */
+        public Builder setStallTimeoutMs(long stallTimeoutMs) {
+            this.stallTimeoutMs = stallTimeoutMs;
+            return this;
+        }
+
+        public Builder addOnSendErrorHandler(OnSendErrorHandler onSendErrorHandler) {
+            this.onSendErrorHandlers.add(onSendErrorHandler);
+            return this;
+        }
+
+        public RingUploader build() {
+            return new RingUploader(this);
+        }
+    }
+}
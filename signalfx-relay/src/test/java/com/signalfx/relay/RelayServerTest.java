@@ -0,0 +1,204 @@
+package com.signalfx.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.signalfx.endpoint.SignalFxEndpoint;
+import com.signalfx.metrics.connection.DataPointReceiver;
+import com.signalfx.metrics.connection.EventReceiver;
+import com.signalfx.metrics.connection.HttpDataPointProtobufReceiverFactory;
+import com.signalfx.metrics.connection.HttpEventProtobufReceiverFactory;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.DataPoint;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.DataPointUploadMessage;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.Datum;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.Dimension;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.Event;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.EventUploadMessage;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.MetricType;
+
+public class RelayServerTest {
+
+    private Server upstream;
+    private UpstreamHandler upstreamHandler;
+    private RelayServer relay;
+    private SignalFxEndpoint relayEndpoint;
+
+    @Before
+    public void setUp() throws Exception {
+        upstreamHandler = new UpstreamHandler();
+        upstream = new Server(0);
+        upstream.setHandler(upstreamHandler);
+        upstream.start();
+
+        URI uri = upstream.getURI();
+        SignalFxEndpoint upstreamEndpoint =
+                new SignalFxEndpoint(uri.getScheme(), uri.getHost(), uri.getPort());
+        relay = new RelayServer.Builder(
+                new HttpDataPointProtobufReceiverFactory(upstreamEndpoint),
+                new HttpEventProtobufReceiverFactory(upstreamEndpoint))
+                .setFlushIntervalMs(60000)
+                .setMaxBatchSize(100)
+                .build();
+        relay.start();
+        relayEndpoint = new SignalFxEndpoint("http", relay.getURI().getHost(),
+                relay.getURI().getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        relay.close();
+        upstream.stop();
+    }
+
+    @Test
+    public void testMergesClientsIntoOneBatch() throws Exception {
+        DataPointReceiver first = new HttpDataPointProtobufReceiverFactory(relayEndpoint)
+                .createDataPointReceiver();
+        DataPointReceiver second = new HttpDataPointProtobufReceiverFactory(relayEndpoint)
+                .createDataPointReceiver();
+
+        first.addDataPoints("token", Arrays.asList(
+                point("requests", MetricType.COUNTER, 2, 1000, "host", "a", "app", "x"),
+                point("heap", MetricType.GAUGE, 10, 1000, "host", "a")));
+        second.addDataPoints("token", Arrays.asList(
+                point("requests", MetricType.COUNTER, 3, 2000, "app", "x", "host", "a"),
+                point("heap", MetricType.GAUGE, 20, 2000, "host", "a"),
+                point("heap", MetricType.GAUGE, 30, 1500, "host", "b")));
+        second.addDataPoints("other", Arrays.asList(
+                point("heap", MetricType.GAUGE, 40, 1000, "host", "a")));
+
+        relay.flush();
+
+        assertEquals(2, upstreamHandler.datapointRequests.size());
+        Map<String, DataPoint> byKey = new HashMap<String, DataPoint>();
+        for (DataPoint dp : upstreamHandler.datapoints.get("token")) {
+            for (Dimension dimension : dp.getDimensionsList()) {
+                if ("host".equals(dimension.getKey())) {
+                    byKey.put(dp.getMetric() + "/" + dimension.getValue(), dp);
+                }
+            }
+        }
+        assertEquals(3, byKey.size());
+        assertEquals(5, byKey.get("requests/a").getValue().getIntValue());
+        assertEquals(2000, byKey.get("requests/a").getTimestamp());
+        assertEquals(20, byKey.get("heap/a").getValue().getIntValue());
+        assertEquals(30, byKey.get("heap/b").getValue().getIntValue());
+        assertEquals(40, upstreamHandler.datapoints.get("other").get(0).getValue().getIntValue());
+    }
+
+    @Test
+    public void testRelaysEvents() throws Exception {
+        EventReceiver client = new HttpEventProtobufReceiverFactory(relayEndpoint)
+                .createEventReceiver();
+        client.addEvents("token", Arrays.asList(
+                Event.newBuilder().setEventType("deploy").build(),
+                Event.newBuilder().setEventType("restart").build()));
+
+        relay.flush();
+
+        assertEquals(2, upstreamHandler.events.get("token").size());
+        assertEquals("restart", upstreamHandler.events.get("token").get(1).getEventType());
+    }
+
+    @Test
+    public void testFlushesWhenBatchIsFull() throws Exception {
+        DataPointReceiver client = new HttpDataPointProtobufReceiverFactory(relayEndpoint)
+                .createDataPointReceiver();
+        DataPoint[] points = new DataPoint[150];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = point("metric" + i, MetricType.GAUGE, i, 1000, "host", "a");
+        }
+        client.addDataPoints("token", Arrays.asList(points));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (upstreamHandler.datapointRequests.size() < 2
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(upstreamHandler.datapointRequests.size() >= 2);
+        assertEquals(150, upstreamHandler.datapoints.get("token").size());
+    }
+
+    @Test
+    public void testRejectsRequestsWithoutToken() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                relay.getURI() + "/v2/datapoint").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-protobuf");
+        OutputStream out = connection.getOutputStream();
+        DataPointUploadMessage.newBuilder()
+                .addDatapoints(point("heap", MetricType.GAUGE, 1, 1000, "host", "a"))
+                .build().writeTo(out);
+        out.close();
+
+        assertEquals(HttpServletResponse.SC_UNAUTHORIZED, connection.getResponseCode());
+        relay.flush();
+        assertEquals(0, upstreamHandler.datapointRequests.size());
+    }
+
+    private static DataPoint point(String metric, MetricType type, long value, long timestamp,
+                                   String... dimensions) {
+        DataPoint.Builder builder = DataPoint.newBuilder().setMetric(metric).setMetricType(type)
+                .setTimestamp(timestamp).setValue(Datum.newBuilder().setIntValue(value));
+        for (int i = 0; i < dimensions.length; i += 2) {
+            builder.addDimensions(Dimension.newBuilder().setKey(dimensions[i])
+                    .setValue(dimensions[i + 1]));
+        }
+        return builder.build();
+    }
+
+    private static class UpstreamHandler extends AbstractHandler {
+        final List<String> datapointRequests = new CopyOnWriteArrayList<String>();
+        final Map<String, List<DataPoint>> datapoints = new HashMap<String, List<DataPoint>>();
+        final Map<String, List<Event>> events = new HashMap<String, List<Event>>();
+
+        @Override
+        public synchronized void handle(String target, Request baseRequest,
+                                        HttpServletRequest request,
+                                        HttpServletResponse response) throws IOException {
+            String token = request.getHeader("X-SF-TOKEN");
+            InputStream body = request.getInputStream();
+            if ("gzip".equals(request.getHeader("Content-Encoding"))) {
+                body = new GZIPInputStream(body);
+            }
+            if ("/v2/datapoint".equals(target)) {
+                List<DataPoint> received = DataPointUploadMessage.parseFrom(body)
+                        .getDatapointsList();
+                if (!datapoints.containsKey(token)) {
+                    datapoints.put(token, new CopyOnWriteArrayList<DataPoint>());
+                }
+                datapoints.get(token).addAll(received);
+                datapointRequests.add(token);
+            } else if ("/v2/event".equals(target)) {
+                events.put(token, EventUploadMessage.parseFrom(body).getEventsList());
+            }
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().write("\"OK\"");
+            baseRequest.setHandled(true);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.signalfx.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.signalfx.metrics.connection.MappedRingDataPointReceiver;
+import com.signalfx.metrics.connection.StaticDataPointReceiverFactory;
+import com.signalfx.metrics.connection.StoredDataPointReceiver;
+import com.signalfx.metrics.errorhandler.MetricError;
+import com.signalfx.metrics.errorhandler.OnSendErrorHandler;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.DataPoint;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.Datum;
+
+public class RingUploaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testUploadsEveryRingAndRetriesFailedBatches() throws Exception {
+        File directory = folder.newFolder();
+        MappedRingDataPointReceiver first =
+                new MappedRingDataPointReceiver(new File(directory, "first.ring"), 16, 128);
+        MappedRingDataPointReceiver second =
+                new MappedRingDataPointReceiver(new File(directory, "second.ring"), 16, 128);
+
+        StoredDataPointReceiver upstream = new StoredDataPointReceiver();
+        final AtomicInteger errors = new AtomicInteger();
+        RingUploader uploader = new RingUploader.Builder(directory,
+                new StaticDataPointReceiverFactory(upstream))
+                .addOnSendErrorHandler(new OnSendErrorHandler() {
+                    @Override
+                    public void handleError(MetricError metricError) {
+                        errors.incrementAndGet();
+                    }
+                })
+                .build();
+
+        first.addDataPoints("token", Arrays.asList(point("a", 1), point("b", 2)));
+        second.addDataPoints("token", Arrays.asList(point("a", 3)));
+
+        upstream.throwOnAdd = true;
+        uploader.poll();
+        assertEquals(2, errors.get());
+        assertEquals(3, first.getPendingRecords() + second.getPendingRecords());
+
+        upstream.throwOnAdd = false;
+        uploader.poll();
+        assertEquals(3, upstream.addDataPoints.size());
+        assertEquals(0, first.getPendingRecords() + second.getPendingRecords());
+        assertEquals(2, upstream.valuesFor("", "a").size());
+
+        first.addDataPoints("token", Arrays.asList(point("c", 4)));
+        uploader.close();
+        assertEquals(4, upstream.addDataPoints.size());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void testReleasesDeletedRings() throws Exception {
+        File directory = folder.newFolder();
+        File file = new File(directory, "app.ring");
+        MappedRingDataPointReceiver writer = new MappedRingDataPointReceiver(file, 16, 128);
+        StoredDataPointReceiver upstream = new StoredDataPointReceiver();
+        RingUploader uploader = new RingUploader.Builder(directory,
+                new StaticDataPointReceiverFactory(upstream)).build();
+
+        uploader.poll();
+        assertEquals(1, uploader.getRingCount());
+
+        // The producer goes away after publishing a last datapoint.
+        writer.addDataPoints("token", Arrays.asList(point("a", 1)));
+        writer.close();
+        assertTrue(file.delete());
+        uploader.poll();
+        assertEquals(1, upstream.addDataPoints.size());
+        assertEquals(0, uploader.getRingCount());
+        uploader.close();
+    }
+
+    private static DataPoint point(String metric, long value) {
+        return DataPoint.newBuilder().setMetric(metric)
+                .setValue(Datum.newBuilder().setIntValue(value)).build();
+    }
+}
@@ -4,12 +4,19 @@
 package com.signalfx.signalflow;
 
 import java.io.Closeable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.signalfx.signalflow.StreamMessage.Kind;
+
 /**
  * Abstract immutable representation for open channels that receive streaming data from a SignalFlow
  * computation.
@@ -32,9 +39,19 @@ public abstract class Channel implements Iterator<ChannelMessage>, Closeable {
 
     protected boolean isClosed = false;
     protected Iterator<StreamMessage> iterator;
+    private volatile Set<Kind> ignoredKinds = Collections.emptySet();
 
     protected Channel() {
-        this.name = "channel-" + RandomStringUtils.random(CHANNEL_NAME_LENGTH, true, true);
+        this((String) null);
+    }
+
+    /**
+     * @param name
+     *            name of the channel, or null for a new random one
+     */
+    protected Channel(String name) {
+        this.name = name != null ? name
+                : "channel-" + RandomStringUtils.random(CHANNEL_NAME_LENGTH, true, true);
     }
 
     public Channel(final Iterator<StreamMessage> iterator) {
@@ -59,6 +76,9 @@ public abstract class Channel implements Iterator<ChannelMessage>, Closeable {
             ChannelMessage message = null;
             while (message == null) {
                 StreamMessage streamMessage = this.iterator.next();
+                if (isIgnored(streamMessage.getKind())) {
+                    continue;
+                }
                 message = ChannelMessage.decodeStreamMessage(streamMessage);
                 if (message == null) {
                     log.warn("Unsupported control message {}. ignoring!", streamMessage);
@@ -71,6 +91,70 @@ public abstract class Channel implements Iterator<ChannelMessage>, Closeable {
         }
     }
 
+    /**
+     * Waits up to the given time for the next message of the channel.
+     *
+     * This implementation simply blocks until the next message arrives; transports that can wait
+     * with a timeout override it.
+     *
+     * @param timeout
+     *            how long to wait
+     * @param unit
+     *            unit of the timeout
+     * @return the next message, or null if none arrived in time
+     * @throws java.util.NoSuchElementException
+     *             if the channel has no more messages
+     */
+    public ChannelMessage poll(long timeout, TimeUnit unit) {
+        return next();
+    }
+
+    /**
+     * Registers a callback to run, on the transport's thread, every time a message becomes
+     * available, so that consumers can read with {@link #poll(long, TimeUnit)} instead of
+     * blocking in {@link #next()}.
+     *
+     * This implementation cannot notify anyone and returns false; transports that can override
+     * it.
+     *
+     * @param listener
+     *            callback to run when a message is available, or null to remove it
+     * @return true if the channel will notify the listener
+     */
+    public boolean setMessageListener(Runnable listener) {
+        return false;
+    }
+
+    /**
+     * Discards the messages of the given kinds without decoding them, for consumers that do not
+     * use them. Control and error messages, which drive the computation, cannot be ignored.
+     *
+     * @param kinds
+     *            kinds of messages to discard
+     */
+    public void setIgnoredKinds(Collection<Kind> kinds) {
+        if (kinds.contains(Kind.CONTROL) || kinds.contains(Kind.ERROR)) {
+            throw new IllegalArgumentException("control and error messages cannot be ignored");
+        }
+        this.ignoredKinds = kinds.isEmpty() ? Collections.<Kind> emptySet() : EnumSet.copyOf(kinds);
+    }
+
+    /**
+     * @param kind
+     *            kind of message
+     * @return true if messages of that kind are discarded without being decoded
+     */
+    public boolean isIgnored(Kind kind) {
+        return ignoredKinds.contains(kind);
+    }
+
+    /**
+     * @return number of messages received but not yet consumed, for transports that queue them
+     */
+    public int getQueueDepth() {
+        return 0;
+    }
+
     public void remove() {
         if (!isClosed()) {
             this.iterator.remove();
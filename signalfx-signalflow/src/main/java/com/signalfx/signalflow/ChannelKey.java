@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+/**
+ * Key of a channel in the registry of a WebSocket connection: the up to 16 ASCII bytes of its
+ * name, zero-padded and packed into two longs, so that binary frames can be routed straight from
+ * their header bytes without decoding the name into a string.
+ *
+ * A connection reuses a single mutable key for lookups on its reading thread; keys stored in the
+ * registry are never modified.
+ */
+final class ChannelKey {
+
+    static final int LENGTH = 16;
+
+    private long high;
+    private long low;
+
+    ChannelKey() {
+    }
+
+    /**
+     * @param name
+     *            channel name of at most 16 ASCII characters
+     * @return key of the channel
+     */
+    static ChannelKey of(String name) {
+        if (name.length() > LENGTH) {
+            throw new IllegalArgumentException("channel name too long: " + name);
+        }
+        byte[] bytes = new byte[LENGTH];
+        for (int i = 0; i < name.length(); i++) {
+            bytes[i] = (byte) name.charAt(i);
+        }
+        return new ChannelKey().set(bytes, 0);
+    }
+
+    /**
+     * Sets this key from the 16 bytes of a channel name in a frame header.
+     *
+     * @return this key
+     */
+    ChannelKey set(byte[] data, int offset) {
+        this.high = readLong(data, offset);
+        this.low = readLong(data, offset + 8);
+        return this;
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    @Override
+    public int hashCode() {
+        long hash = high * 0x9e3779b97f4a7c15L + low;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ChannelKey)) {
+            return false;
+        }
+        ChannelKey other = (ChannelKey) o;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder name = new StringBuilder(LENGTH);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            appendByte(name, high >>> shift);
+        }
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            appendByte(name, low >>> shift);
+        }
+        return name.toString();
+    }
+
+    private static void appendByte(StringBuilder name, long value) {
+        char c = (char) (value & 0xff);
+        if (c != 0) {
+            name.append(c);
+        }
+    }
+}
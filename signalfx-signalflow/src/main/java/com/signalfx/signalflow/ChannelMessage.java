@@ -5,6 +5,7 @@ package com.signalfx.signalflow;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -85,39 +86,11 @@ public abstract class ChannelMessage {
      */
     public static ChannelMessage decodeStreamMessage(StreamMessage streamMessage)
             throws SignalFlowException {
+        if (streamMessage instanceof DecodedStreamMessage) {
+            return ((DecodedStreamMessage) streamMessage).getMessage();
+        }
         try {
-            ChannelMessage message = null;
-
-            switch (streamMessage.getKind()) {
-
-            case CONTROL:
-                message = mapper.readValue(streamMessage.getData(), ControlMessage.class);
-                break;
-
-            case INFORMATION:
-                message = mapper.readValue(streamMessage.getData(), InfoMessage.class);
-                break;
-
-            case METADATA:
-                message = mapper.readValue(streamMessage.getData(), MetadataMessage.class);
-                break;
-
-            case EXPIRED_TSID:
-                message = mapper.readValue(streamMessage.getData(), ExpiredTsIdMessage.class);
-                break;
-
-            case DATA:
-                message = mapper.readValue(streamMessage.getData(), DataMessage.class);
-                break;
-
-            case EVENT:
-                message = mapper.readValue(streamMessage.getData(), EventMessage.class);
-                break;
-
-            case ERROR:
-                message = mapper.readValue(streamMessage.getData(), ErrorMessage.class);
-                break;
-            }
+            ChannelMessage message = ChannelMessageDecoder.decode(streamMessage);
 
             if (log.isDebugEnabled()) {
                 message.rawdata = streamMessage.getData();
@@ -322,23 +295,59 @@ public abstract class ChannelMessage {
 
     /**
      * Message containing a batch of datapoints generated for a particular iteration.
+     *
+     * Datapoints are kept in parallel primitive arrays of timeseries IDs, values and a bitmap
+     * telling double values from long ones, and can be read by index without boxing. Timeseries
+     * IDs are kept in their 8-byte binary form (see {@link TsIds}) unless one of them has no such
+     * form, in which case all are kept as strings. {@link #getData()} offers the datapoints as a
+     * map, built on its first call.
      */
     public static class DataMessage extends ChannelMessage {
 
-        protected Map<String, Number> data;
         protected long logicalTimestampMs;
+        protected long maxDelayMs = -1;
+
+        private int size;
+        private long[] tsIds;
+        private String[] tsIdStrings;
+        private long[] values;
+        private long[] doubleBitmap;
+        private Map<String, Number> data;
 
         @JsonCreator
         public DataMessage(@JsonProperty("logicalTimestampMs") long logicalTimestampMs,
                            @JsonProperty("data") List<Map<String, Object>> data) {
-            this.channelMessageType = Type.DATA_MESSAGE;
-            this.logicalTimestampMs = logicalTimestampMs;
-            this.data = new HashMap<String, Number>(data.size());
+            this(logicalTimestampMs, data.size());
             for (Map<String, Object> datum : data) {
-                this.data.put((String) datum.get("tsId"), (Number) datum.get("value"));
+                append((String) datum.get("tsId"), (Number) datum.get("value"));
+            }
+        }
+
+        /**
+         * @param logicalTimestampMs    The logical timestamp of the data
+         * @param data                  Map of timeseries ID to datapoint value
+         */
+        public DataMessage(long logicalTimestampMs, Map<String, Number> data) {
+            this(logicalTimestampMs, data.size());
+            for (Map.Entry<String, Number> datum : data.entrySet()) {
+                append(datum.getKey(), datum.getValue());
             }
         }
 
+        /**
+         * Creates an empty message, to be filled with the {@code append} methods.
+         *
+         * @param logicalTimestampMs    The logical timestamp of the data
+         * @param capacity              Expected number of datapoints
+         */
+        public DataMessage(long logicalTimestampMs, int capacity) {
+            this.channelMessageType = Type.DATA_MESSAGE;
+            this.logicalTimestampMs = logicalTimestampMs;
+            this.tsIds = new long[capacity];
+            this.values = new long[capacity];
+            this.doubleBitmap = new long[(capacity + 63) >>> 6];
+        }
+
         /**
          * @return The logical timestamp of the data (millisecond precision).
          */
@@ -347,14 +356,216 @@ public abstract class ChannelMessage {
         }
 
         /**
-         * @return The data, as a map of timeseries ID to datapoint value.
+         * @return The maximum time the computation waits for late data before emitting a
+         *         timestamp, as sent with binary data messages, or -1 if unknown.
+         */
+        public long getMaxDelayMs() {
+            return this.maxDelayMs;
+        }
+
+        /**
+         * @return The number of datapoints in the message.
+         */
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * @return Whether the timeseries IDs are available in binary form through
+         *         {@link #getTsId(int)}.
+         */
+        public boolean hasBinaryTsIds() {
+            return this.tsIds != null;
+        }
+
+        /**
+         * @param index    Index of the datapoint
+         * @return The binary timeseries ID of the datapoint.
+         * @throws IllegalStateException if the message holds timeseries IDs without binary form
+         */
+        public long getTsId(int index) {
+            checkIndex(index);
+            if (tsIds == null) {
+                throw new IllegalStateException("timeseries IDs have no binary form");
+            }
+            return tsIds[index];
+        }
+
+        /**
+         * @param index    Index of the datapoint
+         * @return The timeseries ID of the datapoint in string form.
+         */
+        public String getTsIdString(int index) {
+            checkIndex(index);
+            return tsIds != null ? TsIds.toString(tsIds[index]) : tsIdStrings[index];
+        }
+
+        /**
+         * @param index    Index of the datapoint
+         * @return Whether the datapoint value is a double rather than a long.
+         */
+        public boolean isDoubleValue(int index) {
+            checkIndex(index);
+            return (doubleBitmap[index >>> 6] & (1L << index)) != 0;
+        }
+
+        /**
+         * @param index    Index of the datapoint
+         * @return The datapoint value as a long, truncating double values.
+         */
+        public long getLongValue(int index) {
+            return isDoubleValue(index) ? (long) Double.longBitsToDouble(values[index])
+                    : values[index];
+        }
+
+        /**
+         * @param index    Index of the datapoint
+         * @return The datapoint value as a double.
+         */
+        public double getDoubleValue(int index) {
+            return isDoubleValue(index) ? Double.longBitsToDouble(values[index]) : values[index];
+        }
+
+        /**
+         * @param index    Index of the datapoint
+         * @return The boxed datapoint value, a {@link Long} or a {@link Double}.
+         */
+        public Number getValue(int index) {
+            return isDoubleValue(index) ? (Number) Double.longBitsToDouble(values[index])
+                    : (Number) values[index];
+        }
+
+        /**
+         * @return The data, as a map of timeseries ID to datapoint value. The map is built on
+         *         the first call and rebuilt after data is added; changes made to it are not
+         *         reflected in the message.
          */
         public Map<String, Number> getData() {
+            if (this.data == null) {
+                Map<String, Number> map = new HashMap<String, Number>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    map.put(getTsIdString(i), getValue(i));
+                }
+                this.data = map;
+            }
             return this.data;
         }
 
         public void addData(Map<String, Number> data) {
-            this.data.putAll(data);
+            ensureCapacity(size + data.size());
+            for (Map.Entry<String, Number> datum : data.entrySet()) {
+                append(datum.getKey(), datum.getValue());
+            }
+        }
+
+        /**
+         * Appends the datapoints of another message, typically another batch of the same
+         * logical timestamp.
+         *
+         * @param other    Message to take the datapoints of
+         */
+        public void addData(DataMessage other) {
+            ensureCapacity(size + other.size);
+            if (tsIds != null && other.tsIds != null) {
+                System.arraycopy(other.tsIds, 0, tsIds, size, other.size);
+                System.arraycopy(other.values, 0, values, size, other.size);
+                for (int i = 0; i < other.size; i++) {
+                    if (other.isDoubleValue(i)) {
+                        setDouble(size + i);
+                    }
+                }
+                size += other.size;
+                this.data = null;
+            } else {
+                for (int i = 0; i < other.size; i++) {
+                    append(other.getTsIdString(i), other.getValue(i));
+                }
+            }
+        }
+
+        public void append(long tsId, long value) {
+            if (tsIds == null) {
+                append(TsIds.toString(tsId), value);
+                return;
+            }
+            ensureCapacity(size + 1);
+            tsIds[size] = tsId;
+            values[size] = value;
+            size++;
+            this.data = null;
+        }
+
+        public void append(long tsId, double value) {
+            if (tsIds == null) {
+                append(TsIds.toString(tsId), value);
+                return;
+            }
+            ensureCapacity(size + 1);
+            tsIds[size] = tsId;
+            values[size] = Double.doubleToRawLongBits(value);
+            setDouble(size);
+            size++;
+            this.data = null;
+        }
+
+        /**
+         * @param tsId     Timeseries ID in string form
+         * @param value    Datapoint value; {@link Double} and {@link Float} values are kept as
+         *                 doubles, others as longs. Null values are skipped.
+         */
+        public void append(String tsId, Number value) {
+            if (value == null) {
+                return;
+            }
+            if (tsIds != null && !TsIds.isBinary(tsId)) {
+                useStringTsIds();
+            }
+            ensureCapacity(size + 1);
+            if (tsIds != null) {
+                tsIds[size] = TsIds.parse(tsId);
+            } else {
+                tsIdStrings[size] = tsId;
+            }
+            if (value instanceof Double || value instanceof Float) {
+                values[size] = Double.doubleToRawLongBits(value.doubleValue());
+                setDouble(size);
+            } else {
+                values[size] = value.longValue();
+            }
+            size++;
+            this.data = null;
+        }
+
+        private void useStringTsIds() {
+            tsIdStrings = new String[values.length];
+            for (int i = 0; i < size; i++) {
+                tsIdStrings[i] = TsIds.toString(tsIds[i]);
+            }
+            tsIds = null;
+        }
+
+        private void setDouble(int index) {
+            doubleBitmap[index >>> 6] |= 1L << index;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= values.length) {
+                return;
+            }
+            int newCapacity = Math.max(capacity, values.length * 2);
+            values = Arrays.copyOf(values, newCapacity);
+            doubleBitmap = Arrays.copyOf(doubleBitmap, (newCapacity + 63) >>> 6);
+            if (tsIds != null) {
+                tsIds = Arrays.copyOf(tsIds, newCapacity);
+            } else {
+                tsIdStrings = Arrays.copyOf(tsIdStrings, newCapacity);
+            }
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+            }
         }
     }
 
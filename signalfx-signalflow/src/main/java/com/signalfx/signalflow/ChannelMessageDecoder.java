@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.signalfx.signalflow.ChannelMessage.ChannelAbortMessage;
+import com.signalfx.signalflow.ChannelMessage.ControlMessage;
+import com.signalfx.signalflow.ChannelMessage.DataMessage;
+import com.signalfx.signalflow.ChannelMessage.EndOfChannelMessage;
+import com.signalfx.signalflow.ChannelMessage.ErrorMessage;
+import com.signalfx.signalflow.ChannelMessage.EventMessage;
+import com.signalfx.signalflow.ChannelMessage.ExpiredTsIdMessage;
+import com.signalfx.signalflow.ChannelMessage.InfoMessage;
+import com.signalfx.signalflow.ChannelMessage.JobProgressMessage;
+import com.signalfx.signalflow.ChannelMessage.JobStartMessage;
+import com.signalfx.signalflow.ChannelMessage.MetadataMessage;
+import com.signalfx.signalflow.ChannelMessage.StreamStartMessage;
+
+/**
+ * Decodes the JSON payload of stream messages into channel messages in a single streaming pass,
+ * reading from the message's bytes when it has them. Fields are set directly on the message
+ * objects; only the payloads exposed as maps or lists (metadata, event and info contents) are
+ * built as such, and data points are appended to the {@link DataMessage} as they are read.
+ * Unknown fields are skipped without being decoded.
+ */
+final class ChannelMessageDecoder {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private ChannelMessageDecoder() {
+    }
+
+    /**
+     * @param streamMessage
+     *            message holding the JSON payload
+     * @return the decoded message
+     * @throws IOException
+     *             if the payload is not valid JSON, or is a control message of an unknown event
+     */
+    static ChannelMessage decode(StreamMessage streamMessage) throws IOException {
+        JsonParser parser = streamMessage.getDataBytes() != null
+                ? jsonFactory.createParser(streamMessage.getDataBytes(),
+                        streamMessage.getDataOffset(), streamMessage.getDataLength())
+                : jsonFactory.createParser(streamMessage.getData());
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("expected a JSON object");
+            }
+            switch (streamMessage.getKind()) {
+            case CONTROL:
+                return decodeControl(parser);
+            case INFORMATION:
+                return decodeInfo(parser);
+            case METADATA:
+                return decodeMetadata(parser);
+            case EXPIRED_TSID:
+                return decodeExpiredTsId(parser);
+            case DATA:
+                return decodeData(parser);
+            case EVENT:
+                return decodeEvent(parser);
+            case ERROR:
+                return decodeError(parser);
+            default:
+                throw new IOException("unknown stream message kind: " + streamMessage.getKind());
+            }
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static ChannelMessage decodeControl(JsonParser parser) throws IOException {
+        String event = null;
+        long timestampMs = 0;
+        String handle = null;
+        int progress = 0;
+        LinkedHashMap<String, String> abortInfo = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("event".equals(field)) {
+                event = parser.getValueAsString();
+            } else if ("timestampMs".equals(field)) {
+                timestampMs = parser.getValueAsLong();
+            } else if ("handle".equals(field)) {
+                handle = parser.getValueAsString();
+            } else if ("progress".equals(field)) {
+                progress = parser.getValueAsInt();
+            } else if ("abortInfo".equals(field)
+                    && parser.currentToken() == JsonToken.START_OBJECT) {
+                abortInfo = new LinkedHashMap<String, String>();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String key = parser.currentName();
+                    parser.nextToken();
+                    abortInfo.put(key, parser.getValueAsString());
+                    parser.skipChildren();
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        ControlMessage message;
+        if ("STREAM_START".equals(event)) {
+            message = new StreamStartMessage();
+        } else if ("JOB_START".equals(event)) {
+            JobStartMessage jobStart = new JobStartMessage();
+            jobStart.handle = handle;
+            message = jobStart;
+        } else if ("JOB_PROGRESS".equals(event)) {
+            JobProgressMessage jobProgress = new JobProgressMessage();
+            jobProgress.progress = progress;
+            message = jobProgress;
+        } else if ("CHANNEL_ABORT".equals(event)) {
+            ChannelAbortMessage abort = new ChannelAbortMessage();
+            abort.abortInfo = abortInfo;
+            message = abort;
+        } else if ("END_OF_CHANNEL".equals(event)) {
+            message = new EndOfChannelMessage();
+        } else {
+            throw new IOException("unknown control message event: " + event);
+        }
+        message.timestampMs = timestampMs;
+        return message;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ChannelMessage decodeInfo(JsonParser parser) throws IOException {
+        InfoMessage message = new InfoMessage();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("logicalTimestampMs".equals(field)) {
+                message.logicalTimestampMs = parser.getValueAsLong();
+            } else if ("message".equals(field)) {
+                message.message = (LinkedHashMap<String, Object>) readObject(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return message;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ChannelMessage decodeMetadata(JsonParser parser) throws IOException {
+        MetadataMessage message = new MetadataMessage();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("tsId".equals(field)) {
+                message.tsId = parser.getValueAsString();
+            } else if ("properties".equals(field)) {
+                message.properties = (LinkedHashMap<String, Object>) readObject(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return message;
+    }
+
+    private static ChannelMessage decodeExpiredTsId(JsonParser parser) throws IOException {
+        ExpiredTsIdMessage message = new ExpiredTsIdMessage();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("tsId".equals(field)) {
+                message.tsId = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return message;
+    }
+
+    private static ChannelMessage decodeData(JsonParser parser) throws IOException {
+        DataMessage message = new DataMessage(0, 16);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("logicalTimestampMs".equals(field)) {
+                message.logicalTimestampMs = parser.getValueAsLong();
+            } else if ("data".equals(field) && parser.currentToken() == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    readDatapoint(parser, message);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Appends one {@code {"tsId": ..., "value": ...}} datapoint, without making a string of binary
+     * timeseries IDs.
+     */
+    private static void readDatapoint(JsonParser parser, DataMessage message) throws IOException {
+        long binaryTsId = 0;
+        String tsId = null;
+        boolean binary = false;
+        JsonToken valueToken = JsonToken.VALUE_NULL;
+        long longValue = 0;
+        double doubleValue = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("tsId".equals(field) && token == JsonToken.VALUE_STRING) {
+                char[] chars = parser.getTextCharacters();
+                int offset = parser.getTextOffset();
+                int length = parser.getTextLength();
+                binary = TsIds.isBinary(chars, offset, length);
+                if (binary) {
+                    binaryTsId = TsIds.parse(chars, offset);
+                } else {
+                    tsId = parser.getText();
+                }
+            } else if ("value".equals(field)) {
+                valueToken = token;
+                if (token == JsonToken.VALUE_NUMBER_INT) {
+                    longValue = parser.getNumberValue().longValue();
+                } else if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+                    doubleValue = parser.getDoubleValue();
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (valueToken == JsonToken.VALUE_NUMBER_INT) {
+            if (binary) {
+                message.append(binaryTsId, longValue);
+            } else {
+                message.append(tsId, longValue);
+            }
+        } else if (valueToken == JsonToken.VALUE_NUMBER_FLOAT) {
+            if (binary) {
+                message.append(binaryTsId, doubleValue);
+            } else {
+                message.append(tsId, doubleValue);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ChannelMessage decodeEvent(JsonParser parser) throws IOException {
+        EventMessage message = new EventMessage();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("tsId".equals(field)) {
+                message.tsId = parser.getValueAsString();
+            } else if ("timestampMs".equals(field)) {
+                message.timestampMs = parser.getValueAsLong();
+            } else if ("metadata".equals(field)) {
+                message.metadata = (LinkedHashMap<String, Object>) readObject(parser);
+            } else if ("properties".equals(field)) {
+                message.properties = (LinkedHashMap<String, Object>) readObject(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return message;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ChannelMessage decodeError(JsonParser parser) throws IOException {
+        ErrorMessage message = new ErrorMessage();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("error".equals(field)) {
+                message.error = parser.getValueAsInt();
+            } else if ("errors".equals(field)) {
+                Object errors = readValue(parser);
+                message.errors = errors instanceof ArrayList ? (ArrayList<Object>) errors : null;
+            } else if ("message".equals(field)) {
+                message.message = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return message;
+    }
+
+    /**
+     * @return the object at the current token, or null if it is not an object
+     */
+    private static Map<String, Object> readObject(JsonParser parser) throws IOException {
+        Object value = readValue(parser);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> object = value instanceof Map ? (Map<String, Object>) value : null;
+        return object;
+    }
+
+    /**
+     * Reads the value at the current token the way Jackson binds untyped values: objects as
+     * {@link LinkedHashMap}, arrays as {@link ArrayList}, and integers as the smallest of
+     * Integer, Long or BigInteger.
+     */
+    private static Object readValue(JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+        case START_OBJECT:
+            Map<String, Object> object = new LinkedHashMap<String, Object>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.currentName();
+                parser.nextToken();
+                object.put(key, readValue(parser));
+            }
+            return object;
+        case START_ARRAY:
+            List<Object> array = new ArrayList<Object>();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                array.add(readValue(parser));
+            }
+            return array;
+        case VALUE_STRING:
+            return parser.getText();
+        case VALUE_NUMBER_INT:
+            return parser.getNumberValue();
+        case VALUE_NUMBER_FLOAT:
+            return parser.getDoubleValue();
+        case VALUE_TRUE:
+            return Boolean.TRUE;
+        case VALUE_FALSE:
+            return Boolean.FALSE;
+        default:
+            return null;
+        }
+    }
+}
@@ -4,6 +4,7 @@
 package com.signalfx.signalflow;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -12,6 +13,15 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.signalfx.signalflow.ChannelMessage.ChannelAbortMessage;
 import com.signalfx.signalflow.ChannelMessage.DataMessage;
@@ -20,10 +30,14 @@ import com.signalfx.signalflow.ChannelMessage.ExpiredTsIdMessage;
 import com.signalfx.signalflow.ChannelMessage.InfoMessage;
 import com.signalfx.signalflow.ChannelMessage.JobStartMessage;
 import com.signalfx.signalflow.ChannelMessage.MetadataMessage;
+import com.signalfx.signalflow.StreamMessage.Kind;
 
 /**
  * A live handle to a running SignalFlow computation.
  *
+ * Its output is either pulled by iterating over it, or pushed to a {@link ComputationSubscriber}
+ * once {@link #subscribe(ComputationSubscriber, Executor)} was called.
+ *
  * @author dgriff
  */
 public class Computation implements Iterable<ChannelMessage>, Iterator<ChannelMessage> {
@@ -40,12 +54,17 @@ public class Computation implements Iterable<ChannelMessage>, Iterator<ChannelMe
         STATE_ABORTED;
     }
 
+    public static final long DEFAULT_RECONNECT_BASE_DELAY_MS = 500;
+    public static final long DEFAULT_RECONNECT_MAX_DELAY_MS = 30000;
+    public static final int DEFAULT_MAX_RECONNECT_ATTEMPTS = 10;
+    public static final long DEFAULT_BATCH_FLUSH_TIMEOUT_MS = -1;
+
     protected SignalFlowTransport transport;
     protected String program;
     protected Map<String, String> params;
     protected boolean isAttachedChannel;
 
-    private Map<String, Map<String, Object>> metadata = new HashMap<String, Map<String, Object>>();
+    private MetadataStore metadata = new MetadataStore();
 
     private String id;
     private Channel channel;
@@ -54,9 +73,23 @@ public class Computation implements Iterable<ChannelMessage>, Iterator<ChannelMe
     private long lastLogicalTimestampMs = -1;
     private long resolution;
     private int expectedBatches;
-    private boolean batchCountDetected;
+    private int lastBatchCount;
     private int currentBatchCount;
     private DataMessage currentBatchMessage;
+    private long currentBatchDeadlineNanos;
+    private DataMessage readyBatchMessage;
+    private long resumedTimestampMs = -1;
+    private long batchFlushTimeoutMs = DEFAULT_BATCH_FLUSH_TIMEOUT_MS;
+    private boolean partialBatches;
+    private volatile Subscription subscription;
+    private long reconnectBaseDelayMs = DEFAULT_RECONNECT_BASE_DELAY_MS;
+    private long reconnectMaxDelayMs = DEFAULT_RECONNECT_MAX_DELAY_MS;
+    private int maxReconnectAttempts = DEFAULT_MAX_RECONNECT_ATTEMPTS;
+    private int reconnectAttempts;
+    private volatile boolean reconnecting;
+    private volatile Channel reconnectedChannel;
+    private volatile RuntimeException reconnectFailure;
+    private List<Kind> ignoredKinds = Collections.emptyList();
 
     public Computation(SignalFlowTransport transport, String program, Map<String, String> params,
                        boolean attach) {
@@ -95,11 +128,107 @@ public class Computation implements Iterable<ChannelMessage>, Iterator<ChannelMe
         return lastLogicalTimestampMs;
     }
 
+    /**
+     * @return number of messages received by the transport but not yet consumed
+     */
+    public int getQueueDepth() {
+        return channel.getQueueDepth();
+    }
+
+    /**
+     * Configures how the computation reconnects when its stream ends before the computation
+     * completed, for instance because the connection was lost. Before each attempt, it waits a
+     * random delay of up to the base delay doubled for each consecutive attempt, capped at the
+     * maximum delay. It then resumes from the last emitted timestamp, dropping data that was
+     * already emitted.
+     *
+     * @param baseDelayMs
+     *            upper bound of the delay before the first attempt, in milliseconds
+     * @param maxDelayMs
+     *            upper bound of the delay before any attempt, in milliseconds
+     * @param maxAttempts
+     *            number of consecutive attempts after which the error is thrown to the caller,
+     *            or passed to the subscriber
+     * @return this computation
+     */
+    public Computation setReconnectBackoff(long baseDelayMs, long maxDelayMs, int maxAttempts) {
+        this.reconnectBaseDelayMs = baseDelayMs;
+        this.reconnectMaxDelayMs = maxDelayMs;
+        this.maxReconnectAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * Bounds how long the data of a logical timestamp is held while waiting for the rest of its
+     * batches. A timestamp is otherwise complete once the next one or an information message
+     * arrives, or once it has as many batches as the previous timestamp had; the deadline covers
+     * the first timestamps, whose number of batches is not known yet. Batches arriving after
+     * their timestamp was emitted are emitted on their own. There is no deadline by default.
+     *
+     * The deadline relies on channels that can wait for a limited time. Those of
+     * {@link ServerSentEventsTransport} cannot, so with that transport a due timestamp is only
+     * emitted once the next message arrives.
+     *
+     * @param timeoutMs
+     *            time after the first batch of a timestamp at which it is emitted, in
+     *            milliseconds, or a negative value to wait for the next timestamp
+     * @return this computation
+     */
+    public Computation setBatchFlushTimeout(long timeoutMs) {
+        this.batchFlushTimeoutMs = timeoutMs;
+        return this;
+    }
+
+    /**
+     * Emits every batch of data as soon as it arrives, instead of the whole data of a logical
+     * timestamp at once, for consumers such as alerting that need data with the lowest latency.
+     * The data of a timestamp is then spread over consecutive data messages, and the batches of
+     * the last timestamp may be emitted again after a reconnection.
+     *
+     * @param partialBatches
+     *            whether to emit batches as they arrive
+     * @return this computation
+     */
+    public Computation setPartialBatches(boolean partialBatches) {
+        this.partialBatches = partialBatches;
+        return this;
+    }
+
+    /**
+     * Replaces the store that keeps the metadata of the computation's timeseries, for instance
+     * with a bounded one. Metadata received so far is dropped.
+     *
+     * @param metadataStore
+     *            store to use
+     * @return this computation
+     */
+    public Computation setMetadataStore(MetadataStore metadataStore) {
+        this.metadata = metadataStore;
+        return this;
+    }
+
+    /**
+     * Discards the messages of the given kinds as they arrive, without decoding them. For
+     * instance, a consumer that only reads data can ignore {@link Kind#EVENT} and
+     * {@link Kind#INFORMATION} messages. Ignoring {@link Kind#METADATA} messages leaves
+     * {@link #getMetadata(String)} without metadata to return.
+     *
+     * @param kinds
+     *            kinds of messages to discard; control and error messages cannot be ignored
+     * @return this computation
+     */
+    public Computation ignoreMessages(Kind... kinds) {
+        List<Kind> ignoredKinds = Arrays.asList(kinds);
+        channel.setIgnoredKinds(ignoredKinds);
+        this.ignoredKinds = ignoredKinds;
+        return this;
+    }
+
     /**
      * @return sorted list of known timeseries ids
      */
     public Collection<String> getKnownTSIDs() {
-        List<String> list = new ArrayList<String>(metadata.keySet());
+        List<String> list = new ArrayList<String>(metadata.getTsIds());
         Collections.sort(list);
         return list;
     }
@@ -124,6 +253,7 @@ public class Computation implements Iterable<ChannelMessage>, Iterator<ChannelMe
     @Override
     public boolean hasNext() throws ComputationAbortedException,
            ComputationFailedException, SignalFlowException, StreamRequestException {
+        checkNotSubscribed();
         while ((state != State.STATE_COMPLETED) && (!channel.isClosed) && (nextMessage == null)) {
             parseNext();
         }
@@ -141,6 +271,7 @@ public class Computation implements Iterable<ChannelMessage>, Iterator<ChannelMe
     @Override
     public ChannelMessage next() throws ComputationAbortedException, ComputationFailedException,
             SignalFlowException, NoSuchElementException {
+        checkNotSubscribed();
         while ((state != State.STATE_COMPLETED) && (!channel.isClosed) && (nextMessage == null)) {
             parseNext();
         }
@@ -160,12 +291,50 @@ public class Computation implements Iterable<ChannelMessage>, Iterator<ChannelMe
         throw new UnsupportedOperationException("remove not supported");
     }
 
+    /**
+     * Pushes the output of this computation to the given subscriber instead of having it pulled
+     * through {@link #next()}, which is then no longer allowed.
+     *
+     * Messages are processed and delivered by tasks submitted to the executor when the channel
+     * has messages and the subscriber requested some, so no thread waits on an idle
+     * computation. A channel that cannot notify of new messages, such as those of
+     * {@link ServerSentEventsTransport}, is read on a thread of its own instead, so that it never
+     * holds the executor.
+     * Reconnections back off and connect on a separate timer, after which a task drains the
+     * new channel.
+     *
+     * @param subscriber
+     *            receiver of the messages
+     * @param executor
+     *            executor to process and deliver messages on
+     * @throws IllegalStateException
+     *             if the computation already has a subscriber
+     */
+    public void subscribe(ComputationSubscriber subscriber, Executor executor) {
+        Subscription subscription = new Subscription(subscriber, executor);
+        synchronized (this) {
+            if (this.subscription != null) {
+                throw new IllegalStateException("computation already has a subscriber");
+            }
+            this.subscription = subscription;
+        }
+        subscriber.onSubscribe(subscription);
+        channel = listen(channel, subscription);
+        subscription.schedule(); // pick up messages queued before the listener was set
+    }
+
     /**
      * Manually close this computation and detach from its stream. This computation object cannot be
-     * restarted, used or streamed for after this method is called.
+     * restarted, used or streamed for after this method is called. A subscriber receives no more
+     * messages, even from a reconnection already under way.
      */
     public void close() {
+        Subscription subscription = this.subscription;
+        if (subscription != null) {
+            subscription.cancelled = true;
+        }
         channel.close();
+        closeReconnectedChannel();
         nextMessage = null;
     }
 
@@ -208,130 +377,581 @@ public class Computation implements Iterable<ChannelMessage>, Iterator<ChannelMe
             ComputationFailedException, SignalFlowException {
         nextMessage = null;
         while (state != State.STATE_COMPLETED) {
-            if (!channel.hasNext()) {
-                if (state != State.STATE_COMPLETED) {
-                    channel.close();
-                    channel = isAttachedChannel ? attach() : execute();
-                    continue;
-                }
-            } else {
-                ChannelMessage message = channel.next();
-
-                switch (message.channelMessageType) {
-                case STREAM_START:
-                    state = State.STATE_STREAM_STARTED;
-                    break;
-
-                case JOB_START:
-                    state = State.STATE_COMPUTATION_STARTED;
-                    nextMessage = message;
-                    id = ((JobStartMessage) message).getHandle();
-                    break;
-
-                case JOB_PROGRESS:
-                    nextMessage = message;
-                    break;
-
-                case CHANNEL_ABORT:
-                    state = State.STATE_ABORTED;
-                    ChannelAbortMessage abortMessage = (ChannelAbortMessage) message;
-                    throw new ComputationAbortedException(abortMessage.getAbortInfo());
-
-                case END_OF_CHANNEL:
-                    state = State.STATE_COMPLETED;
-                    break;
-
-                case METADATA_MESSAGE:
-                    // Intercept metadata messages to accumulate received metadata.
-                    MetadataMessage metadataMessage = (MetadataMessage) message;
-                    metadata.put(metadataMessage.getTsId(), metadataMessage.getProperties());
-                    nextMessage = message;
-                    break;
-
-                case EXPIRED_TSID_MESSAGE:
-                    // Intercept expired-tsid messages to clean it up.
-                    ExpiredTsIdMessage expiredTsIdMessage = (ExpiredTsIdMessage) message;
-                    metadata.remove(expiredTsIdMessage.getTsId());
-                    nextMessage = message;
-                    break;
-
-                case INFO_MESSAGE:
-                    InfoMessage infoMessage = (InfoMessage) message;
-                    String messageCode = (String) infoMessage.getMessage().get("messageCode");
-
-                    // Extract the output resolution from the appropriate message, if it's present.
-                    if ("JOB_RUNNING_RESOLUTION".equals(messageCode)) {
-                        @SuppressWarnings("unchecked")
-                        LinkedHashMap<String, Object> contents = (LinkedHashMap<String, Object>) infoMessage
-                                .getMessage().get("contents");
-                        resolution = ((Number) contents.get("resolutionMs")).longValue();
+            if (yieldPendingBatch()) {
+                break;
+            }
+            ChannelMessage message;
+            try {
+                long waitNanos = batchWaitNanos();
+                if (waitNanos < 0) {
+                    if (!channel.hasNext()) {
+                        reconnect(null);
+                        continue;
                     }
-
-                    batchCountDetected = true;
-                    if (currentBatchMessage != null) {
-                        setNextDataMessageToYield();
+                    message = channel.next();
+                } else {
+                    // Wake up when the batch in progress is due.
+                    message = channel.poll(waitNanos, TimeUnit.NANOSECONDS);
+                    if (message == null) {
+                        continue;
                     }
-                    break;
-
-                case DATA_MESSAGE:
-                    // Accumulate data messages and release them when we have received
-                    // all batches for the same logical timestamp.
-                    state = State.STATE_DATA_RECEIVED;
-                    if (!batchCountDetected) {
-                        expectedBatches++;
+                }
+            } catch (NoSuchElementException e) {
+                reconnect(null);
+                continue;
+            } catch (ConnectionLostException e) {
+                reconnect(e);
+                continue;
+            }
+            process(message);
+            if (nextMessage != null) {
+                reconnectAttempts = 0;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Waits at most the given time for the next message to yield, scheduling a reconnection if
+     * the channel ended early.
+     *
+     * @return the message to yield, or null if none is available yet or the computation completed
+     */
+    private ChannelMessage pollNext(long timeout, TimeUnit unit) throws SignalFlowException {
+        while (state != State.STATE_COMPLETED) {
+            if (!yieldPendingBatch()) {
+                ChannelMessage message;
+                try {
+                    message = channel.poll(timeout, unit);
+                } catch (NoSuchElementException e) {
+                    scheduleReconnect(null);
+                    return null;
+                } catch (ConnectionLostException e) {
+                    scheduleReconnect(e);
+                    return null;
+                }
+                if (message == null) {
+                    return null;
+                }
+                process(message);
+            }
+            if (nextMessage != null) {
+                ChannelMessage yieldMessage = nextMessage;
+                nextMessage = null;
+                reconnectAttempts = 0;
+                return yieldMessage;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces a channel that ended before the computation completed, backing off between
+     * consecutive attempts. Blocks the caller, so only used when the output is pulled.
+     *
+     * @param cause
+     *            why the channel ended, if known
+     * @throws SignalFlowException
+     *             once the maximum number of consecutive attempts is reached
+     */
+    private void reconnect(SignalFlowException cause) throws SignalFlowException {
+        closeChannel();
+        while (true) {
+            if (reconnectAttempts >= maxReconnectAttempts) {
+                throw reconnectError(cause);
+            }
+            backoff(reconnectAttempts++);
+            try {
+                channel = reopen();
+                return;
+            } catch (SignalFlowException e) {
+                cause = e;
+            }
+        }
+    }
+
+    /**
+     * Replaces a channel that ended before the computation completed without holding up the
+     * subscriber's executor: attempts run on the reconnect timer, and the subscription drains
+     * again once the new channel is opened or reconnecting failed for good.
+     *
+     * @param cause
+     *            why the channel ended, if known
+     */
+    private void scheduleReconnect(SignalFlowException cause) {
+        closeChannel();
+        reconnecting = true;
+        scheduleReconnectAttempt(cause);
+    }
+
+    private void scheduleReconnectAttempt(SignalFlowException cause) {
+        final Subscription subscription = this.subscription;
+        if (reconnectAttempts >= maxReconnectAttempts) {
+            reconnectFailure = reconnectError(cause);
+            reconnecting = false;
+            subscription.schedule();
+            return;
+        }
+        ReconnectTimer.TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!subscription.cancelled) {
+                    try {
+                        reconnectedChannel = reopen();
+                    } catch (SignalFlowException e) {
+                        scheduleReconnectAttempt(e);
+                        return;
+                    } catch (RuntimeException e) {
+                        reconnectFailure = e;
                     }
+                }
+                reconnecting = false;
+                subscription.schedule();
+            }
+        }, backoffDelayMs(reconnectAttempts++), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the channel that ended early. The stream resumes from the last emitted timestamp,
+     * so the batch in progress is dropped.
+     */
+    private void closeChannel() {
+        channel.close();
+        currentBatchMessage = null;
+        currentBatchCount = 0;
+        resumedTimestampMs = lastLogicalTimestampMs;
+    }
+
+    /**
+     * Registers the listener of a subscription on the given channel, reading the channel ahead
+     * on a thread of its own if it cannot notify of new messages.
+     *
+     * @return the channel to poll
+     */
+    private static Channel listen(Channel channel, Runnable listener) {
+        if (channel.setMessageListener(listener)) {
+            return channel;
+        }
+        Channel readAhead = new ReadAheadChannel(channel);
+        readAhead.setMessageListener(listener);
+        return readAhead;
+    }
+
+    /**
+     * Closes the channel opened by a reconnection that no drain took over.
+     */
+    private void closeReconnectedChannel() {
+        Channel reconnected = reconnectedChannel;
+        if (reconnected != null) {
+            reconnectedChannel = null;
+            reconnected.close();
+        }
+    }
+
+    private Channel reopen() throws SignalFlowException {
+        Channel channel = isAttachedChannel ? attach() : execute();
+        channel.setIgnoredKinds(ignoredKinds);
+        return channel;
+    }
 
-                    DataMessage dataMessage = (DataMessage) message;
-                    if (currentBatchMessage == null) {
-                        currentBatchMessage = dataMessage;
-                        currentBatchCount = 1;
-                    } else if (dataMessage.getLogicalTimestampMs() == currentBatchMessage
-                            .getLogicalTimestampMs()) {
-                        currentBatchMessage.addData(dataMessage.getData());
-                        currentBatchCount++;
-                    } else {
-                        batchCountDetected = true;
+    private SignalFlowException reconnectError(SignalFlowException cause) {
+        return cause != null ? cause : new SignalFlowException(
+                "computation stream ended " + reconnectAttempts + " times in a row");
+    }
+
+    private void backoff(int attempt) throws SignalFlowException {
+        try {
+            Thread.sleep(backoffDelayMs(attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SignalFlowException("interrupted while reconnecting", e);
+        }
+    }
+
+    private long backoffDelayMs(int attempt) {
+        long ceiling = Math.min(reconnectMaxDelayMs, reconnectBaseDelayMs << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private void checkNotSubscribed() {
+        if (subscription != null) {
+            throw new IllegalStateException("computation output is pushed to a subscriber");
+        }
+    }
+
+    /**
+     * Interprets a channel message, setting the next message to yield if any.
+     *
+     * @throws ComputationAbortedException
+     *             on receiving channel message aborted
+     * @throws ComputationFailedException
+     *             on receiving channel message error
+     */
+    private void process(ChannelMessage message) throws ComputationAbortedException,
+            ComputationFailedException, SignalFlowException {
+        switch (message.channelMessageType) {
+        case STREAM_START:
+            state = State.STATE_STREAM_STARTED;
+            break;
+
+        case JOB_START:
+            state = State.STATE_COMPUTATION_STARTED;
+            nextMessage = message;
+            id = ((JobStartMessage) message).getHandle();
+            break;
+
+        case JOB_PROGRESS:
+            nextMessage = message;
+            break;
+
+        case CHANNEL_ABORT:
+            state = State.STATE_ABORTED;
+            ChannelAbortMessage abortMessage = (ChannelAbortMessage) message;
+            throw new ComputationAbortedException(abortMessage.getAbortInfo());
+
+        case END_OF_CHANNEL:
+            state = State.STATE_COMPLETED;
+            if (currentBatchMessage != null) {
+                yieldBatch(completeBatch());
+            }
+            break;
+
+        case METADATA_MESSAGE:
+            // Intercept metadata messages to accumulate received metadata.
+            MetadataMessage metadataMessage = (MetadataMessage) message;
+            metadata.put(metadataMessage.getTsId(), metadataMessage.getProperties());
+            nextMessage = message;
+            break;
+
+        case EXPIRED_TSID_MESSAGE:
+            // Intercept expired-tsid messages to clean it up.
+            ExpiredTsIdMessage expiredTsIdMessage = (ExpiredTsIdMessage) message;
+            metadata.remove(expiredTsIdMessage.getTsId());
+            nextMessage = message;
+            break;
+
+        case INFO_MESSAGE:
+            InfoMessage infoMessage = (InfoMessage) message;
+            String messageCode = (String) infoMessage.getMessage().get("messageCode");
+
+            // Extract the output resolution from the appropriate message, if it's present.
+            if ("JOB_RUNNING_RESOLUTION".equals(messageCode)) {
+                @SuppressWarnings("unchecked")
+                LinkedHashMap<String, Object> contents = (LinkedHashMap<String, Object>) infoMessage
+                        .getMessage().get("contents");
+                resolution = ((Number) contents.get("resolutionMs")).longValue();
+            }
+
+            // Information messages follow the data of a timestamp.
+            if (currentBatchMessage != null) {
+                yieldBatch(completeBatch());
+            }
+            break;
+
+        case DATA_MESSAGE:
+            processData((DataMessage) message);
+            break;
+
+        case EVENT_MESSAGE:
+            nextMessage = message;
+            break;
+
+        case ERROR_MESSAGE:
+            ErrorMessage errorMessage = (ErrorMessage) message;
+            /* This is a hack based on the fact that the API can return type different
+             * error messages with the same type. We have to check attributes to know
+             * which error we're working with.
+             */
+            if (errorMessage.getMessage() != null) {
+                throw new StreamRequestException(errorMessage.getError(), errorMessage.getMessage());
+            } else {
+                throw new ComputationFailedException(errorMessage.getErrors());
+            }
+        }
+    }
+
+    /**
+     * Accumulates data messages and releases them when all batches of the same logical timestamp
+     * were received, unless partial batches are emitted right away.
+     */
+    private void processData(DataMessage dataMessage) {
+        long timestampMs = dataMessage.getLogicalTimestampMs();
+        if (timestampMs < lastLogicalTimestampMs
+                || (timestampMs == resumedTimestampMs && !partialBatches)) {
+            // Already emitted before the stream was resumed.
+            return;
+        }
+
+        state = State.STATE_DATA_RECEIVED;
+        if (partialBatches) {
+            yieldBatch(dataMessage);
+            return;
+        }
+        if (timestampMs == lastLogicalTimestampMs) {
+            // The timestamp was emitted before all its batches arrived.
+            lastBatchCount++;
+            yieldBatch(dataMessage);
+            return;
+        }
+
+        if (currentBatchMessage != null
+                && timestampMs != currentBatchMessage.getLogicalTimestampMs()) {
+            // Timestamps arrive in order, so a new one completes the batch in progress.
+            yieldBatch(completeBatch());
+        }
+        if (currentBatchMessage == null) {
+            // The last emitted timestamp received all its batches, including late ones.
+            expectedBatches = lastBatchCount;
+            startBatch(dataMessage);
+        } else {
+            currentBatchMessage.addData(dataMessage);
+            currentBatchCount++;
+        }
+
+        if (currentBatchCount == expectedBatches) {
+            if (nextMessage == null) {
+                yieldBatch(completeBatch());
+            } else {
+                readyBatchMessage = completeBatch();
+            }
+        }
+    }
+
+    private void startBatch(DataMessage dataMessage) {
+        currentBatchMessage = dataMessage;
+        currentBatchCount = 1;
+        currentBatchDeadlineNanos = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(Math.max(batchFlushTimeoutMs, 0));
+    }
+
+    /**
+     * Ends the batch in progress. Its number of batches becomes the expected one once the next
+     * timestamp arrives, counting those arriving late in between.
+     *
+     * @return the data of the batch
+     */
+    private DataMessage completeBatch() {
+        DataMessage batch = currentBatchMessage;
+        lastBatchCount = currentBatchCount;
+        currentBatchMessage = null;
+        currentBatchCount = 0;
+        return batch;
+    }
+
+    /**
+     * Sets the next data message that will be returned by the iterator.
+     */
+    private void yieldBatch(DataMessage batch) {
+        lastLogicalTimestampMs = batch.getLogicalTimestampMs();
+        nextMessage = batch;
+    }
+
+    /**
+     * Yields the batch completed along with the previous one, or the batch in progress if its
+     * flush deadline passed.
+     *
+     * @return whether a batch was yielded
+     */
+    private boolean yieldPendingBatch() {
+        if (readyBatchMessage != null) {
+            DataMessage batch = readyBatchMessage;
+            readyBatchMessage = null;
+            yieldBatch(batch);
+            return true;
+        }
+        if (batchWaitNanos() == 0) {
+            yieldBatch(completeBatch());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return how long the batch in progress may still wait for more batches, in nanoseconds, or
+     *         -1 if there is none or it has no deadline
+     */
+    private long batchWaitNanos() {
+        if (currentBatchMessage == null || batchFlushTimeoutMs < 0) {
+            return -1;
+        }
+        return Math.max(0, currentBatchDeadlineNanos - System.nanoTime());
+    }
+
+    /**
+     * Delivers the computation's output to a subscriber. Every event that may let it make progress
+     * (a message arriving, more demand, cancellation) schedules a drain; drains never overlap.
+     */
+    private final class Subscription implements ComputationSubscription, Runnable {
+
+        private final ComputationSubscriber subscriber;
+        private final Executor executor;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private volatile boolean cancelled;
+        private boolean done;
+
+        private Subscription(ComputationSubscriber subscriber, Executor executor) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                throw new IllegalArgumentException("number of requested messages must be positive");
+            }
+            long current;
+            long next;
+            do {
+                current = requested.get();
+                next = current + n;
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+            } while (!requested.compareAndSet(current, next));
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        /**
+         * Channel message listener.
+         */
+        @Override
+        public void run() {
+            schedule();
+        }
+
+        private void schedule() {
+            if (pendingDrains.getAndIncrement() == 0) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        int missed = 1;
+                        do {
+                            drain();
+                            missed = pendingDrains.addAndGet(-missed);
+                        } while (missed != 0);
                     }
+                });
+            }
+        }
 
-                    if (batchCountDetected && currentBatchMessage != null
-                            && currentBatchCount == expectedBatches) {
-                        setNextDataMessageToYield();
+        private void drain() {
+            if (done) {
+                closeReconnectedChannel();
+                return;
+            }
+            if (reconnecting) {
+                return;
+            }
+            try {
+                attachReconnectedChannel();
+                while (!cancelled && !channel.isClosed() && requested.get() > 0) {
+                    ChannelMessage message = pollNext(0, TimeUnit.MILLISECONDS);
+                    if (message == null) {
+                        break;
+                    }
+                    if (requested.get() != Long.MAX_VALUE) {
+                        requested.decrementAndGet();
                     }
-                    break;
-
-                case EVENT_MESSAGE:
-                    nextMessage = message;
-                    break;
-
-                case ERROR_MESSAGE:
-                    ErrorMessage errorMessage = (ErrorMessage) message;
-                    /* This is a hack based on the fact that the API can return type different
-                     * error messages with the same type. We have to check attributes to know
-                     * which error we're working with.
-                     */
-                    if (errorMessage.getMessage() != null) {
-                        throw new StreamRequestException(errorMessage.getError(), errorMessage.getMessage());
-                    } else {
-                        throw new ComputationFailedException(errorMessage.getErrors());
+                    try {
+                        subscriber.onNext(message);
+                    } catch (RuntimeException e) {
+                        throw new SignalFlowException("computation subscriber failed", e);
                     }
                 }
+                if (reconnecting || reconnectedChannel != null || reconnectFailure != null) {
+                    return; // drains again once reconnected
+                }
+                if (cancelled || channel.isClosed()) {
+                    finish();
+                } else if (state == State.STATE_COMPLETED) {
+                    finish();
+                    subscriber.onComplete();
+                } else {
+                    scheduleFlush();
+                }
+            } catch (RuntimeException e) {
+                finish();
+                subscriber.onError(e);
+            }
+        }
+
+        /**
+         * Takes over the channel opened by the last reconnection, or throws why it failed.
+         */
+        private void attachReconnectedChannel() {
+            RuntimeException failure = reconnectFailure;
+            if (failure != null) {
+                reconnectFailure = null;
+                throw failure;
             }
+            Channel reconnected = reconnectedChannel;
+            if (reconnected != null) {
+                reconnectedChannel = null;
+                channel = listen(reconnected, this);
+            }
+        }
 
-            if (nextMessage != null) {
-                break;
+        /**
+         * Drains again when the batch in progress is due, as no message may arrive until then.
+         */
+        private void scheduleFlush() {
+            long waitNanos = batchWaitNanos();
+            if (waitNanos < 0 || requested.get() == 0
+                    || !flushScheduled.compareAndSet(false, true)) {
+                return;
             }
+            FlushTimer.TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled.set(false);
+                    schedule();
+                }
+            }, waitNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void finish() {
+            done = true;
+            channel.setMessageListener(null);
+            close();
         }
     }
 
     /**
-     * Set the next data message that will be returned by the iterator and reset the current batch
-     * message in which we accumulate.
+     * Wakes up subscriptions whose batch in progress is due. Started on first use.
      */
-    private void setNextDataMessageToYield() {
-        DataMessage yieldMessage = currentBatchMessage;
-        currentBatchMessage = null;
-        currentBatchCount = 0;
-        lastLogicalTimestampMs = yieldMessage.getLogicalTimestampMs();
-        nextMessage = yieldMessage;
+    private static final class FlushTimer {
+
+        static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+                daemonThreads("signalflow-batch-flush"));
+    }
+
+    /**
+     * Runs the reconnection attempts of subscribed computations once their backoff elapsed, so
+     * that the subscribers' executors are not held while waiting or connecting. Started on
+     * first use.
+     */
+    private static final class ReconnectTimer {
+
+        static final ScheduledExecutorService TIMER = Executors.newScheduledThreadPool(2,
+                daemonThreads("signalflow-reconnect"));
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
     }
 }
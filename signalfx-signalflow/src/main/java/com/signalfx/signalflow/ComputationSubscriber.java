@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+/**
+ * Receives the output of a computation pushed to it by
+ * {@link SignalFlowClient#subscribe(Computation, ComputationSubscriber)}, as an alternative to
+ * iterating over the computation from a dedicated thread.
+ *
+ * Methods are called on the client's executor, one at a time for a given computation. No
+ * messages are delivered until some are requested through the subscription; at most as many
+ * messages as requested are delivered. Either {@link #onComplete()} or
+ * {@link #onError(RuntimeException)} is called once at the end, unless the subscription is
+ * cancelled.
+ */
+public interface ComputationSubscriber {
+
+    /**
+     * Called once before any other method.
+     *
+     * @param subscription
+     *            subscription to request messages through
+     */
+    void onSubscribe(ComputationSubscription subscription);
+
+    /**
+     * @param message
+     *            next data, event, metadata or control message of the computation, as returned
+     *            by {@link Computation#next()}
+     */
+    void onNext(ChannelMessage message);
+
+    /**
+     * @param error
+     *            what ended the computation, such as a {@link ComputationAbortedException}, a
+     *            {@link ComputationFailedException} or a {@link SignalFlowException}, which wraps
+     *            anything thrown by {@link #onNext(ChannelMessage)}
+     */
+    void onError(RuntimeException error);
+
+    /**
+     * Called when the computation completed.
+     */
+    void onComplete();
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+/**
+ * Link between a {@link Computation} and its {@link ComputationSubscriber}.
+ */
+public interface ComputationSubscription {
+
+    /**
+     * Allows up to {@code n} more messages to be delivered to the subscriber. Messages not yet
+     * requested stay queued in the channel, where the transport's overflow policy applies.
+     *
+     * @param n
+     *            number of messages, greater than zero; {@link Long#MAX_VALUE} for no limit
+     */
+    void request(long n);
+
+    /**
+     * Stops delivering messages and closes the computation.
+     */
+    void cancel();
+}
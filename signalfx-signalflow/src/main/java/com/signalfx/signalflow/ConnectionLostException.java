@@ -0,0 +1,17 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+/**
+ * Exception thrown when the connection carrying a computation's stream was lost. Computations
+ * reconnect and resume on their own; it only reaches the caller once they give up.
+ */
+public class ConnectionLostException extends SignalFlowException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ConnectionLostException(int code, String message) {
+        super(code, message);
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+/**
+ * Stream message whose channel message was already decoded by the transport, for instance from
+ * a binary WebSocket frame. It carries no raw data; {@link ChannelMessage#decodeStreamMessage}
+ * returns the decoded message as-is instead of parsing it again.
+ */
+public class DecodedStreamMessage extends StreamMessage {
+
+    private final ChannelMessage message;
+
+    public DecodedStreamMessage(ChannelMessage message) {
+        super(message.getType().kind().toString(), null, null);
+        this.message = message;
+    }
+
+    public ChannelMessage getMessage() {
+        return message;
+    }
+
+    public String toString() {
+        return getEvent() + ":" + getId() + ":" + message.getType();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses gzip-compressed WebSocket frame bodies in place, reusing the same {@link Inflater}
+ * and output buffer for every frame of a connection. Not thread-safe.
+ */
+final class FrameInflater {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private byte[] buffer;
+    private int length;
+
+    FrameInflater(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Decompresses one gzip member. The result is available from {@link #buffer()} and
+     * {@link #length()} until the next call.
+     *
+     * @param data
+     *            array holding the compressed bytes
+     * @param offset
+     *            start of the compressed bytes
+     * @param length
+     *            number of compressed bytes
+     * @throws IOException
+     *             if the data is not valid gzip
+     */
+    void inflate(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+        int position = skipHeader(data, offset, end);
+
+        inflater.reset();
+        inflater.setInput(data, position, end - position);
+        this.length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (this.length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, 256));
+                }
+                int inflated = inflater.inflate(buffer, this.length, buffer.length - this.length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("truncated gzip data");
+                }
+                this.length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+
+        int trailer = end - inflater.getRemaining();
+        if (trailer + 8 > end) {
+            throw new EOFException("truncated gzip trailer");
+        }
+        crc.reset();
+        crc.update(buffer, 0, this.length);
+        if (readIntLE(data, trailer) != (int) crc.getValue()
+                || readIntLE(data, trailer + 4) != this.length) {
+            throw new ZipException("corrupt gzip trailer");
+        }
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Releases the native resources of the inflater.
+     */
+    void end() {
+        inflater.end();
+    }
+
+    private static int skipHeader(byte[] data, int position, int end) throws IOException {
+        if (end - position < 10) {
+            throw new EOFException("truncated gzip header");
+        }
+        if (readShortLE(data, position) != GZIP_MAGIC) {
+            throw new ZipException("not in gzip format");
+        }
+        if (data[position + 2] != 8) {
+            throw new ZipException("unsupported compression method");
+        }
+        int flags = data[position + 3] & 0xff;
+        position += 10; // magic, method, flags, mtime, xfl, os
+
+        if ((flags & FEXTRA) != 0) {
+            checkAvailable(position + 2, end);
+            position += 2 + readShortLE(data, position);
+        }
+        if ((flags & FNAME) != 0) {
+            position = skipZeroTerminated(data, position, end);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            position = skipZeroTerminated(data, position, end);
+        }
+        if ((flags & FHCRC) != 0) {
+            position += 2;
+        }
+        checkAvailable(position, end);
+        return position;
+    }
+
+    private static int skipZeroTerminated(byte[] data, int position, int end) throws IOException {
+        while (position < end && data[position] != 0) {
+            position++;
+        }
+        checkAvailable(position + 1, end);
+        return position + 1;
+    }
+
+    private static void checkAvailable(int position, int end) throws IOException {
+        if (position > end) {
+            throw new EOFException("truncated gzip header");
+        }
+    }
+
+    private static int readShortLE(byte[] data, int position) {
+        return (data[position] & 0xff) | (data[position + 1] & 0xff) << 8;
+    }
+
+    private static int readIntLE(byte[] data, int position) {
+        return readShortLE(data, position) | readShortLE(data, position + 2) << 16;
+    }
+}
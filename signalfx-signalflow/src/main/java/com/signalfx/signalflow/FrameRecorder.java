@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the raw frames received by {@link WebSocketTransport} connections, with their arrival
+ * times, so that the streams can be replayed offline by a {@link ReplayTransport}. Set it on a
+ * transport with {@link WebSocketTransport.TransportBuilder#setFrameRecorder(FrameRecorder)}; a
+ * recorder may be shared by several transports.
+ *
+ * Recordings are append-only sequences of records, each made of a type byte, the time since the
+ * previous record in microseconds, the length of the payload (both as unsigned varints) and the
+ * payload. Every recorder starts with a sync record holding the wall-clock time in microseconds,
+ * so recordings may be appended to. The other records are text and binary frames, as received,
+ * and the names of the channels in the order they were opened, which is how a replay matches
+ * recorded channels with the computations it runs.
+ *
+ * Recording happens on the reading thread of the connections, into a buffer; a failure to write
+ * stops the recording, not the connections.
+ */
+public class FrameRecorder implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(FrameRecorder.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final int SYNC = 0;
+    static final int TEXT = 1;
+    static final int BINARY = 2;
+    static final int CHANNEL = 3;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final long startNanos = System.nanoTime();
+    private long lastMicros;
+    private long recordedFrames;
+    private boolean failed;
+
+    /**
+     * @param file
+     *            file to append the recording to; created if it does not exist
+     * @throws IOException
+     *             if the file cannot be opened
+     */
+    public FrameRecorder(File file) throws IOException {
+        this(new FileOutputStream(file, true));
+    }
+
+    /**
+     * @param out
+     *            stream to write the recording to; closed with the recorder
+     * @throws IOException
+     *             if the recording cannot be started
+     */
+    public FrameRecorder(OutputStream out) throws IOException {
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+        write(SYNC, TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()), new byte[0], 0,
+                0);
+    }
+
+    /**
+     * @return number of frames recorded so far
+     */
+    public synchronized long getRecordedFrames() {
+        return recordedFrames;
+    }
+
+    /**
+     * Writes out the records buffered so far.
+     *
+     * @throws IOException
+     *             if they cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        failed = true;
+        out.close();
+    }
+
+    void recordText(String data) {
+        byte[] bytes = data.getBytes(UTF_8);
+        record(TEXT, bytes, 0, bytes.length);
+    }
+
+    void recordBinary(byte[] data, int offset, int length) {
+        record(BINARY, data, offset, length);
+    }
+
+    void recordChannel(String name) {
+        byte[] bytes = name.getBytes(UTF_8);
+        record(CHANNEL, bytes, 0, bytes.length);
+    }
+
+    private synchronized void record(int type, byte[] data, int offset, int length) {
+        if (failed) {
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        try {
+            write(type, micros - lastMicros, data, offset, length);
+        } catch (IOException ex) {
+            log.error("failed to record frame, stopping recording", ex);
+            failed = true;
+            return;
+        }
+        lastMicros = micros;
+        if (type != CHANNEL) {
+            recordedFrames++;
+        }
+    }
+
+    private void write(int type, long time, byte[] data, int offset, int length)
+            throws IOException {
+        out.write(type);
+        writeVarint(time);
+        writeVarint(length);
+        out.write(data, offset, length);
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the records of a recording made by a {@link FrameRecorder}, in order. Not thread-safe.
+ */
+final class FrameRecording implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final InputStream in;
+    private long timeMicros;
+
+    FrameRecording(File file) throws IOException {
+        this.in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+    }
+
+    /**
+     * Reads the names of the channels of a recording, in the order they were opened.
+     */
+    static List<String> channels(File file) throws IOException {
+        List<String> channels = new ArrayList<String>();
+        FrameRecording recording = new FrameRecording(file);
+        try {
+            Record record;
+            while ((record = recording.next()) != null) {
+                if (record.type == FrameRecorder.CHANNEL) {
+                    channels.add(record.text());
+                }
+            }
+        } finally {
+            recording.close();
+        }
+        return channels;
+    }
+
+    /**
+     * @return the next record, or null at the end of the recording
+     * @throws IOException
+     *             if the recording cannot be read or is truncated
+     */
+    Record next() throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        long time = readVarint();
+        long length = readVarint();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("record too large: " + length);
+        }
+        byte[] payload = new byte[(int) length];
+        int read = 0;
+        while (read < payload.length) {
+            int count = in.read(payload, read, payload.length - read);
+            if (count < 0) {
+                throw new EOFException("truncated record");
+            }
+            read += count;
+        }
+        timeMicros = type == FrameRecorder.SYNC ? time : timeMicros + time;
+        return new Record(type, timeMicros, payload);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("truncated record");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /**
+     * A recorded frame, channel opening or sync point.
+     */
+    static final class Record {
+
+        final int type;
+        /**
+         * Wall-clock time of the record, in microseconds.
+         */
+        final long timeMicros;
+        final byte[] payload;
+
+        Record(int type, long timeMicros, byte[] payload) {
+            this.type = type;
+            this.timeMicros = timeMicros;
+            this.payload = payload;
+        }
+
+        String text() {
+            return new String(payload, UTF_8);
+        }
+    }
+}
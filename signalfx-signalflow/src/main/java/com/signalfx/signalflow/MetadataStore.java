@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Compact store of the metadata of a computation's timeseries.
+ *
+ * Computations with many timeseries receive one metadata map per timeseries. These maps mostly
+ * repeat the same dimension names and values. To avoid keeping all those copies, this store:
+ * <ul>
+ * <li>interns property names and string values, across all stores;</li>
+ * <li>shares the list of property names between timeseries with the same properties, and keeps
+ * only an array of values per timeseries;</li>
+ * <li>keys timeseries by their 8-byte binary ID in a primitive hash table, falling back to a map
+ * for IDs that are not in that form.</li>
+ * </ul>
+ *
+ * The store can optionally be bounded. When it is full, timeseries that were not looked up
+ * recently are evicted, using the CLOCK approximation of least recently used. A {@link Loader}
+ * can then fetch the metadata of timeseries looked up after their eviction.
+ *
+ * Like the rest of a computation's state, a store is not thread-safe.
+ */
+public class MetadataStore {
+
+    /**
+     * Fetches the metadata of a timeseries that is not in the store, for instance from the
+     * metric time series REST API.
+     */
+    public interface Loader {
+
+        /**
+         * @param tsId
+         *            timeseries ID
+         * @return the metadata of the timeseries, or null if unknown
+         */
+        Map<String, Object> load(String tsId);
+    }
+
+    private static final Interner<Object> interner = Interners.newWeakInterner();
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int maxSize;
+    private final Loader loader;
+
+    // Open-addressing table of binary IDs. An entry is an array holding its Shape first,
+    // followed by its values; a null entry marks a free slot.
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private Object[][] entries = new Object[INITIAL_CAPACITY][];
+    private boolean[] referenced = new boolean[INITIAL_CAPACITY];
+    private int binarySize;
+    private int clockHand;
+
+    private final Map<String, Object[]> otherEntries = new HashMap<String, Object[]>();
+
+    /**
+     * Creates an unbounded store.
+     */
+    public MetadataStore() {
+        this(0, null);
+    }
+
+    /**
+     * @param maxSize
+     *            maximum number of timeseries to keep, or 0 for no limit
+     * @param loader
+     *            loader of timeseries that are not in the store, or null
+     */
+    public MetadataStore(int maxSize, Loader loader) {
+        this.maxSize = maxSize;
+        this.loader = loader;
+    }
+
+    /**
+     * @return number of timeseries in the store
+     */
+    public int size() {
+        return binarySize + otherEntries.size();
+    }
+
+    /**
+     * Stores the metadata of a timeseries, replacing any previous one.
+     *
+     * @param tsId
+     *            timeseries ID
+     * @param properties
+     *            metadata of the timeseries
+     */
+    public void put(String tsId, Map<String, Object> properties) {
+        store(tsId, compact(properties));
+    }
+
+    private void store(String tsId, Object[] entry) {
+        if (TsIds.isBinary(tsId)) {
+            putBinary(TsIds.parse(tsId), entry);
+        } else {
+            otherEntries.put(tsId, entry);
+        }
+        if (maxSize > 0) {
+            while (size() > maxSize) {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * @param tsId
+     *            timeseries ID
+     * @return read-only metadata of the timeseries, or null if it is not known and the loader,
+     *         if any, does not know it either
+     */
+    public Map<String, Object> get(String tsId) {
+        Object[] entry;
+        if (TsIds.isBinary(tsId)) {
+            int slot = slotOf(TsIds.parse(tsId));
+            entry = slot >= 0 ? entries[slot] : null;
+            if (entry != null) {
+                referenced[slot] = true;
+            }
+        } else {
+            entry = otherEntries.get(tsId);
+        }
+
+        if (entry == null && loader != null) {
+            Map<String, Object> properties = loader.load(tsId);
+            if (properties != null) {
+                entry = compact(properties);
+                store(tsId, entry);
+            }
+        }
+        return entry != null ? new Properties(entry) : null;
+    }
+
+    /**
+     * Forgets the metadata of a timeseries.
+     *
+     * @param tsId
+     *            timeseries ID
+     */
+    public void remove(String tsId) {
+        if (TsIds.isBinary(tsId)) {
+            int slot = slotOf(TsIds.parse(tsId));
+            if (slot >= 0) {
+                removeSlot(slot);
+            }
+        } else {
+            otherEntries.remove(tsId);
+        }
+    }
+
+    /**
+     * @return IDs of the timeseries in the store
+     */
+    public Collection<String> getTsIds() {
+        List<String> tsIds = new ArrayList<String>(size());
+        for (int slot = 0; slot < entries.length; slot++) {
+            if (entries[slot] != null) {
+                tsIds.add(TsIds.toString(keys[slot]));
+            }
+        }
+        tsIds.addAll(otherEntries.keySet());
+        return tsIds;
+    }
+
+    private static Object[] compact(Map<String, Object> properties) {
+        String[] names = new String[properties.size()];
+        Object[] entry = new Object[properties.size() + 1];
+        int i = 0;
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            names[i] = (String) interner.intern(property.getKey());
+            entry[++i] = intern(property.getValue());
+        }
+        entry[0] = interner.intern(new Shape(names));
+        return entry;
+    }
+
+    private static Object intern(Object value) {
+        if (value instanceof String) {
+            return interner.intern(value);
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            List<Object> interned = new ArrayList<Object>(list.size());
+            for (Object element : list) {
+                interned.add(intern(element));
+            }
+            return interner.intern(Collections.unmodifiableList(interned));
+        }
+        return value;
+    }
+
+    private static int hash(long key) {
+        long hash = key * 0x9e3779b97f4a7c15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private int slotOf(long key) {
+        int mask = entries.length - 1;
+        for (int slot = hash(key) & mask; entries[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void putBinary(long key, Object[] entry) {
+        if ((binarySize + 1) * 4 > entries.length * 3) {
+            resize(entries.length * 2);
+        }
+        int mask = entries.length - 1;
+        int slot = hash(key) & mask;
+        while (entries[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (entries[slot] == null) {
+            binarySize++;
+            referenced[slot] = false; // only lookups give a second chance
+        }
+        keys[slot] = key;
+        entries[slot] = entry;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[][] oldEntries = entries;
+        boolean[] oldReferenced = referenced;
+        keys = new long[capacity];
+        entries = new Object[capacity][];
+        referenced = new boolean[capacity];
+        binarySize = 0;
+        clockHand = 0;
+        for (int slot = 0; slot < oldEntries.length; slot++) {
+            if (oldEntries[slot] != null) {
+                putBinary(oldKeys[slot], oldEntries[slot]);
+                referenced[slotOf(oldKeys[slot])] = oldReferenced[slot];
+            }
+        }
+    }
+
+    /**
+     * Frees a slot, moving back the entries that follow it in its probe sequence.
+     */
+    private void removeSlot(int slot) {
+        int mask = entries.length - 1;
+        int free = slot;
+        for (int next = (free + 1) & mask; entries[next] != null; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+            // Move the entry if the free slot lies between its home and its current slot.
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                keys[free] = keys[next];
+                entries[free] = entries[next];
+                referenced[free] = referenced[next];
+                free = next;
+            }
+        }
+        entries[free] = null;
+        referenced[free] = false;
+        binarySize--;
+    }
+
+    /**
+     * Evicts one timeseries that was not used since the clock hand last went past it.
+     */
+    private void evict() {
+        if (binarySize == 0) {
+            Iterator<String> it = otherEntries.keySet().iterator();
+            it.next();
+            it.remove();
+            return;
+        }
+        while (true) {
+            int slot = clockHand;
+            clockHand = (clockHand + 1) & (entries.length - 1);
+            if (entries[slot] == null) {
+                continue;
+            }
+            if (referenced[slot]) {
+                referenced[slot] = false;
+            } else {
+                removeSlot(slot);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Property names shared by the timeseries that have the same ones, in the same order.
+     */
+    private static final class Shape {
+
+        private final String[] names;
+        private final int hashCode;
+
+        private Shape(String[] names) {
+            this.names = names;
+            this.hashCode = Arrays.hashCode(names);
+        }
+
+        private int indexOf(Object name) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Shape && Arrays.equals(names, ((Shape) o).names);
+        }
+    }
+
+    /**
+     * Read-only map view of an entry.
+     */
+    private static final class Properties extends AbstractMap<String, Object> {
+
+        private final Shape shape;
+        private final Object[] entry;
+
+        private Properties(Object[] entry) {
+            this.shape = (Shape) entry[0];
+            this.entry = entry;
+        }
+
+        @Override
+        public int size() {
+            return shape.names.length;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return shape.indexOf(key) >= 0;
+        }
+
+        @Override
+        public Object get(Object key) {
+            int index = shape.indexOf(key);
+            return index >= 0 ? entry[index + 1] : null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Object>>() {
+                @Override
+                public int size() {
+                    return shape.names.length;
+                }
+
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    return new Iterator<Map.Entry<String, Object>>() {
+                        private int index;
+
+                        @Override
+                        public boolean hasNext() {
+                            return index < shape.names.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String, Object> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<String, Object> property =
+                                    new SimpleImmutableEntry<String, Object>(
+                                            shape.names[index], entry[index + 1]);
+                            index++;
+                            return property;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException("metadata is read-only");
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
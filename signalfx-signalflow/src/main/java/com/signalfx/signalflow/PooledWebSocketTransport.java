@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SignalFlow transport spreading computations over several WebSocket connections made with the
+ * same token.
+ *
+ * Each new channel is opened on the connection with the lowest estimated load: the rate of
+ * messages it received recently, plus an allowance for the channels placed on it since that rate
+ * was last measured. A channel stays on its connection. When a connection is lost, only the
+ * computations on it fail over; they are placed again, preferring connections that are still
+ * open, when they reconnect.
+ *
+ * Requests addressed to a computation handle rather than a channel (stop and keepalive) are
+ * sent on any open connection, as handles are not tied to the connection that started them.
+ */
+public class PooledWebSocketTransport implements SignalFlowTransport {
+
+    private static final Logger log = LoggerFactory.getLogger(PooledWebSocketTransport.class);
+
+    /**
+     * Interval over which message rates are measured, in milliseconds.
+     */
+    private static final long RATE_INTERVAL_MS = 1000;
+
+    /**
+     * Weight of the latest measurement in the smoothed message rate of a connection.
+     */
+    private static final double RATE_SMOOTHING = 0.5;
+
+    private final List<Member> members;
+    private final Comparator<Member> byLoad;
+
+    /**
+     * @param builder
+     *            builder of the pooled connections; each is built from it in turn. Setting a
+     *            {@link SharedWebSocketClient} on it makes them share their threads.
+     * @param size
+     *            number of connections
+     * @throws SignalFlowException
+     *             if a connection could not be made
+     */
+    public PooledWebSocketTransport(WebSocketTransport.TransportBuilder builder, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("pool size must be at least 1");
+        }
+        List<Member> members = new ArrayList<Member>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                members.add(new Member(builder.build()));
+            }
+        } catch (RuntimeException ex) {
+            for (Member member : members) {
+                member.transport.close(1000, null);
+            }
+            throw ex;
+        }
+        this.members = Collections.unmodifiableList(members);
+        this.byLoad = new Comparator<Member>() {
+            @Override
+            public int compare(Member a, Member b) {
+                return Double.compare(a.load, b.load);
+            }
+        };
+    }
+
+    @Override
+    public Channel attach(final String handle, final Map<String, String> parameters) {
+        return place(new Placement<Channel>() {
+            @Override
+            public Channel open(WebSocketTransport transport) {
+                return transport.attach(handle, parameters);
+            }
+        });
+    }
+
+    @Override
+    public Channel execute(final String program, final Map<String, String> parameters) {
+        return place(new Placement<Channel>() {
+            @Override
+            public Channel open(WebSocketTransport transport) {
+                return transport.execute(program, parameters);
+            }
+        });
+    }
+
+    @Override
+    public Channel preflight(final String program, final Map<String, String> parameters) {
+        return place(new Placement<Channel>() {
+            @Override
+            public Channel open(WebSocketTransport transport) {
+                return transport.preflight(program, parameters);
+            }
+        });
+    }
+
+    @Override
+    public void start(final String program, final Map<String, String> parameters) {
+        place(new Placement<Void>() {
+            @Override
+            public Void open(WebSocketTransport transport) {
+                transport.start(program, parameters);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void stop(final String handle, final Map<String, String> parameters) {
+        send(new Placement<Void>() {
+            @Override
+            public Void open(WebSocketTransport transport) {
+                transport.stop(handle, parameters);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void keepalive(final String handle) {
+        send(new Placement<Void>() {
+            @Override
+            public Void open(WebSocketTransport transport) {
+                transport.keepalive(handle);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void close(int code, String reason) {
+        for (Member member : members) {
+            member.transport.close(code, reason);
+        }
+    }
+
+    /**
+     * @return the pooled connections
+     */
+    public List<WebSocketTransport> getTransports() {
+        List<WebSocketTransport> transports = new ArrayList<WebSocketTransport>(members.size());
+        for (Member member : members) {
+            transports.add(member.transport);
+        }
+        return transports;
+    }
+
+    /**
+     * @return smoothed rate of messages received by each pooled connection, in messages per
+     *         second, in the order of {@link #getTransports()}
+     */
+    public synchronized double[] getMessageRates() {
+        measure(System.nanoTime());
+        double[] rates = new double[members.size()];
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = members.get(i).rate;
+        }
+        return rates;
+    }
+
+    /**
+     * Runs the given request on the least loaded connection, falling back to the next ones if
+     * it fails.
+     */
+    private <T> T place(Placement<T> placement) {
+        List<Member> candidates = candidates();
+        SignalFlowException failure = null;
+        for (Member member : candidates) {
+            try {
+                T result = placement.open(member.transport);
+                synchronized (this) {
+                    member.placed++;
+                }
+                return result;
+            } catch (SignalFlowException ex) {
+                log.warn("failed to place request on pooled connection, trying the next one", ex);
+                failure = ex;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Runs the given request on the first open connection, falling back to the next ones if it
+     * fails.
+     */
+    private void send(Placement<Void> placement) {
+        SignalFlowException failure = null;
+        for (Member member : openFirst(new ArrayList<Member>(members))) {
+            try {
+                placement.open(member.transport);
+                return;
+            } catch (SignalFlowException ex) {
+                failure = ex;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * @return the connections, open ones first, each group by increasing load
+     */
+    private synchronized List<Member> candidates() {
+        measure(System.nanoTime());
+        double total = 0;
+        int channels = 0;
+        for (Member member : members) {
+            total += member.rate;
+            channels += member.transport.getChannelCount();
+        }
+        // Channels placed since the last measurement count for an average channel's rate.
+        double perChannel = channels > 0 && total > 0 ? total / channels : 1;
+        List<Member> candidates = new ArrayList<Member>(members);
+        for (Member member : candidates) {
+            member.load = member.rate + member.placed * perChannel;
+        }
+        Collections.sort(candidates, byLoad);
+        return openFirst(candidates);
+    }
+
+    private static List<Member> openFirst(List<Member> members) {
+        List<Member> ordered = new ArrayList<Member>(members.size());
+        for (Member member : members) {
+            if (member.transport.isConnected()) {
+                ordered.add(member);
+            }
+        }
+        for (Member member : members) {
+            if (!member.transport.isConnected()) {
+                ordered.add(member);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Updates the message rates of the connections if the last measurement is old enough.
+     */
+    private void measure(long now) {
+        for (Member member : members) {
+            long elapsed = now - member.measuredAt;
+            if (elapsed < TimeUnit.MILLISECONDS.toNanos(RATE_INTERVAL_MS)) {
+                continue;
+            }
+            long count = member.transport.getReceivedMessageCount();
+            // The count may briefly go back while a connection is being replaced.
+            long received = Math.max(0, count - member.measuredCount);
+            double rate = received * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+            member.rate = RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * member.rate;
+            member.measuredAt = now;
+            member.measuredCount = count;
+            member.placed = 0;
+        }
+    }
+
+    private interface Placement<T> {
+        T open(WebSocketTransport transport);
+    }
+
+    /**
+     * A pooled connection and its load, guarded by the pool.
+     */
+    private static class Member {
+
+        private final WebSocketTransport transport;
+        private long measuredAt = System.nanoTime();
+        private long measuredCount;
+        private double rate;
+        private int placed;
+        private double load;
+
+        private Member(WebSocketTransport transport) {
+            this.transport = transport;
+        }
+    }
+}
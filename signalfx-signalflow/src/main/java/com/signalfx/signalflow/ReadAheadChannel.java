@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+import java.util.Collection;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.signalfx.signalflow.StreamMessage.Kind;
+
+/**
+ * Channel reading another one ahead on a thread of its own, for channels that cannot notify of
+ * new messages, such as those of {@link ServerSentEventsTransport}. Subscribed computations then
+ * wait for such channels on that thread, a virtual one on Java 21, rather than on the subscriber
+ * executor.
+ *
+ * The reader queues the messages of the channel, then the exception that ended it, and runs the
+ * message listener after each of them.
+ */
+final class ReadAheadChannel extends Channel {
+
+    private final Channel channel;
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+    private final Thread reader;
+    private volatile Runnable messageListener;
+    private volatile boolean closed;
+    private RuntimeException failure; // only used by the consumer
+
+    ReadAheadChannel(Channel channel) {
+        super(channel.getName());
+        this.channel = channel;
+        this.reader = Threads.newThread("signalflow-reader-" + channel.getName(), new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        });
+        this.reader.start();
+    }
+
+    private void read() {
+        try {
+            while (!isClosed()) {
+                enqueue(channel.next());
+            }
+        } catch (RuntimeException e) {
+            if (!isClosed()) {
+                enqueue(e);
+            }
+        }
+    }
+
+    private void enqueue(Object entry) {
+        queue.offer(entry);
+        Runnable listener = messageListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (isClosed()) {
+            throw new IllegalStateException("channel is closed");
+        }
+        return failure == null;
+    }
+
+    @Override
+    public ChannelMessage next() {
+        if (isClosed()) {
+            throw new IllegalStateException("channel is closed");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        try {
+            return take(queue.take());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NoSuchElementException("interrupted while waiting for a message");
+        }
+    }
+
+    @Override
+    public ChannelMessage poll(long timeout, TimeUnit unit) {
+        if (isClosed()) {
+            throw new IllegalStateException("channel is closed");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        try {
+            Object entry = queue.poll(timeout, unit);
+            return entry == null ? null : take(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NoSuchElementException("interrupted while waiting for a message");
+        }
+    }
+
+    private ChannelMessage take(Object entry) {
+        if (entry instanceof RuntimeException) {
+            failure = (RuntimeException) entry;
+            throw failure;
+        }
+        return (ChannelMessage) entry;
+    }
+
+    @Override
+    public boolean setMessageListener(Runnable listener) {
+        this.messageListener = listener;
+        return true;
+    }
+
+    @Override
+    public void setIgnoredKinds(Collection<Kind> kinds) {
+        channel.setIgnoredKinds(kinds);
+    }
+
+    @Override
+    public boolean isIgnored(Kind kind) {
+        return channel.isIgnored(kind);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove from channel not supported");
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        super.close();
+        channel.close();
+        reader.interrupt();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+}
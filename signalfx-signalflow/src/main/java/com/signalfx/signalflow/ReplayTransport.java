@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SignalFlow transport feeding computations from a recording made by a {@link FrameRecorder}
+ * instead of a server, to benchmark and debug consumers against captured streams.
+ *
+ * Each computation executed or attached to is given the next recorded channel, in the order
+ * they were opened when recording; the program and parameters are ignored. The recorded frames
+ * go through the same decoding as live ones, on a replay thread started with the first
+ * computation, either at their original pace, accelerated, or as fast as possible. Replay waits
+ * for the consumer to open each recorded channel before going past the point it was opened at,
+ * so that every run delivers the same messages. Computations complete when the recording ends.
+ *
+ * <pre>
+ * {@code
+ *  SignalFlowClient client = new SignalFlowClient(
+ *      new ReplayTransport.TransportBuilder(new File("capture.sfr")).setSpeed(10).build());
+ *  Computation computation = client.execute("recorded");
+ * }
+ * </pre>
+ */
+public class ReplayTransport implements SignalFlowTransport {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplayTransport.class);
+
+    /**
+     * Replays frames at the pace they were received.
+     */
+    public static final double ORIGINAL_SPEED = 1;
+
+    /**
+     * Replays frames without waiting between them.
+     */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    private final File file;
+    private final double speed;
+    private final List<String> channelNames;
+    private final WebSocketTransport.TransportConnection connection;
+    private final List<WebSocketTransport.TransportChannel> opened =
+            new ArrayList<WebSocketTransport.TransportChannel>();
+    private Thread replayer;
+    private volatile boolean closed;
+    private volatile long replayedFrames;
+
+    protected ReplayTransport(TransportBuilder builder) {
+        this.file = builder.file;
+        this.speed = builder.speed;
+        List<String> names;
+        try {
+            names = FrameRecording.channels(file);
+        } catch (IOException ex) {
+            throw new SignalFlowException("failed to read recording " + file, ex);
+        }
+        if (builder.maxChannels >= 0 && names.size() > builder.maxChannels) {
+            names = names.subList(0, builder.maxChannels);
+        }
+        this.channelNames = Collections.unmodifiableList(names);
+        this.connection = new WebSocketTransport.TransportConnection(null);
+    }
+
+    @Override
+    public Channel attach(String handle, Map<String, String> parameters) {
+        log.debug("attach: [ {} ] replays channel {}", handle, opened.size());
+        return open();
+    }
+
+    @Override
+    public Channel execute(String program, Map<String, String> parameters) {
+        log.debug("execute: [ {} ] replays channel {}", program, opened.size());
+        return open();
+    }
+
+    @Override
+    public Channel preflight(String program, Map<String, String> parameters) {
+        return open();
+    }
+
+    @Override
+    public void start(String program, Map<String, String> parameters) {
+        log.debug("start: [ {} ] ignored by replay", program);
+    }
+
+    @Override
+    public void stop(String handle, Map<String, String> parameters) {
+        log.debug("stop: [ {} ] ignored by replay", handle);
+    }
+
+    @Override
+    public void keepalive(String handle) {
+    }
+
+    @Override
+    public void close(int code, String reason) {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            thread = replayer;
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return names of the recorded channels that computations are given, in order
+     */
+    public List<String> getRecordedChannels() {
+        return channelNames;
+    }
+
+    /**
+     * @return number of frames replayed so far
+     */
+    public long getReplayedFrames() {
+        return replayedFrames;
+    }
+
+    private synchronized Channel open() {
+        if (closed) {
+            throw new SignalFlowException("replay transport is closed");
+        }
+        if (opened.size() >= channelNames.size()) {
+            throw new SignalFlowException("all " + channelNames.size()
+                    + " recorded channels of " + file + " are already replayed");
+        }
+        WebSocketTransport.TransportChannel channel = new WebSocketTransport.TransportChannel(
+                connection, channelNames.get(opened.size()));
+        opened.add(channel);
+        notifyAll();
+        if (replayer == null) {
+            replayer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    replay();
+                }
+            }, "signalflow-replay");
+            replayer.setDaemon(true);
+            replayer.start();
+        }
+        return channel;
+    }
+
+    private void replay() {
+        FrameRecording recording = null;
+        try {
+            recording = new FrameRecording(file);
+            int channels = 0;
+            long startNanos = 0;
+            long startMicros = -1;
+            FrameRecording.Record record;
+            while (!closed && (record = recording.next()) != null) {
+                switch (record.type) {
+                case FrameRecorder.SYNC:
+                    // Appended recording: its first frame plays right away.
+                    startMicros = -1;
+                    break;
+                case FrameRecorder.CHANNEL:
+                    if (channels < channelNames.size()) {
+                        channels++;
+                        long waited = awaitOpened(channels);
+                        if (waited < 0) {
+                            return;
+                        }
+                        startNanos += waited;
+                    }
+                    break;
+                default:
+                    if (startMicros < 0) {
+                        startMicros = record.timeMicros;
+                        startNanos = System.nanoTime();
+                    } else if (speed > 0) {
+                        long due = startNanos
+                                + (long) ((record.timeMicros - startMicros) * 1000 / speed);
+                        long delay = due - System.nanoTime();
+                        if (delay > 0) {
+                            TimeUnit.NANOSECONDS.sleep(delay);
+                        }
+                    }
+                    if (record.type == FrameRecorder.TEXT) {
+                        connection.onWebSocketText(record.text());
+                    } else {
+                        connection.onWebSocketBinary(record.payload, 0, record.payload.length);
+                    }
+                    replayedFrames++;
+                }
+            }
+            if (!closed) {
+                endChannels();
+            }
+        } catch (InterruptedException ex) {
+            // closed
+        } catch (IOException ex) {
+            log.error("failed to replay recording {}", file, ex);
+            endChannels();
+        } finally {
+            if (recording != null) {
+                try {
+                    recording.close();
+                } catch (IOException ex) {
+                    log.debug("failed to close recording", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the given number of channels were opened by the consumer.
+     *
+     * @return nanoseconds waited, or -1 if the transport was closed
+     */
+    private synchronized long awaitOpened(int count) throws InterruptedException {
+        long start = System.nanoTime();
+        while (!closed && opened.size() < count) {
+            wait();
+        }
+        return closed ? -1 : System.nanoTime() - start;
+    }
+
+    /**
+     * Completes the computations still open at the end of the recording.
+     */
+    private void endChannels() {
+        List<WebSocketTransport.TransportChannel> channels;
+        synchronized (this) {
+            channels = new ArrayList<WebSocketTransport.TransportChannel>(opened);
+        }
+        StreamMessage end = new StreamMessage("control-message", null,
+                "{\"event\":\"END_OF_CHANNEL\",\"timestampMs\":" + System.currentTimeMillis()
+                        + "}");
+        for (WebSocketTransport.TransportChannel channel : channels) {
+            if (!channel.isClosed()) {
+                channel.deliver(end);
+            }
+        }
+    }
+
+    public static class TransportBuilder {
+
+        private final File file;
+        private double speed = ORIGINAL_SPEED;
+        private int maxChannels = -1;
+
+        /**
+         * @param file
+         *            recording to replay
+         */
+        public TransportBuilder(File file) {
+            this.file = file;
+        }
+
+        /**
+         * @param speed
+         *            how many times faster than recorded to replay frames;
+         *            {@link #AS_FAST_AS_POSSIBLE} for no pacing
+         * @return this
+         */
+        public TransportBuilder setSpeed(double speed) {
+            if (speed < 0) {
+                throw new IllegalArgumentException("speed must not be negative");
+            }
+            this.speed = speed;
+            return this;
+        }
+
+        /**
+         * @param maxChannels
+         *            number of recorded channels to replay; frames of the others are dropped.
+         *            All of them by default.
+         * @return this
+         */
+        public TransportBuilder setMaxChannels(int maxChannels) {
+            this.maxChannels = maxChannels;
+            return this;
+        }
+
+        /**
+         * @throws SignalFlowException
+         *             if the recording cannot be read
+         */
+        public ReplayTransport build() {
+            return new ReplayTransport(this);
+        }
+    }
+}
@@ -3,20 +3,22 @@
  */
 package com.signalfx.signalflow;
 
-import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.regex.Pattern;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.NameValuePair;
 import org.apache.http.StatusLine;
@@ -24,9 +26,12 @@ import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,8 +43,10 @@ import com.signalfx.endpoint.SignalFxEndpoint;
  *
  * Implements a transport to the SignalFlow API that uses simple HTTP requests and reads Server-Sent
  * Events streams back from SignalFx. One connection per SignalFlow computation is required when
- * using this transport. This is a good transport for single, ad-hoc computations. For most use
- * cases though, the WebSocket-based transport is more efficient and has lower latency.
+ * using this transport; connections are taken from a pool shared by the channels and the control
+ * requests of the transport, and kept alive between requests. This is a good transport for single,
+ * ad-hoc computations. For most use cases though, the WebSocket-based transport is more efficient
+ * and has lower latency.
  *
  * @author dgriff
  */
@@ -48,12 +55,18 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
     protected static final Logger log = LoggerFactory.getLogger(ServerSentEventsTransport.class);
     public static final Integer DEFAULT_TIMEOUT = 1000;
     public static final Integer DEFAULT_MAX_RETRIES = 3;
+    public static final int DEFAULT_MAX_CONNECTIONS = 100;
 
     protected final String token;
     protected final SignalFxEndpoint endpoint;
     protected final String path;
     protected Integer timeout = DEFAULT_TIMEOUT;
     protected Integer maxRetries = DEFAULT_MAX_RETRIES;
+    protected final int maxConnections;
+    protected final boolean compress;
+    private final Lock connectionLock = new ReentrantLock();
+    private volatile TransportConnection connection;
+    private volatile boolean isClosed;
 
     protected ServerSentEventsTransport(final String token, final SignalFxEndpoint endpoint,
                                         final int apiVersion, final Integer timeout) {
@@ -62,11 +75,50 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
 
     protected ServerSentEventsTransport(final String token, final SignalFxEndpoint endpoint,
                                         final int apiVersion, final Integer timeout, final Integer maxRetries) {
+        this(token, endpoint, apiVersion, timeout, maxRetries, DEFAULT_MAX_CONNECTIONS, true);
+    }
+
+    protected ServerSentEventsTransport(final String token, final SignalFxEndpoint endpoint,
+                                        final int apiVersion, final Integer timeout,
+                                        final Integer maxRetries, final int maxConnections,
+                                        final boolean compress) {
         this.token = token;
         this.endpoint = endpoint;
         this.path = "/v" + apiVersion + "/signalflow";
         this.timeout = timeout;
         this.maxRetries = maxRetries;
+        this.maxConnections = maxConnections;
+        this.compress = compress;
+    }
+
+    /**
+     * @return the connection shared by the channels and requests of this transport
+     */
+    protected TransportConnection connection() {
+        TransportConnection connection = this.connection;
+        if (connection != null) {
+            return connection;
+        }
+
+        // A lock rather than a monitor, so that virtual threads waiting for the connection do
+        // not pin their carrier thread.
+        connectionLock.lock();
+        try {
+            if (isClosed) {
+                throw new SignalFlowException("transport is closed");
+            }
+            if (this.connection == null) {
+                PoolingHttpClientConnectionManager connectionManager =
+                        new PoolingHttpClientConnectionManager();
+                connectionManager.setMaxTotal(maxConnections);
+                connectionManager.setDefaultMaxPerRoute(maxConnections);
+                this.connection = new TransportConnection(this.endpoint, timeout, maxRetries,
+                        connectionManager, compress);
+            }
+            return this.connection;
+        } finally {
+            connectionLock.unlock();
+        }
     }
 
     @Override
@@ -75,18 +127,15 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
             log.debug("attach: [ {} ] with parameters: {}", handle, parameters);
         }
 
-        TransportConnection connection = null;
         CloseableHttpResponse response = null;
         try {
-            connection = new TransportConnection(this.endpoint, timeout, maxRetries);
-
+            TransportConnection connection = connection();
             response = connection.post(this.token, this.path + "/" + handle + "/attach", parameters,
                     null);
 
-            return new TransportChannel(connection, response);
+            return new TransportChannel(connection, response, false);
         } catch (Exception ex) {
             close(response);
-            close(connection);
             throw new SignalFlowException("failed to create transport channel for attach", ex);
         }
     }
@@ -98,17 +147,14 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
             log.debug("execute: [ {} ] with parameters: {}", program, parameters);
         }
 
-        TransportConnection connection = null;
         CloseableHttpResponse response = null;
         try {
-            connection = new TransportConnection(this.endpoint, timeout, maxRetries);
-
+            TransportConnection connection = connection();
             response = connection.post(this.token, this.path + "/execute", parameters, program);
 
-            return new TransportChannel(connection, response);
+            return new TransportChannel(connection, response, false);
         } catch (IOException ioex) {
             close(response);
-            close(connection);
             throw new SignalFlowException("failed to create transport channel for execute", ioex);
         }
     }
@@ -120,17 +166,14 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
             log.debug("preflight: [ {} ] with parameters: {}", program, parameters);
         }
 
-        TransportConnection connection = null;
         CloseableHttpResponse response = null;
         try {
-            connection = new TransportConnection(this.endpoint, timeout, maxRetries);
-
+            TransportConnection connection = connection();
             response = connection.post(this.token, this.path + "/preflight", parameters, program);
 
-            return new TransportChannel(connection, response);
+            return new TransportChannel(connection, response, false);
         } catch (IOException ioex) {
             close(response);
-            close(connection);
             throw new SignalFlowException("failed to create transport channel for execute", ioex);
         }
     }
@@ -140,16 +183,14 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
             log.debug("start: [ {} ] with parameters: {}", program, parameters);
         }
 
-        TransportConnection connection = null;
         CloseableHttpResponse response = null;
         try {
-            connection = new TransportConnection(this.endpoint, timeout, maxRetries);
-            response = connection.post(this.token, this.path + "/start", parameters, program);
+            response = connection().post(this.token, this.path + "/start", parameters, program);
+            EntityUtils.consume(response.getEntity()); // lets the connection be reused
         } catch (Exception ex) {
             throw new SignalFlowException("failed to start program - " + program, ex);
         } finally {
             close(response);
-            close(connection);
         }
     }
 
@@ -159,17 +200,15 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
             log.debug("stop: [ {} ] with parameters: {}", handle, parameters);
         }
 
-        TransportConnection connection = null;
         CloseableHttpResponse response = null;
         try {
-            connection = new TransportConnection(this.endpoint, timeout, maxRetries);
-            response = connection.post(this.token, this.path + "/" + handle + "/stop", parameters,
+            response = connection().post(this.token, this.path + "/" + handle + "/stop", parameters,
                     null);
+            EntityUtils.consume(response.getEntity()); // lets the connection be reused
         } catch (Exception ex) {
             throw new SignalFlowException("failed to stop program - " + handle, ex);
         } finally {
             close(response);
-            close(connection);
         }
     }
 
@@ -179,23 +218,30 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
             log.debug("keepalive: [ {} ]", handle);
         }
 
-        TransportConnection connection = null;
         CloseableHttpResponse response = null;
         try {
-            connection = new TransportConnection(this.endpoint, timeout, maxRetries);
-            response = connection.post(this.token, this.path + "/" + handle + "/keepalive", null,
+            response = connection().post(this.token, this.path + "/" + handle + "/keepalive", null,
                     null);
+            EntityUtils.consume(response.getEntity()); // lets the connection be reused
         } catch (Exception ex) {
             throw new SignalFlowException("failed to set keepalive for program - " + handle, ex);
         } finally {
             close(response);
-            close(connection);
         }
     }
 
     @Override
     public void close(int code, String reason) {
-        // nothing to close (separate connections are used and closed by the channel using it)
+        TransportConnection connection;
+        connectionLock.lock();
+        try {
+            isClosed = true;
+            connection = this.connection;
+            this.connection = null;
+        } finally {
+            connectionLock.unlock();
+        }
+        close(connection);
     }
 
     private void close(CloseableHttpResponse response) {
@@ -229,6 +275,8 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
         private int port = 443;
         private int timeout = 1;
         private int version = 2;
+        private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        private boolean compress = true;
 
         public TransportBuilder(String token) {
             this.token = token;
@@ -259,10 +307,32 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
             return this;
         }
 
+        /**
+         * @param maxConnections
+         *            maximum number of connections of the transport, each open channel using one
+         *            for as long as it streams
+         * @return this builder
+         */
+        public TransportBuilder setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * @param compress
+         *            whether to ask for gzip or deflate compressed event streams
+         * @return this builder
+         */
+        public TransportBuilder useCompression(boolean compress) {
+            this.compress = compress;
+            return this;
+        }
+
         public ServerSentEventsTransport build() {
             SignalFxEndpoint endpoint = new SignalFxEndpoint(this.protocol, this.host, this.port);
             ServerSentEventsTransport transport = new ServerSentEventsTransport(this.token,
-                    endpoint, this.version, this.timeout * 1000);
+                    endpoint, this.version, this.timeout * 1000, DEFAULT_MAX_RETRIES,
+                    this.maxConnections, this.compress);
             return transport;
         }
     }
@@ -276,15 +346,34 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
         public static final int DEFAULT_TIMEOUT_MS = 1000;
         public static final int DEFAULT_MAX_RETRIES = 3;
         protected final RequestConfig transportRequestConfig;
+        protected final boolean compress;
 
         public TransportConnection(SignalFxEndpoint endpoint) {
             this(endpoint, DEFAULT_TIMEOUT_MS, DEFAULT_MAX_RETRIES);
         }
 
         public TransportConnection(SignalFxEndpoint endpoint, int timeoutMs, int maxRetries) {
-            super(endpoint, timeoutMs, maxRetries, new BasicHttpClientConnectionManager());
+            this(endpoint, timeoutMs, maxRetries, new BasicHttpClientConnectionManager());
+        }
+
+        public TransportConnection(SignalFxEndpoint endpoint, int timeoutMs, int maxRetries,
+                                   HttpClientConnectionManager connectionManager) {
+            this(endpoint, timeoutMs, maxRetries, connectionManager, true);
+        }
+
+        /**
+         * @param compress
+         *            whether to ask for compressed responses. They are decompressed by the
+         *            channels as they stream, rather than by the HTTP client.
+         */
+        public TransportConnection(SignalFxEndpoint endpoint, int timeoutMs, int maxRetries,
+                                   HttpClientConnectionManager connectionManager,
+                                   boolean compress) {
+            super(endpoint, timeoutMs, maxRetries, connectionManager);
+            this.compress = compress;
 
             this.transportRequestConfig = RequestConfig.custom().setSocketTimeout(0)
+                    .setContentCompressionEnabled(false)
                     .setConnectionRequestTimeout(this.requestConfig.getConnectionRequestTimeout())
                     .setConnectTimeout(this.requestConfig.getConnectTimeout())
                     .setProxy(this.requestConfig.getProxy()).build();
@@ -312,6 +401,9 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
                 httpPost.setHeader("X-SF-TOKEN", token);
                 httpPost.setHeader("User-Agent", USER_AGENT);
                 httpPost.setHeader("Content-Type", "text/plain");
+                if (compress) {
+                    httpPost.setHeader("Accept-Encoding", "gzip, deflate");
+                }
                 if (body != null) {
                     HttpEntity httpEntity = new StringEntity(body);
                     httpPost.setEntity(httpEntity);
@@ -362,16 +454,42 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
         private CloseableHttpResponse response;
         private HttpEntity responseHttpEntity;
         private TransportEventStreamParser streamParser;
+        private final boolean closeConnection;
 
+        /**
+         * Creates a channel that closes the given connection when closed.
+         */
         public TransportChannel(final TransportConnection connection,
                                 final CloseableHttpResponse response)
                 throws IOException {
+            this(connection, response, true);
+        }
+
+        /**
+         * @param connection
+         *            connection the response was received on
+         * @param response
+         *            response streaming the computation's events
+         * @param closeConnection
+         *            whether to close the connection along with the channel, or only release the
+         *            response
+         */
+        public TransportChannel(final TransportConnection connection,
+                                final CloseableHttpResponse response,
+                                final boolean closeConnection)
+                throws IOException {
             super();
             this.connection = connection;
+            this.closeConnection = closeConnection;
             this.response = response;
             this.responseHttpEntity = response.getEntity();
-            this.streamParser = new TransportEventStreamParser(
-                    this.responseHttpEntity.getContent());
+
+            InputStream content = this.responseHttpEntity.getContent();
+            Header encoding = this.responseHttpEntity.getContentEncoding();
+            if (encoding != null && StreamInflater.isCompressed(encoding.getValue())) {
+                content = new StreamInflater(content, encoding.getValue());
+            }
+            this.streamParser = new TransportEventStreamParser(content);
             this.iterator = this.streamParser;
 
             log.debug("constructed {} of type {}", this, this.getClass().getName());
@@ -387,42 +505,62 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
                 log.error("failed to close response", ex);
             }
 
-            try {
-                this.connection.close();
-            } catch (IOException ex) {
-                log.error("failed to close connection", ex);
+            if (closeConnection) {
+                try {
+                    this.connection.close();
+                } catch (IOException ex) {
+                    log.error("failed to close connection", ex);
+                }
             }
 
             this.streamParser.close();
         }
     }
 
+    /**
+     * Iterator over the messages of a Server-Sent Events stream.
+     *
+     * The stream is scanned as UTF-8 bytes in a reusable buffer. Field names are matched on
+     * their bytes, and the data of each message is handed over as a byte slice, decoded only by
+     * the channel message decoder.
+     */
     public static class TransportEventStreamParser implements Iterator<StreamMessage>, Closeable {
 
         protected static final Logger log = LoggerFactory
                 .getLogger(TransportEventStreamParser.class);
 
-        private static final String EVENT = "event";
-        private static final String ID = "id";
-        private static final String DATA = "data";
-        private static final String RETRY = "retry";
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+        private static final byte[] EVENT = "event".getBytes(UTF_8);
+        private static final byte[] ID = "id".getBytes(UTF_8);
+        private static final byte[] DATA = "data".getBytes(UTF_8);
+        private static final byte[] RETRY = "retry".getBytes(UTF_8);
         private static final String DEFAULT_EVENT = "message";
-        private static final String EMPTY_STRING = "";
-        private static final Pattern DIGITS_ONLY = Pattern.compile("^[\\d]+$");
+        private static final int INITIAL_BUFFER_SIZE = 8192;
 
-        private BufferedReader eventStreamReader;
+        private InputStream eventStream;
         private boolean endOfStreamReached = false;
 
+        // Bytes read from the stream; those between position and limit are not parsed yet.
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        private int position;
+        private int limit;
+        private boolean skipLineFeed;
+
+        // Bounds of the last line read, in the buffer
+        private int lineStart;
+        private int lineEnd;
+
+        private byte[] dataBuffer = new byte[INITIAL_BUFFER_SIZE];
+        private int dataLength;
+
         private int reconnectionTimeoutMs = 1000; // default is 1 second
         private StreamMessage nextMessage;
         private String lastEventId;
         private String eventNameBuffer = DEFAULT_EVENT;
-        private StringBuilder dataBuffer = new StringBuilder();
 
         public TransportEventStreamParser(final InputStream eventStream)
                 throws UnsupportedEncodingException {
-            this.eventStreamReader = new BufferedReader(
-                    new InputStreamReader(eventStream, "UTF-8"));
+            this.eventStream = eventStream;
         }
 
         public String getLastEventId() {
@@ -435,7 +573,7 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
 
         @Override
         public boolean hasNext() {
-            while ((endOfStreamReached == false) && (eventStreamReader != null)
+            while ((endOfStreamReached == false) && (eventStream != null)
                     && (nextMessage == null)) {
                 parseNext();
             }
@@ -445,7 +583,7 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
 
         @Override
         public StreamMessage next() {
-            while ((endOfStreamReached == false) && (eventStreamReader != null)
+            while ((endOfStreamReached == false) && (eventStream != null)
                     && (nextMessage == null)) {
                 parseNext();
             }
@@ -471,10 +609,10 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
 
         @Override
         public void close() {
-            if (this.eventStreamReader != null) {
+            if (this.eventStream != null) {
                 try {
-                    this.eventStreamReader.close();
-                    this.eventStreamReader = null;
+                    this.eventStream.close();
+                    this.eventStream = null;
                 } catch (IOException ex) {
                     log.error("failed to close event stream", ex);
                 }
@@ -482,51 +620,32 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
         }
 
         private void parseNext() {
-            if (eventStreamReader != null) {
+            if (eventStream != null) {
                 try {
-                    long startTime = System.currentTimeMillis();
-                    dataBuffer.setLength(0);
-
-                    String line;
-                    while ((line = eventStreamReader.readLine()) != null) {
-                        int colonIndex;
-                        if (line.trim().isEmpty()) {
-                            // message ready for dispatch
-                            break;
-                        } else if (line.startsWith(":")) {
-                            // ignore the line
-                        } else if ((colonIndex = line.indexOf(":")) != -1) {
-                            String field = line.substring(0, colonIndex);
-                            String value = line.substring(colonIndex + 1).replaceFirst(" ",
-                                    EMPTY_STRING);
-                            processField(field, value);
-                        } else {
-                            processField(line.trim(), EMPTY_STRING);
+                    dataLength = 0;
+
+                    boolean lineRead;
+                    while ((lineRead = readLine()) && lineEnd > lineStart) {
+                        if (buffer[lineStart] != ':') { // lines starting with a colon are comments
+                            processLine();
                         }
                     }
 
-                    if (line == null) {
+                    if (!lineRead) {
                         // end of stream reached
                         endOfStreamReached = true;
                         close();
                     }
 
-                    if (dataBuffer.length() > 0) {
-                        String data = dataBuffer.toString();
-                        if (data.endsWith("\n")) {
-                            data = data.substring(0, data.length() - 1);
-                        }
-
-                        nextMessage = new StreamMessage(eventNameBuffer, lastEventId, data);
-
+                    if (dataLength > 0) {
+                        // The data of the last line does not end with a line feed.
+                        byte[] data = Arrays.copyOf(dataBuffer, dataLength - 1);
+                        nextMessage = new StreamMessage(eventNameBuffer, lastEventId, data, 0,
+                                data.length);
                     } else {
-                        log.debug(eventNameBuffer.toString());
-                        eventNameBuffer = EMPTY_STRING;
                         nextMessage = null;
                     }
-
-                    log.debug("total stream message read/parse time (ms): {}",
-                            (System.currentTimeMillis() - startTime));
+                    eventNameBuffer = DEFAULT_EVENT;
 
                 } catch (IOException ex) {
                     log.error("failed to parse next stream event", ex);
@@ -537,19 +656,155 @@ public class ServerSentEventsTransport implements SignalFlowTransport {
             }
         }
 
-        private void processField(String field, String value) {
-            if (DATA.equals(field)) {
-                dataBuffer.append(value).append("\n");
-            } else if (ID.equals(field)) {
-                lastEventId = value;
-            } else if (EVENT.equals(field)) {
-                eventNameBuffer = value;
-            } else if (RETRY.equals(field)) {
-                if (DIGITS_ONLY.matcher(value).matches()) {
+        /**
+         * Reads the next line, ended by a carriage return, a line feed or both, into
+         * {@code lineStart} and {@code lineEnd}.
+         *
+         * @return false if the stream ended
+         */
+        private boolean readLine() throws IOException {
+            int scan = position;
+            while (true) {
+                if (skipLineFeed && scan < limit) {
+                    skipLineFeed = false;
+                    if (buffer[scan] == '\n') {
+                        position = ++scan;
+                    }
+                }
+                for (; scan < limit; scan++) {
+                    byte b = buffer[scan];
+                    if (b == '\n' || b == '\r') {
+                        lineStart = position;
+                        lineEnd = scan;
+                        position = scan + 1;
+                        skipLineFeed = b == '\r';
+                        return true;
+                    }
+                }
+                scan -= position;
+                if (!fill()) {
+                    if (position == limit) {
+                        return false;
+                    }
+                    // the stream ended in the middle of the last line
+                    lineStart = position;
+                    lineEnd = limit;
+                    position = limit;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Moves the unparsed bytes to the start of the buffer, growing it if they fill it, and
+         * reads more bytes after them.
+         *
+         * @return false if the stream ended
+         */
+        private boolean fill() throws IOException {
+            int remaining = limit - position;
+            if (remaining == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            } else if (position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, remaining);
+            }
+            position = 0;
+            limit = remaining;
+            int read;
+            do {
+                read = eventStream.read(buffer, limit, buffer.length - limit);
+            } while (read == 0);
+            if (read < 0) {
+                return false;
+            }
+            limit += read;
+            return true;
+        }
+
+        private void processLine() {
+            int colon = lineStart;
+            while (colon < lineEnd && buffer[colon] != ':') {
+                colon++;
+            }
+            int valueStart = colon;
+            if (colon < lineEnd) {
+                valueStart++;
+                if (valueStart < lineEnd && buffer[valueStart] == ' ') {
+                    valueStart++;
+                }
+            }
+
+            if (isField(DATA, colon)) {
+                appendData(valueStart, lineEnd - valueStart);
+            } else if (isField(ID, colon)) {
+                lastEventId = new String(buffer, valueStart, lineEnd - valueStart, UTF_8);
+            } else if (isField(EVENT, colon)) {
+                eventNameBuffer = eventName(valueStart, lineEnd - valueStart);
+            } else if (isField(RETRY, colon)) {
+                int retry = parseDigits(valueStart, lineEnd);
+                if (retry >= 0) {
                     // set event stream's reconnection time to integer value
-                    reconnectionTimeoutMs = Integer.parseInt(value);
+                    reconnectionTimeoutMs = retry;
+                }
+            }
+        }
+
+        private boolean isField(byte[] name, int fieldEnd) {
+            if (fieldEnd - lineStart != name.length) {
+                return false;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if (buffer[lineStart + i] != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void appendData(int offset, int length) {
+            int required = dataLength + length + 1;
+            if (required > dataBuffer.length) {
+                dataBuffer = Arrays.copyOf(dataBuffer, Math.max(required, dataBuffer.length * 2));
+            }
+            System.arraycopy(buffer, offset, dataBuffer, dataLength, length);
+            dataLength += length;
+            dataBuffer[dataLength++] = '\n';
+        }
+
+        /**
+         * @return the event name, reusing the previous one when it is the same
+         */
+        private String eventName(int offset, int length) {
+            String previous = eventNameBuffer;
+            if (previous.length() == length) {
+                int i = 0;
+                while (i < length && previous.charAt(i) == buffer[offset + i]) {
+                    i++;
+                }
+                if (i == length) {
+                    return previous;
+                }
+            }
+            return new String(buffer, offset, length, UTF_8);
+        }
+
+        /**
+         * @return the value of the given ASCII digits, or -1 if there are none or other
+         *         characters
+         */
+        private int parseDigits(int start, int end) {
+            if (start == end || end - start > 9) {
+                return -1;
+            }
+            int value = 0;
+            for (int i = start; i < end; i++) {
+                int digit = buffer[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return -1;
                 }
+                value = value * 10 + digit;
             }
+            return value;
         }
     }
 }
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Jetty {@link WebSocketClient}, with its selector and worker threads, that several
+ * {@link WebSocketTransport}s can connect through.
+ *
+ * The client is started when the first transport using it is built, and stopped when the last
+ * of them is closed. It can be used again afterwards, in which case it is started anew.
+ *
+ * <pre>
+ * SharedWebSocketClient client = new SharedWebSocketClient.Builder()
+ *         .setSelectorThreads(1)
+ *         .setMaxThreads(16)
+ *         .build();
+ * WebSocketTransport first = new WebSocketTransport.TransportBuilder(firstToken)
+ *         .setWebSocketClient(client).build();
+ * WebSocketTransport second = new WebSocketTransport.TransportBuilder(secondToken)
+ *         .setWebSocketClient(client).build();
+ * </pre>
+ */
+public class SharedWebSocketClient {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedWebSocketClient.class);
+
+    private final int selectorThreads;
+    private final int minThreads;
+    private final int maxThreads;
+    private final long connectTimeoutMs;
+    private final int maxBinaryMessageSize;
+    private final int maxTextMessageSize;
+    private final int inputBufferSize;
+    private final int messageBufferSize;
+    private WebSocketClient webSocketClient;
+    private int references;
+
+    protected SharedWebSocketClient(Builder builder) {
+        this.selectorThreads = builder.selectorThreads;
+        this.minThreads = builder.minThreads;
+        this.maxThreads = builder.maxThreads;
+        this.connectTimeoutMs = builder.connectTimeoutMs;
+        this.maxBinaryMessageSize = builder.maxBinaryMessageSize;
+        this.maxTextMessageSize = builder.maxTextMessageSize;
+        this.inputBufferSize = builder.inputBufferSize;
+        this.messageBufferSize = builder.messageBufferSize;
+    }
+
+    /**
+     * Adds a user of the client, starting it if it has none.
+     *
+     * @return the started client
+     * @throws Exception
+     *             if the client could not be started
+     */
+    synchronized WebSocketClient acquire() throws Exception {
+        if (webSocketClient == null) {
+            WebSocketClient client = newWebSocketClient();
+            try {
+                client.start();
+            } catch (Exception ex) {
+                stop(client);
+                throw ex;
+            }
+            webSocketClient = client;
+        }
+        references++;
+        return webSocketClient;
+    }
+
+    /**
+     * Removes a user of the client, stopping it if none are left.
+     */
+    synchronized void release() {
+        if (references == 0) {
+            throw new IllegalStateException("websocket client is not in use");
+        }
+        if (--references == 0) {
+            WebSocketClient client = webSocketClient;
+            webSocketClient = null;
+            stop(client);
+        }
+    }
+
+    /**
+     * @return number of transports currently using the client
+     */
+    public synchronized int getReferenceCount() {
+        return references;
+    }
+
+    private WebSocketClient newWebSocketClient() {
+        WebSocketClient client;
+        if (selectorThreads > 0 || maxThreads > 0) {
+            HttpClient httpClient = new HttpClient(selectorThreads > 0
+                    ? new HttpClientTransportOverHTTP(selectorThreads)
+                    : new HttpClientTransportOverHTTP(), new SslContextFactory.Client());
+            QueuedThreadPool threadPool = maxThreads > 0
+                    ? new QueuedThreadPool(maxThreads, minThreads > 0
+                            ? Math.min(minThreads, maxThreads) : Math.min(8, maxThreads))
+                    : new QueuedThreadPool();
+            threadPool.setName("signalflow-websocket");
+            threadPool.setDaemon(true);
+            httpClient.setExecutor(threadPool);
+            client = new WebSocketClient(httpClient);
+        } else {
+            client = new WebSocketClient(new HttpClient(new SslContextFactory.Client()));
+        }
+
+        WebSocketPolicy policy = client.getPolicy();
+        if (maxBinaryMessageSize > 0) {
+            policy.setMaxBinaryMessageSize(maxBinaryMessageSize);
+        }
+        if (maxTextMessageSize > 0) {
+            policy.setMaxTextMessageSize(maxTextMessageSize);
+        }
+        if (inputBufferSize > 0) {
+            policy.setInputBufferSize(inputBufferSize);
+        }
+        if (messageBufferSize > 0) {
+            policy.setMaxBinaryMessageBufferSize(messageBufferSize);
+            policy.setMaxTextMessageBufferSize(messageBufferSize);
+        }
+        if (connectTimeoutMs > 0) {
+            client.setConnectTimeout(connectTimeoutMs);
+        }
+        return client;
+    }
+
+    private static void stop(WebSocketClient client) {
+        try {
+            client.stop();
+            // A client built on an HttpClient of ours does not always stop it.
+            client.getHttpClient().stop();
+        } catch (Exception e) {
+            log.warn("error closing websocket client", e);
+        }
+    }
+
+    /**
+     * Builder of shared WebSocket clients. Thread counts left unset keep Jetty's defaults.
+     */
+    public static class Builder {
+
+        private int selectorThreads = -1;
+        private int minThreads = -1;
+        private int maxThreads = -1;
+        private long connectTimeoutMs = -1;
+        private int maxBinaryMessageSize = -1;
+        private int maxTextMessageSize = -1;
+        private int inputBufferSize = -1;
+        private int messageBufferSize = -1;
+
+        /**
+         * @param threads
+         *            number of threads selecting on the client's sockets
+         * @return this
+         */
+        public Builder setSelectorThreads(int threads) {
+            this.selectorThreads = threads;
+            return this;
+        }
+
+        /**
+         * @param threads
+         *            number of threads the client's pool keeps even when idle
+         * @return this
+         */
+        public Builder setMinThreads(int threads) {
+            this.minThreads = threads;
+            return this;
+        }
+
+        /**
+         * @param threads
+         *            maximum number of threads in the client's pool, selector threads included
+         * @return this
+         */
+        public Builder setMaxThreads(int threads) {
+            this.maxThreads = threads;
+            return this;
+        }
+
+        public Builder setConnectTimeoutMs(long timeoutMs) {
+            this.connectTimeoutMs = timeoutMs;
+            return this;
+        }
+
+        public Builder setMaxBinaryMessageSize(int size) {
+            this.maxBinaryMessageSize = size;
+            return this;
+        }
+
+        /**
+         * @see WebSocketTransport.TransportBuilder#setMaxTextMessageSize(int)
+         */
+        public Builder setMaxTextMessageSize(int size) {
+            this.maxTextMessageSize = size;
+            return this;
+        }
+
+        /**
+         * @see WebSocketTransport.TransportBuilder#setInputBufferSize(int)
+         */
+        public Builder setInputBufferSize(int size) {
+            this.inputBufferSize = size;
+            return this;
+        }
+
+        /**
+         * @see WebSocketTransport.TransportBuilder#setMessageBufferSize(int)
+         */
+        public Builder setMessageBufferSize(int size) {
+            this.messageBufferSize = size;
+            return this;
+        }
+
+        public SharedWebSocketClient build() {
+            return new SharedWebSocketClient(this);
+        }
+    }
+}
@@ -5,6 +5,8 @@ package com.signalfx.signalflow;
 
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
@@ -20,7 +22,15 @@ import com.google.common.collect.ImmutableMap;
  */
 public class SignalFlowClient implements AutoCloseable {
 
+    /**
+     * Number of threads of the executor that delivers messages to subscribers, unless one is given.
+     * On Java 21 and later, each delivery runs on a virtual thread instead and this does not apply.
+     */
+    public static final int DEFAULT_SUBSCRIBER_THREADS = 2;
+
     private SignalFlowTransport transport;
+    private Executor subscriberExecutor;
+    private ExecutorService ownedExecutor;
 
     /**
      * Client Constructor that uses default transport/settings
@@ -42,6 +52,20 @@ public class SignalFlowClient implements AutoCloseable {
         this.transport = transport;
     }
 
+    /**
+     * Client Constructor that uses custom transport and delivers messages to subscribers on the
+     * given executor
+     *
+     * @param transport
+     *            custom created transport
+     * @param subscriberExecutor
+     *            executor shared by all subscriptions; not shut down by {@link #close()}
+     */
+    public SignalFlowClient(SignalFlowTransport transport, Executor subscriberExecutor) {
+        this.transport = transport;
+        this.subscriberExecutor = subscriberExecutor;
+    }
+
     /**
      * Execute the given SignalFlow program and stream the output back.
      *
@@ -145,6 +169,35 @@ public class SignalFlowClient implements AutoCloseable {
         return new Computation(this.transport, program, params, false);
     }
 
+    /**
+     * Execute the given SignalFlow program and push its output to the given subscriber.
+     *
+     * @param program
+     *            computation written in signalflow language
+     * @param subscriber
+     *            receiver of the computation's output
+     * @return computation instance
+     */
+    public Computation subscribe(String program, ComputationSubscriber subscriber) {
+        Computation computation = execute(program);
+        subscribe(computation, subscriber);
+        return computation;
+    }
+
+    /**
+     * Push the output of a computation returned by {@code execute()} or {@code attach()} to the
+     * given subscriber instead of iterating over it. Messages are delivered on an executor shared
+     * by all the subscriptions of this client.
+     *
+     * @param computation
+     *            computation instance that was not iterated over yet
+     * @param subscriber
+     *            receiver of the computation's output
+     */
+    public void subscribe(Computation computation, ComputationSubscriber subscriber) {
+        computation.subscribe(subscriber, getSubscriberExecutor());
+    }
+
     /**
      * Start executing the given SignalFlow program without being attached to the output of the
      * computation.
@@ -235,6 +288,20 @@ public class SignalFlowClient implements AutoCloseable {
     @Override
     public void close() {
         this.transport.close(1000, null);
+        synchronized (this) {
+            if (ownedExecutor != null) {
+                ownedExecutor.shutdown();
+            }
+        }
+    }
+
+    private synchronized Executor getSubscriberExecutor() {
+        if (subscriberExecutor == null) {
+            ownedExecutor = Threads.newExecutor("signalflow-subscriber",
+                    DEFAULT_SUBSCRIBER_THREADS);
+            subscriberExecutor = ownedExecutor;
+        }
+        return subscriberExecutor;
     }
 
     private static Map<String, String> buildParams(Object... params) {
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a gzip or deflate encoded HTTP response body as it streams in.
+ *
+ * A single {@link Inflater} and input buffer serve the whole stream. Reads return whatever the
+ * compressed bytes received so far decode to, and only block for more input when none of it is
+ * left, so that events flushed by the server are not held back in the decompressor.
+ *
+ * The stream may be closed from another thread while being read.
+ */
+final class StreamInflater extends InputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final InputStream source;
+    private final boolean gzip;
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] input = new byte[BUFFER_SIZE];
+    private int inputPosition;
+    private int inputLimit;
+    private boolean headerRead;
+    private boolean finished;
+    private boolean trailerPending;
+    private long inflatedSize;
+    private boolean closed;
+
+    /**
+     * @param source
+     *            compressed stream
+     * @param encoding
+     *            content encoding of the stream
+     * @throws IOException
+     *             if the encoding is not supported
+     */
+    StreamInflater(InputStream source, String encoding) throws IOException {
+        this.source = source;
+        if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+            this.gzip = true;
+        } else if ("deflate".equalsIgnoreCase(encoding)) {
+            this.gzip = false;
+        } else {
+            throw new IOException("unsupported content encoding " + encoding);
+        }
+    }
+
+    /**
+     * @param encoding
+     *            content encoding of a response, or null
+     * @return whether the encoding is a compression this class decodes
+     */
+    static boolean isCompressed(String encoding) {
+        return encoding != null && !encoding.isEmpty() && !"identity".equalsIgnoreCase(encoding);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!headerRead) {
+            readHeader();
+            headerRead = true;
+        }
+        while (true) {
+            int inflated = inflate(b, off, len);
+            if (inflated < 0 && trailerPending) {
+                trailerPending = false;
+                checkTrailer();
+            }
+            if (inflated != 0) {
+                return inflated;
+            }
+            fill(1);
+            setInput();
+        }
+    }
+
+    /**
+     * @return number of bytes inflated, 0 if more input is needed, or -1 at the end of the stream
+     */
+    private synchronized int inflate(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        if (finished) {
+            return -1;
+        }
+        try {
+            int inflated = inflater.inflate(b, off, len);
+            if (inflated > 0) {
+                if (gzip) {
+                    crc.update(b, off, inflated);
+                }
+                return inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+        if (inflater.needsDictionary()) {
+            throw new ZipException("preset dictionaries are not supported");
+        }
+        if (inflater.finished()) {
+            inputPosition = inputLimit - inflater.getRemaining();
+            inflatedSize = inflater.getBytesWritten();
+            finished = true;
+            trailerPending = gzip;
+            return -1;
+        }
+        return 0;
+    }
+
+    private synchronized void setInput() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        inflater.setInput(input, inputPosition, inputLimit - inputPosition);
+        inputPosition = inputLimit;
+    }
+
+    private void readHeader() throws IOException {
+        if (!fillOrEnd(1)) {
+            finished = true; // empty body
+            return;
+        }
+        fill(2);
+        int first = input[inputPosition] & 0xff;
+        int second = input[inputPosition + 1] & 0xff;
+        if (!gzip) {
+            // "deflate" should be zlib-wrapped, but some servers send raw deflate data.
+            if ((first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0) {
+                if ((second & 0x20) != 0) {
+                    throw new ZipException("preset dictionaries are not supported");
+                }
+                inputPosition += 2;
+            }
+            setInput();
+            return;
+        }
+
+        fill(10);
+        if ((first | second << 8) != GZIP_MAGIC) {
+            throw new ZipException("not in gzip format");
+        }
+        if (input[inputPosition + 2] != 8) {
+            throw new ZipException("unsupported compression method");
+        }
+        int flags = input[inputPosition + 3] & 0xff;
+        inputPosition += 10; // magic, method, flags, mtime, xfl, os
+
+        if ((flags & FEXTRA) != 0) {
+            fill(2);
+            int extraLength = (input[inputPosition] & 0xff)
+                    | (input[inputPosition + 1] & 0xff) << 8;
+            inputPosition += 2;
+            skip(extraLength);
+        }
+        if ((flags & FNAME) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FCOMMENT) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FHCRC) != 0) {
+            skip(2);
+        }
+        setInput();
+    }
+
+    private void checkTrailer() throws IOException {
+        fill(8);
+        int expectedCrc = readIntLE();
+        int expectedSize = readIntLE();
+        if (expectedCrc != (int) crc.getValue() || expectedSize != (int) inflatedSize) {
+            throw new ZipException("corrupt gzip trailer");
+        }
+    }
+
+    private int readIntLE() {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value |= (input[inputPosition++] & 0xff) << (8 * i);
+        }
+        return value;
+    }
+
+    private void skip(int count) throws IOException {
+        while (count > 0) {
+            fill(1);
+            int skipped = Math.min(count, inputLimit - inputPosition);
+            inputPosition += skipped;
+            count -= skipped;
+        }
+    }
+
+    private void skipZeroTerminated() throws IOException {
+        do {
+            fill(1);
+        } while (input[inputPosition++] != 0);
+    }
+
+    /**
+     * Reads from the source until at least the given number of bytes are buffered, keeping those
+     * already buffered.
+     */
+    private void fill(int count) throws IOException {
+        if (!fillOrEnd(count)) {
+            throw new EOFException("unexpected end of compressed stream");
+        }
+    }
+
+    /**
+     * @return false if the source ended before the given number of bytes were buffered
+     */
+    private boolean fillOrEnd(int count) throws IOException {
+        if (inputLimit - inputPosition >= count) {
+            return true;
+        }
+        System.arraycopy(input, inputPosition, input, 0, inputLimit - inputPosition);
+        inputLimit -= inputPosition;
+        inputPosition = 0;
+        while (inputLimit < count) {
+            int read = source.read(input, inputLimit, input.length - inputLimit);
+            if (read < 0) {
+                return false;
+            }
+            inputLimit += read;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            inflater.end();
+        }
+        source.close();
+    }
+}
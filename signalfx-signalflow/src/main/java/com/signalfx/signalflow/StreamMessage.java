@@ -3,6 +3,7 @@
  */
 package com.signalfx.signalflow;
 
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -66,9 +67,14 @@ public class StreamMessage {
         }
     };
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     private String event;
     private String id;
     private String data;
+    private byte[] bytes;
+    private int offset;
+    private int length;
     private Kind kind;
 
     public StreamMessage() {
@@ -88,6 +94,28 @@ public class StreamMessage {
         }
     }
 
+    /**
+     * Creates a message whose data is kept as UTF-8 bytes, decoded without first being turned
+     * into a string.
+     *
+     * @param event
+     *            event name, the kind of message
+     * @param id
+     *            event id
+     * @param data
+     *            array holding the UTF-8 encoded data; it must not be modified afterwards
+     * @param offset
+     *            start of the data in the array
+     * @param length
+     *            length of the data
+     */
+    public StreamMessage(String event, String id, byte[] data, int offset, int length) {
+        this(event, id, null);
+        this.bytes = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
     public Kind getKind() {
         return this.kind;
     }
@@ -113,11 +141,31 @@ public class StreamMessage {
     }
 
     public String getData() {
+        if (data == null && bytes != null) {
+            data = new String(bytes, offset, length, UTF_8);
+        }
         return data;
     }
 
     public void setData(String data) {
         this.data = data;
+        this.bytes = null;
+    }
+
+    /**
+     * @return the data as UTF-8 bytes starting at {@link #getDataOffset()}, or null if it is only
+     *         available as a string
+     */
+    byte[] getDataBytes() {
+        return bytes;
+    }
+
+    int getDataOffset() {
+        return offset;
+    }
+
+    int getDataLength() {
+        return length;
     }
 
     public String toString() {
@@ -126,7 +174,7 @@ public class StreamMessage {
         builder.append(":");
         builder.append(id);
         builder.append(":");
-        builder.append(data);
+        builder.append(getData());
         return builder.toString();
     }
 }
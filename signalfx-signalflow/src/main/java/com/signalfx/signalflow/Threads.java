@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads that the client runs blocking work on.
+ *
+ * This implementation uses pools of platform threads. On Java 21 and later, the multi-release
+ * jar replaces it with the one in {@code src/main/java21}, which starts a virtual thread per
+ * task instead, so that waiting computations do not hold platform threads.
+ */
+final class Threads {
+
+    private Threads() {
+    }
+
+    /**
+     * @param name
+     *            prefix of the names of the threads
+     * @param threads
+     *            number of threads of the pool
+     * @return an executor running tasks on daemon threads
+     */
+    static ExecutorService newExecutor(final String name, int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param name
+     *            name of the thread
+     * @param task
+     *            task to run
+     * @return a daemon thread, not started yet
+     */
+    static Thread newThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
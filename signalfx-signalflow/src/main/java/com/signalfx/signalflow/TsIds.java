@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+import java.util.Arrays;
+
+/**
+ * Conversions between the 8-byte binary timeseries IDs of binary data messages and their string
+ * form, the unpadded URL-safe base64 encoding of the bytes in big-endian order, as used by
+ * metadata and JSON data messages.
+ */
+public final class TsIds {
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final byte[] DECODE = new byte[128];
+    static {
+        Arrays.fill(DECODE, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    private static final int ENCODED_LENGTH = 11;
+
+    private TsIds() {
+    }
+
+    /**
+     * @param tsId    Binary timeseries ID
+     * @return The string form of the ID
+     */
+    public static String toString(long tsId) {
+        char[] chars = new char[ENCODED_LENGTH];
+        for (int i = 0; i < ENCODED_LENGTH - 1; i++) {
+            chars[i] = ALPHABET[(int) (tsId >>> (58 - 6 * i)) & 0x3f];
+        }
+        chars[ENCODED_LENGTH - 1] = ALPHABET[(int) (tsId & 0x0f) << 2];
+        return new String(chars);
+    }
+
+    /**
+     * @param tsId    Timeseries ID in string form
+     * @return Whether the ID is the canonical encoding of an 8-byte binary ID
+     */
+    public static boolean isBinary(String tsId) {
+        if (tsId == null || tsId.length() != ENCODED_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < ENCODED_LENGTH; i++) {
+            char c = tsId.charAt(i);
+            if (c >= 128 || DECODE[c] < 0) {
+                return false;
+            }
+        }
+        return (DECODE[tsId.charAt(ENCODED_LENGTH - 1)] & 0x03) == 0;
+    }
+
+    /**
+     * @param chars     Array holding a timeseries ID in string form
+     * @param offset    Start of the ID in the array
+     * @param length    Length of the ID
+     * @return Whether the ID is the canonical encoding of an 8-byte binary ID
+     */
+    public static boolean isBinary(char[] chars, int offset, int length) {
+        if (length != ENCODED_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < ENCODED_LENGTH; i++) {
+            char c = chars[offset + i];
+            if (c >= 128 || DECODE[c] < 0) {
+                return false;
+            }
+        }
+        return (DECODE[chars[offset + ENCODED_LENGTH - 1]] & 0x03) == 0;
+    }
+
+    /**
+     * @param chars     Array holding a timeseries ID in string form; see
+     *                  {@link #isBinary(char[], int, int)}
+     * @param offset    Start of the ID in the array
+     * @return The binary ID
+     */
+    public static long parse(char[] chars, int offset) {
+        long value = 0;
+        for (int i = 0; i < ENCODED_LENGTH - 1; i++) {
+            value = (value << 6) | DECODE[chars[offset + i]];
+        }
+        return (value << 4) | (DECODE[chars[offset + ENCODED_LENGTH - 1]] >>> 2);
+    }
+
+    /**
+     * @param tsId    Timeseries ID in string form; see {@link #isBinary(String)}
+     * @return The binary ID
+     * @throws IllegalArgumentException if the ID is not the encoding of an 8-byte binary ID
+     */
+    public static long parse(String tsId) {
+        if (!isBinary(tsId)) {
+            throw new IllegalArgumentException("not a binary timeseries ID: " + tsId);
+        }
+        long value = 0;
+        for (int i = 0; i < ENCODED_LENGTH - 1; i++) {
+            value = (value << 6) | DECODE[tsId.charAt(i)];
+        }
+        return (value << 4) | (DECODE[tsId.charAt(ENCODED_LENGTH - 1)] >>> 2);
+    }
+}
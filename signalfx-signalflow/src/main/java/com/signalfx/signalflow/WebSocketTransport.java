@@ -3,43 +3,47 @@
  */
 package com.signalfx.signalflow;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.http.client.utils.URIBuilder;
-import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.SuspendToken;
 import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.io.BaseEncoding;
 import com.google.common.util.concurrent.Uninterruptibles;
 import com.signalfx.endpoint.SignalFxEndpoint;
+import com.signalfx.signalflow.ChannelMessage.DataMessage;
 import com.signalfx.signalflow.ChannelMessage.Type;
 import com.signalfx.signalflow.StreamMessage.Kind;
 
@@ -57,54 +61,174 @@ public class WebSocketTransport implements SignalFlowTransport {
 
     protected static final Logger log = LoggerFactory.getLogger(WebSocketTransport.class);
     public static final int DEFAULT_TIMEOUT = 1; // 1 second
+    private static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+    /**
+     * What a channel does with incoming data once its queue holds as many messages as its
+     * capacity allows. Control, metadata and error messages are always queued.
+     */
+    public static enum ChannelOverflowPolicy {
+        /**
+         * Suspend reading from the WebSocket until the channel's queue is drained to half its
+         * capacity. The connection is shared, so this pauses every computation on it.
+         */
+        BACKPRESSURE,
+        /**
+         * Discard the oldest queued data message to make room.
+         */
+        DROP_OLDEST_DATA,
+        /**
+         * Fail the channel: its consumer receives a {@link SignalFlowException} and further
+         * messages are ignored.
+         */
+        FAIL_CHANNEL
+    }
 
     protected final String token;
     protected final SignalFxEndpoint endpoint;
     protected final String path;
     protected final int timeout;
     protected final boolean compress;
+    protected final boolean perMessageDeflate;
     protected WebSocketClient webSocketClient;
-    protected TransportConnection transportConnection;
+    private final SharedWebSocketClient sharedClient;
+    protected volatile TransportConnection transportConnection;
+    private final URI uri;
+    private final int channelCapacity;
+    private final ChannelOverflowPolicy channelOverflowPolicy;
+    private final Executor dispatchExecutor;
+    private final FrameRecorder frameRecorder;
+    private final Lock connectionLock = new ReentrantLock();
+    private volatile boolean isClosed = false;
+    private volatile long retiredMessages; // received on replaced connections
 
     protected WebSocketTransport(String token, SignalFxEndpoint endpoint, int apiVersion,
                                  int timeout, boolean compress, int maxBinaryMessageSize) {
-        this.token = token;
-        this.endpoint = endpoint;
-        this.path = "/v" + apiVersion + "/signalflow/connect";
-        this.timeout = timeout;
-        this.compress = compress;
+        this(new TransportBuilder(token)
+                .setProtocol(endpoint.getScheme())
+                .setHost(endpoint.getHostname())
+                .setPort(endpoint.getPort())
+                .setAPIVersion(apiVersion)
+                .setTimeout(timeout)
+                .useCompression(compress)
+                .setMaxBinaryMessageSize(maxBinaryMessageSize));
+    }
+
+    protected WebSocketTransport(TransportBuilder builder) {
+        this.token = builder.token;
+        this.endpoint = new SignalFxEndpoint(builder.protocol, builder.host, builder.port);
+        this.path = "/v" + builder.version + "/signalflow/connect";
+        this.timeout = builder.timeout;
+        this.compress = builder.compress;
+        this.perMessageDeflate = builder.perMessageDeflate;
+        this.channelCapacity = builder.channelCapacity;
+        this.channelOverflowPolicy = builder.channelOverflowPolicy;
+        this.dispatchExecutor = builder.dispatchExecutor;
+        this.frameRecorder = builder.frameRecorder;
+        int maxBinaryMessageSize = builder.maxBinaryMessageSize;
 
         try {
-            this.transportConnection = new TransportConnection(token);
-            URI uri = new URIBuilder(String.format("%s://%s:%s%s", endpoint.getScheme(),
+            this.uri = new URIBuilder(String.format("%s://%s:%s%s", endpoint.getScheme(),
                     endpoint.getHostname(), endpoint.getPort(), path)).build();
+        } catch (URISyntaxException ex) {
+            throw new SignalFlowException("failed to construct websocket transport", ex);
+        }
 
-            this.webSocketClient = new WebSocketClient(new SslContextFactory());
-            if (maxBinaryMessageSize > 0) {
-                this.webSocketClient.getPolicy().setMaxBinaryMessageSize(maxBinaryMessageSize);
+        if (builder.webSocketClient != null) {
+            if (maxBinaryMessageSize > 0 || builder.maxTextMessageSize > 0
+                    || builder.inputBufferSize > 0 || builder.messageBufferSize > 0) {
+                throw new IllegalArgumentException(
+                        "message size and buffer settings of a shared websocket client are set on the client");
             }
-            if (timeout > 0) {
-                this.webSocketClient.setConnectTimeout(TimeUnit.SECONDS.toMillis(timeout));
-            }
-            this.webSocketClient.start();
-            this.webSocketClient.connect(this.transportConnection, uri);
-            this.transportConnection.awaitConnected(timeout, TimeUnit.SECONDS);
+            this.sharedClient = builder.webSocketClient;
+        } else {
+            this.sharedClient = new SharedWebSocketClient.Builder()
+                    .setConnectTimeoutMs(timeout > 0 ? TimeUnit.SECONDS.toMillis(timeout) : -1)
+                    .setMaxBinaryMessageSize(maxBinaryMessageSize)
+                    .setMaxTextMessageSize(builder.maxTextMessageSize)
+                    .setInputBufferSize(builder.inputBufferSize)
+                    .setMessageBufferSize(builder.messageBufferSize)
+                    .build();
+        }
+
+        try {
+            this.webSocketClient = sharedClient.acquire();
         } catch (Exception ex) {
-            if (this.webSocketClient != null) {
-                try {
-                    this.webSocketClient.stop();
-                } catch (Exception e) {
-                    log.warn("error closing websocket client", e);
-                }
-            }
             throw new SignalFlowException("failed to construct websocket transport", ex);
         }
+        try {
+            this.transportConnection = connect();
+        } catch (Exception ex) {
+            sharedClient.release();
+            throw new SignalFlowException("failed to construct websocket transport", ex);
+        }
+    }
+
+    /**
+     * Opens and authenticates a new WebSocket connection.
+     */
+    private TransportConnection connect() throws Exception {
+        TransportConnection connection = new TransportConnection(token, channelCapacity,
+                channelOverflowPolicy, dispatchExecutor, frameRecorder);
+        ClientUpgradeRequest request = new ClientUpgradeRequest();
+        if (perMessageDeflate) {
+            request.addExtensions(PERMESSAGE_DEFLATE);
+        }
+        if (timeout > 0) {
+            request.setTimeout(timeout, TimeUnit.SECONDS);
+        }
+        this.webSocketClient.connect(connection, uri, request);
+        connection.awaitConnected(timeout, TimeUnit.SECONDS);
+        return connection;
+    }
+
+    /**
+     * @return the current connection, after replacing it with a new, re-authenticated one if it
+     *         was lost
+     * @throws SignalFlowException
+     *             if the transport was closed or could not reconnect
+     */
+    protected TransportConnection connection() {
+        TransportConnection connection = this.transportConnection;
+        if (isOpen(connection)) {
+            return connection;
+        }
+
+        // A lock rather than a monitor, so that virtual threads waiting for the reconnection
+        // do not pin their carrier thread.
+        connectionLock.lock();
+        try {
+            connection = this.transportConnection;
+            if (isOpen(connection)) {
+                return connection;
+            }
+            if (isClosed) {
+                throw new SignalFlowException("transport is closed");
+            }
+
+            log.info("reconnecting to {}", uri);
+            retiredMessages += connection.getReceivedMessages();
+            try {
+                this.transportConnection = connect();
+            } catch (Exception ex) {
+                throw new SignalFlowException("failed to reconnect websocket transport", ex);
+            }
+            return this.transportConnection;
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    private static boolean isOpen(TransportConnection connection) {
+        Session session = connection.getSession();
+        return session != null && session.isOpen();
     }
 
     @Override
     public Channel attach(String handle, Map<String, String> parameters) {
         log.debug("attach: [ {} ] with parameters: {}", handle, parameters);
 
+        TransportConnection transportConnection = connection();
         Channel channel = new TransportChannel(transportConnection);
 
         Map<String, String> request = new HashMap<String, String>(parameters);
@@ -121,6 +245,7 @@ public class WebSocketTransport implements SignalFlowTransport {
     public Channel execute(String program, Map<String, String> parameters) {
         log.debug("execute: [ {} ] with parameters: {}", program, parameters);
 
+        TransportConnection transportConnection = connection();
         Channel channel = new TransportChannel(transportConnection);
         HashMap<String, String> request = new HashMap<String, String>(parameters);
         request.put("type", "execute");
@@ -136,6 +261,7 @@ public class WebSocketTransport implements SignalFlowTransport {
     public Channel preflight(String program, Map<String, String> parameters) {
         log.debug("preflight: [ {} ] with parameters: {}", program, parameters);
 
+        TransportConnection transportConnection = connection();
         Channel channel = new TransportChannel(transportConnection);
         HashMap<String, String> request = new HashMap<String, String>(parameters);
         request.put("type", "preflight");
@@ -154,7 +280,7 @@ public class WebSocketTransport implements SignalFlowTransport {
         request.put("type", "start");
         request.put("program", program);
 
-        transportConnection.sendMessage(request);
+        connection().sendMessage(request);
     }
 
     @Override
@@ -165,20 +291,54 @@ public class WebSocketTransport implements SignalFlowTransport {
         request.put("type", "stop");
         request.put("handle", handle);
 
-        transportConnection.sendMessage(request);
+        connection().sendMessage(request);
+    }
+
+    /**
+     * @return number of messages waiting to be consumed in each open channel, by channel name
+     */
+    public Map<String, Integer> getChannelQueueDepths() {
+        return transportConnection.getQueueDepths();
+    }
+
+    /**
+     * @return whether the transport's connection is currently open
+     */
+    public boolean isConnected() {
+        Session session = transportConnection.getSession();
+        return !isClosed && session != null && session.isOpen();
+    }
+
+    /**
+     * @return number of messages received since the transport was built, across reconnections
+     */
+    public long getReceivedMessageCount() {
+        return retiredMessages + transportConnection.getReceivedMessages();
+    }
+
+    /**
+     * @return number of open channels on the transport's connection
+     */
+    public int getChannelCount() {
+        return transportConnection.getChannelCount();
     }
 
     @Override
     public void close(int code, String reason) {
+        connectionLock.lock();
+        try {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+        } finally {
+            connectionLock.unlock();
+        }
         if (transportConnection.getSession() != null && transportConnection.getSession().isOpen()) {
             transportConnection.close(code, reason);
-            try {
-                webSocketClient.stop();
-            } catch (Exception e) {
-                log.warn("error while close underlying websocket client", e);
-            }
-            log.debug("transport closed");
         }
+        sharedClient.release();
+        log.debug("transport closed");
     }
 
     @Override
@@ -189,7 +349,7 @@ public class WebSocketTransport implements SignalFlowTransport {
         request.put("type", "keepalive");
         request.put("handle", handle);
 
-        transportConnection.sendMessage(request);
+        connection().sendMessage(request);
     }
 
     /**
@@ -204,7 +364,16 @@ public class WebSocketTransport implements SignalFlowTransport {
         private int timeout = DEFAULT_TIMEOUT;
         private int version = 2;
         private boolean compress = true;
+        private boolean perMessageDeflate = false;
         private int maxBinaryMessageSize = -1;
+        private int maxTextMessageSize = -1;
+        private int inputBufferSize = -1;
+        private int messageBufferSize = -1;
+        private int channelCapacity = 0;
+        private ChannelOverflowPolicy channelOverflowPolicy = ChannelOverflowPolicy.BACKPRESSURE;
+        private Executor dispatchExecutor;
+        private SharedWebSocketClient webSocketClient;
+        private FrameRecorder frameRecorder;
 
         public TransportBuilder(String token) {
             this.token = token;
@@ -240,16 +409,109 @@ public class WebSocketTransport implements SignalFlowTransport {
             return this;
         }
 
+        /**
+         * @param perMessageDeflate
+         *            whether to negotiate the WebSocket permessage-deflate extension, which
+         *            compresses every message with a compression context kept across messages.
+         *            Messages that are already compressed because of {@link #useCompression}
+         *            gain little from it, so the two are usually not used together.
+         * @return this
+         */
+        public TransportBuilder usePerMessageDeflate(boolean perMessageDeflate) {
+            this.perMessageDeflate = perMessageDeflate;
+            return this;
+        }
+
         public TransportBuilder setMaxBinaryMessageSize(int size) {
             this.maxBinaryMessageSize = size;
             return this;
         }
 
+        /**
+         * @param size
+         *            maximum size of a text message, in characters, once its frames are
+         *            aggregated
+         * @return this
+         */
+        public TransportBuilder setMaxTextMessageSize(int size) {
+            this.maxTextMessageSize = size;
+            return this;
+        }
+
+        /**
+         * @param size
+         *            size of the buffer the connection reads from the network into, in bytes
+         * @return this
+         */
+        public TransportBuilder setInputBufferSize(int size) {
+            this.inputBufferSize = size;
+            return this;
+        }
+
+        /**
+         * @param size
+         *            initial size of the buffers that frames are aggregated into messages in,
+         *            in bytes
+         * @return this
+         */
+        public TransportBuilder setMessageBufferSize(int size) {
+            this.messageBufferSize = size;
+            return this;
+        }
+
+        /**
+         * @param capacity
+         *            maximum number of messages queued per channel before the overflow policy
+         *            applies; 0 for unbounded queues (the default)
+         * @return this
+         */
+        public TransportBuilder setChannelCapacity(int capacity) {
+            this.channelCapacity = capacity;
+            return this;
+        }
+
+        public TransportBuilder setChannelOverflowPolicy(ChannelOverflowPolicy policy) {
+            this.channelOverflowPolicy = policy;
+            return this;
+        }
+
+        /**
+         * @param executor
+         *            executor to decode incoming binary frames on, instead of the WebSocket's
+         *            reading thread. Frames of a given channel are still decoded and delivered in
+         *            order; different channels are decoded in parallel.
+         * @return this
+         */
+        public TransportBuilder setDispatchExecutor(Executor executor) {
+            this.dispatchExecutor = executor;
+            return this;
+        }
+
+        /**
+         * @param client
+         *            client to connect through, shared with other transports, instead of one
+         *            of the transport's own. Message size and buffer settings are then taken from
+         *            the shared client and may not be set on this builder.
+         * @return this
+         */
+        public TransportBuilder setWebSocketClient(SharedWebSocketClient client) {
+            this.webSocketClient = client;
+            return this;
+        }
+
+        /**
+         * @param recorder
+         *            recorder of the frames received by the transport, for replay by a
+         *            {@link ReplayTransport}; not closed with the transport
+         * @return this
+         */
+        public TransportBuilder setFrameRecorder(FrameRecorder recorder) {
+            this.frameRecorder = recorder;
+            return this;
+        }
+
         public WebSocketTransport build() {
-            SignalFxEndpoint endpoint = new SignalFxEndpoint(this.protocol, this.host, this.port);
-            WebSocketTransport transport = new WebSocketTransport(this.token, endpoint,
-                    this.version, this.timeout, this.compress, this.maxBinaryMessageSize);
-            return transport;
+            return new WebSocketTransport(this);
         }
     }
 
@@ -277,12 +539,8 @@ public class WebSocketTransport implements SignalFlowTransport {
 
         private static final Logger log = LoggerFactory.getLogger(TransportConnection.class);
 
-        private static final Charset ASCII = Charset.forName("US-ASCII");
         private static final Charset UTF_8 = Charset.forName("UTF-8");
-        private static final BaseEncoding base64Encoder = BaseEncoding.base64Url().omitPadding();
-        private static final TypeReference<Map<String, Object>> MAP_TYPE_REF = new TypeReference<Map<String, Object>>() {};
 
-        private static final int MAX_CHANNEL_NAME_LENGTH = 16;
         private static final int BINARY_PREAMBLE_LENGTH = 4;
         private static final int BINARY_HEADER_LENGTH = 20;
 
@@ -295,14 +553,54 @@ public class WebSocketTransport implements SignalFlowTransport {
             objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
         }
 
+        private static final ThreadLocal<FrameInflater> workerInflater =
+                new ThreadLocal<FrameInflater>() {
+                    @Override
+                    protected FrameInflater initialValue() {
+                        return new FrameInflater(8192);
+                    }
+                };
+
         private final CountDownLatch latch = new CountDownLatch(1);
         private final String token;
-        private final Map<String, TransportChannel> channels = Collections
-                .synchronizedMap(new HashMap<String, TransportChannel>());
+        private final ConcurrentMap<ChannelKey, TransportChannel> channels =
+                new ConcurrentHashMap<ChannelKey, TransportChannel>();
+        private final ChannelKey lookupKey = new ChannelKey(); // only used by the reading thread
+        private final int channelCapacity;
+        private final ChannelOverflowPolicy channelOverflowPolicy;
+        private final Executor dispatchExecutor;
+        private final FrameRecorder recorder;
+        // Guards fullChannels, suspendToken, updatingReads and the full flag of the channels.
+        private final Set<TransportChannel> fullChannels = new HashSet<TransportChannel>();
+        private SuspendToken suspendToken;
+        private boolean updatingReads;
+        private final FrameInflater frameInflater = new FrameInflater(8192);
         private SignalFlowException error;
+        private volatile long receivedMessages; // only written by the reading thread
 
         protected TransportConnection(String token) {
+            this(token, 0, ChannelOverflowPolicy.BACKPRESSURE);
+        }
+
+        protected TransportConnection(String token, int channelCapacity,
+                                      ChannelOverflowPolicy channelOverflowPolicy) {
+            this(token, channelCapacity, channelOverflowPolicy, null);
+        }
+
+        protected TransportConnection(String token, int channelCapacity,
+                                      ChannelOverflowPolicy channelOverflowPolicy,
+                                      Executor dispatchExecutor) {
+            this(token, channelCapacity, channelOverflowPolicy, dispatchExecutor, null);
+        }
+
+        protected TransportConnection(String token, int channelCapacity,
+                                      ChannelOverflowPolicy channelOverflowPolicy,
+                                      Executor dispatchExecutor, FrameRecorder recorder) {
             this.token = token;
+            this.channelCapacity = channelCapacity;
+            this.channelOverflowPolicy = channelOverflowPolicy;
+            this.dispatchExecutor = dispatchExecutor;
+            this.recorder = recorder;
         }
 
         @Override
@@ -322,23 +620,28 @@ public class WebSocketTransport implements SignalFlowTransport {
             log.debug("websocket connection closed ({} {})", code, reason);
 
             if (code != 1000) {
-                this.error = new SignalFlowException(code, reason);
+                this.error = new ConnectionLostException(code, reason);
                 log.info("Lost WebSocket connection with {} ({}).", getSession().getRemoteAddress(),
                         code);
 
                 SignalFlowExceptionStreamMessage errorMessage = new SignalFlowExceptionStreamMessage(
                         this.error);
                 for (TransportChannel channel : this.channels.values()) {
-                    channel.offer(errorMessage);
+                    channel.deliver(errorMessage);
                 }
             }
 
             this.channels.clear();
+            this.frameInflater.end();
             super.onWebSocketClose(code, reason);
         }
 
         @Override
         public void onWebSocketBinary(byte[] data, int offset, int length) {
+            receivedMessages++;
+            if (recorder != null) {
+                recorder.recordBinary(data, offset, length);
+            }
             byte version = data[offset];
             byte type;
             byte flags;
@@ -371,104 +674,133 @@ public class WebSocketTransport implements SignalFlowTransport {
             }
 
             // Channel name is the 16 bytes following the binary preamble in the header.
-            String channelName = new String(data, offset + BINARY_PREAMBLE_LENGTH,
-                    MAX_CHANNEL_NAME_LENGTH, ASCII);
-            // Everything after that is the body of the message.
-            byte[] body = Arrays.copyOfRange(data, offset + BINARY_HEADER_LENGTH, offset + length);
+            final TransportChannel channel = channels
+                    .get(lookupKey.set(data, offset + BINARY_PREAMBLE_LENGTH));
+            if (channel == null || channel.isClosed()) {
+                log.debug("ignoring message. channel not found {}", lookupKey);
+                return;
+            }
+            if (channel.isIgnored(kind)) {
+                return;
+            }
 
+            // Everything after that is the body of the message, decoded in place.
+            int bodyOffset = offset + BINARY_HEADER_LENGTH;
+            int bodyLength = length - BINARY_HEADER_LENGTH;
+            if (channel.dispatcher == null) {
+                StreamMessage message = decodeFrame(version, kind, flags, data, bodyOffset,
+                        bodyLength, frameInflater);
+                if (message != null) {
+                    channel.offer(message);
+                }
+                return;
+            }
+
+            // The frame's buffer is reused once this returns, so hand a copy to the worker.
+            final byte frameVersion = version;
+            final Kind frameKind = kind;
+            final byte frameFlags = flags;
+            final byte[] body = Arrays.copyOfRange(data, bodyOffset, bodyOffset + bodyLength);
+            channel.dispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    StreamMessage message = decodeFrame(frameVersion, frameKind, frameFlags, body,
+                            0, body.length, workerInflater.get());
+                    if (message != null) {
+                        channel.offer(message);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Decompresses and decodes the body of a binary frame.
+         *
+         * @return the decoded message, or null if the frame cannot be decoded
+         */
+        private static StreamMessage decodeFrame(byte version, Kind kind, byte flags, byte[] body,
+                                                 int bodyOffset, int bodyLength,
+                                                 FrameInflater inflater) {
             boolean compressed = (flags & (1 << 0)) != 0;
             if (compressed) {
-                ByteArrayInputStream bais = new ByteArrayInputStream(body);
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 try {
-                    GZIPInputStream gzip = new GZIPInputStream(bais);
-                    try {
-                        IOUtils.copy(gzip, baos);
-                    } finally {
-                        IOUtils.closeQuietly(gzip);
-                    }
-                    body = baos.toByteArray();
+                    inflater.inflate(body, bodyOffset, bodyLength);
                 } catch (IOException ioe) {
                     log.error("failed to process message", ioe);
-                    return;
-                } finally {
-                    IOUtils.closeQuietly(baos);
-                    IOUtils.closeQuietly(bais);
+                    return null;
                 }
+                body = inflater.buffer();
+                bodyOffset = 0;
+                bodyLength = inflater.length();
             }
 
             boolean json = (flags & (1 << 1)) != 0;
             if (json) {
-                onWebSocketText(new String(body, UTF_8));
-                return;
+                try {
+                    Envelope envelope = Envelope.read(
+                            objectMapper.getFactory().createParser(body, bodyOffset, bodyLength));
+                    if (envelope.type == null) {
+                        log.debug("type missing so ignoring message. {}",
+                                new String(body, bodyOffset, bodyLength, UTF_8));
+                        return null;
+                    }
+                    // The body may be in a reused buffer; keep the message's own copy.
+                    byte[] data = Arrays.copyOfRange(body, bodyOffset, bodyOffset + bodyLength);
+                    return new StreamMessage(envelope.type, null, data, 0, data.length);
+                } catch (IOException ex) {
+                    log.error("failed to process messages", ex);
+                    return null;
+                }
             }
 
-            Map<String, Object> message = null;
             switch (kind) {
             case DATA:
-                message = decodeBinaryDataMessage(version, body);
-                break;
+                DataMessage message = decodeBinaryDataMessage(version, body, bodyOffset,
+                        bodyLength);
+                return message != null ? new DecodedStreamMessage(message) : null;
             default:
                 log.error("ignoring message with unsupported binary encoding of kind {}", kind);
-                return;
+                return null;
             }
+        }
 
-            if (message != null) {
-                TransportChannel channel = channels.get(channelName);
-                if (channel != null && !channel.isClosed()) {
-                    try {
-                        StreamMessage streamMessage = new StreamMessage("data", null,
-                                objectMapper.writeValueAsString(message));
-                        channel.offer(streamMessage);
-                    } catch (JsonProcessingException ex) {
-                        log.error("failed to process message", ex);
-                    }
-                } else {
-                    log.debug("ignoring message. channel not found {}", channelName);
-                }
-            }
+        /**
+         * Decodes the body of a binary data message straight into a {@link DataMessage}.
+         */
+        static DataMessage decodeBinaryDataMessage(byte version, byte[] data) {
+            return decodeBinaryDataMessage(version, data, 0, data.length);
         }
 
-        private static Map<String, Object> decodeBinaryDataMessage(byte version, byte[] data) {
+        /**
+         * Decodes the body of a binary data message held in a slice of the given array.
+         */
+        static DataMessage decodeBinaryDataMessage(byte version, byte[] data, int offset,
+                                                   int length) {
             try {
-                Map<String, Object> message = new HashMap<String, Object>();
-                ByteBuffer buffer = ByteBuffer.wrap(data);
-                switch (version) {
-                case 1:
-                    message.put("logicalTimestampMs", buffer.getLong());
-                    break;
-                case 2:
-                    message.put("logicalTimestampMs", buffer.getLong());
-                    message.put("maxDelayMs", buffer.getLong());
-                    break;
-                }
+                ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+                long logicalTimestampMs = buffer.getLong();
+                long maxDelayMs = version == 2 ? buffer.getLong() : -1;
 
                 int count = buffer.getInt();
-                List<Map<String, Object>> datapoints = new ArrayList<Map<String, Object>>(count);
+                DataMessage message = new DataMessage(logicalTimestampMs, count);
+                message.maxDelayMs = maxDelayMs;
                 for (int element = 0; element < count; element++) {
-                    Map<String, Object> elementMap = new HashMap<String, Object>(3);
-
                     byte type = buffer.get();
-                    byte[] tsIdBytes = new byte[8];
-                    buffer.get(tsIdBytes);
-                    elementMap.put("tsId", base64Encoder.encode(tsIdBytes));
+                    long tsId = buffer.getLong();
 
                     switch (type) {
                     case LONG_TYPE:
                     case INT_TYPE: // int or long value
-                        elementMap.put("value", buffer.getLong());
+                        message.append(tsId, buffer.getLong());
                         break;
                     case DOUBLE_TYPE: // double value
-                        elementMap.put("value", buffer.getDouble());
+                        message.append(tsId, buffer.getDouble());
                         break;
                     default:
                         log.warn("ignoring data message with unknown value type {}", type);
                         return null;
                     }
-
-                    datapoints.add(elementMap);
                 }
-                message.put("data", datapoints);
                 return message;
             } catch (Exception ex) {
                 log.error("failed to construct transport data message", ex);
@@ -478,19 +810,23 @@ public class WebSocketTransport implements SignalFlowTransport {
 
         @Override
         public void onWebSocketText(String data) {
+            receivedMessages++;
+            if (recorder != null) {
+                recorder.recordText(data);
+            }
             try {
-                // Incoming text message is expected to be JSON.
-                Map<String, Object> dataMap = objectMapper.readValue(data, MAP_TYPE_REF);
+                // Incoming text message is expected to be JSON. Only its top-level fields are
+                // read here; the payload is decoded by the consumer of the channel.
+                Envelope envelope = Envelope.read(objectMapper.getFactory().createParser(data));
 
                 // Intercept KEEP_ALIVE messages
-                String event = (String) dataMap.get("event");
-                if ("KEEP_ALIVE".equals(event)) {
+                if ("KEEP_ALIVE".equals(envelope.event)) {
                     return;
                 }
 
-                String type = (String) dataMap.get("type");
+                String type = envelope.type;
                 if (type == null) {
-                    log.debug("type missing so ignoring message. {}", dataMap);
+                    log.debug("type missing so ignoring message. {}", data);
                     return;
                 }
 
@@ -498,16 +834,19 @@ public class WebSocketTransport implements SignalFlowTransport {
                 // and we can now consider the socket as "connected".
                 if (type.equals("authenticated")) {
                     log.info("WebSocket connection authenticated as {} (in {})",
-                            dataMap.get("userId"), dataMap.get("orgId"));
+                            envelope.userId, envelope.orgId);
                     this.latch.countDown();
                 } else {
                     // All other messages should have a channel.
-                    String channelName = (String) dataMap.get("channel");
+                    String channelName = envelope.channel;
                     if (channelName != null) {
-                        TransportChannel channel = channels.get(channelName);
+                        TransportChannel channel = channelName.length() <= ChannelKey.LENGTH
+                                ? channels.get(ChannelKey.of(channelName)) : null;
                         if ((channel != null) && (!channel.isClosed())) {
                             StreamMessage message = new StreamMessage(type, null, data);
-                            channel.offer(message);
+                            if (!channel.isIgnored(message.getKind())) {
+                                channel.deliver(message);
+                            }
                         } else {
                             log.debug("ignoring message. channel not found {}", channelName);
                         }
@@ -540,11 +879,135 @@ public class WebSocketTransport implements SignalFlowTransport {
         }
 
         public void add(TransportChannel channel) {
-            this.channels.put(channel.getName(), channel);
+            if (recorder != null) {
+                recorder.recordChannel(channel.getName());
+            }
+            this.channels.put(channel.key, channel);
         }
 
         public void remove(TransportChannel channel) {
-            this.channels.remove(channel);
+            this.channels.remove(channel.key, channel);
+            updateBackpressure(channel, true);
+        }
+
+        /**
+         * @return number of channels registered with this connection
+         */
+        public int getChannelCount() {
+            return this.channels.size();
+        }
+
+        /**
+         * @return number of messages received on the connection
+         */
+        public long getReceivedMessages() {
+            return receivedMessages;
+        }
+
+        /**
+         * @return number of messages queued in each open channel, by channel name
+         */
+        public Map<String, Integer> getQueueDepths() {
+            Map<String, Integer> depths = new HashMap<String, Integer>();
+            for (TransportChannel channel : this.channels.values()) {
+                depths.put(channel.getName(), channel.getQueueDepth());
+            }
+            return depths;
+        }
+
+        /**
+         * Marks the given channel as full once its queue reaches its capacity, and as drained
+         * once it is back to half of it or removed.
+         *
+         * @param removed
+         *            whether the channel was removed from the connection
+         */
+        protected void updateBackpressure(TransportChannel channel, boolean removed) {
+            boolean filled = false;
+            boolean drained = false;
+            synchronized (fullChannels) {
+                int depth = channel.getQueueDepth();
+                if (channel.full) {
+                    if (removed || depth <= channel.capacity / 2) {
+                        channel.full = false;
+                        fullChannels.remove(channel);
+                        drained = true;
+                    }
+                } else if (!removed && !channel.isClosed() && depth >= channel.capacity) {
+                    channel.full = true;
+                    fullChannels.add(channel);
+                    filled = true;
+                }
+            }
+            if (filled) {
+                channelFull(channel);
+            } else if (drained) {
+                channelDrained(channel);
+            }
+        }
+
+        /**
+         * Suspends reading from the WebSocket until the channel is drained.
+         */
+        protected void channelFull(TransportChannel channel) {
+            log.debug("{} is full", channel);
+            updateReads();
+        }
+
+        /**
+         * Resumes reading from the WebSocket once no channel is full anymore.
+         */
+        protected void channelDrained(TransportChannel channel) {
+            log.debug("{} drained", channel);
+            updateReads();
+        }
+
+        /**
+         * Suspends or resumes reads until they match whether any channel is full. The session
+         * is only called outside of the lock; a thread finding another one at it leaves the
+         * latest state for that one to apply.
+         */
+        private void updateReads() {
+            boolean updating = false;
+            try {
+                while (true) {
+                    Session session = getSession();
+                    SuspendToken resumed = null;
+                    synchronized (fullChannels) {
+                        if (!updating) {
+                            if (updatingReads) {
+                                return;
+                            }
+                            updatingReads = updating = true;
+                        }
+                        boolean suspend = !fullChannels.isEmpty();
+                        if (suspend == (suspendToken != null) || (suspend && session == null)) {
+                            updatingReads = updating = false;
+                            return;
+                        }
+                        if (!suspend) {
+                            resumed = suspendToken;
+                            suspendToken = null;
+                        }
+                    }
+                    if (resumed != null) {
+                        log.debug("resuming reads");
+                        resumed.resume();
+                    } else {
+                        log.debug("suspending reads");
+                        SuspendToken token = session.suspend();
+                        synchronized (fullChannels) {
+                            suspendToken = token;
+                        }
+                    }
+                }
+            } finally {
+                if (updating) {
+                    synchronized (fullChannels) {
+                        updatingReads = false;
+                    }
+                }
+            }
         }
 
         public void close(int code, String reason) {
@@ -564,43 +1027,372 @@ public class WebSocketTransport implements SignalFlowTransport {
     }
 
     /**
-     * Computation channel fed from a Server-Sent Events stream.
+     * Top-level routing fields of a JSON message, read without decoding its payload.
+     */
+    private static final class Envelope {
+
+        private String type;
+        private String event;
+        private String channel;
+        private String userId;
+        private String orgId;
+
+        /**
+         * Reads the envelope of the JSON object the given parser is on, then closes the parser.
+         */
+        private static Envelope read(JsonParser parser) throws IOException {
+            Envelope envelope = new Envelope();
+            try {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("expected a JSON object");
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    parser.nextToken();
+                    if ("type".equals(field)) {
+                        envelope.type = parser.getValueAsString();
+                    } else if ("event".equals(field)) {
+                        envelope.event = parser.getValueAsString();
+                    } else if ("channel".equals(field)) {
+                        envelope.channel = parser.getValueAsString();
+                    } else if ("userId".equals(field)) {
+                        envelope.userId = parser.getValueAsString();
+                    } else if ("orgId".equals(field)) {
+                        envelope.orgId = parser.getValueAsString();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } finally {
+                parser.close();
+            }
+            return envelope;
+        }
+    }
+
+    /**
+     * Computation channel fed from the shared WebSocket connection.
      */
     protected static class TransportChannel extends Channel {
 
         protected static final Logger log = LoggerFactory.getLogger(TransportChannel.class);
         protected TransportConnection connection;
-        protected Queue<StreamMessage> messageQueue = new ConcurrentLinkedQueue<StreamMessage>();
-        protected TransportEventStreamParser parser = new TransportEventStreamParser(messageQueue);
+        protected final ChannelQueue messageQueue = new ChannelQueue();
+        protected TransportEventStreamParser parser = new TransportEventStreamParser(null) {
+            @Override
+            protected StreamMessage take() throws InterruptedException {
+                return TransportChannel.this.messageQueue.take();
+            }
+
+            @Override
+            protected StreamMessage poll(long timeoutNanos) throws InterruptedException {
+                return TransportChannel.this.messageQueue.poll(timeoutNanos);
+            }
+
+            @Override
+            protected void wake() {
+                TransportChannel.this.messageQueue.offer(TransportEventStreamParser.CLOSED);
+            }
+
+            @Override
+            protected void onDequeue() {
+                if (full) {
+                    connection.updateBackpressure(TransportChannel.this, false);
+                }
+            }
+        };
+        protected final ChannelKey key;
+        protected final Executor dispatcher;
+        protected final int capacity;
+        protected final ChannelOverflowPolicy overflowPolicy;
+        private final AtomicLong droppedMessages = new AtomicLong();
+        private volatile boolean full; // guarded by the connection
+        private volatile boolean failed;
+        private volatile Runnable messageListener;
 
         public TransportChannel(TransportConnection sharedConnection) {
-            super();
+            this(sharedConnection, null);
+        }
+
+        /**
+         * @param name
+         *            name of the channel, or null for a new random one
+         */
+        protected TransportChannel(TransportConnection sharedConnection, String name) {
+            super(name);
             this.connection = sharedConnection;
+            this.key = ChannelKey.of(getName());
+            this.dispatcher = sharedConnection.dispatchExecutor != null
+                    ? new SerialExecutor(sharedConnection.dispatchExecutor) : null;
+            this.capacity = sharedConnection.channelCapacity;
+            this.overflowPolicy = sharedConnection.channelOverflowPolicy;
             this.iterator = parser;
             this.connection.add(this); // register channel with transport connection
             log.debug("constructed {} of type {}", this.toString(), this.getClass().getName());
         }
 
         public boolean offer(final StreamMessage message) {
-            return messageQueue.offer(message);
+            if (isIgnored(message.getKind())) {
+                return false;
+            }
+            boolean queued = enqueue(message);
+            Runnable listener = messageListener;
+            if (listener != null) {
+                listener.run();
+            }
+            return queued;
+        }
+
+        /**
+         * Offers a message in order with the frames being decoded for this channel, if any.
+         */
+        public void deliver(final StreamMessage message) {
+            if (dispatcher == null) {
+                offer(message);
+                return;
+            }
+            dispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    offer(message);
+                }
+            });
+        }
+
+        private boolean enqueue(final StreamMessage message) {
+            if (failed) {
+                return false;
+            }
+            if (capacity <= 0 || message.getKind() != Kind.DATA) {
+                return messageQueue.offer(message);
+            }
+
+            switch (overflowPolicy) {
+            case BACKPRESSURE:
+                messageQueue.offer(message);
+                if (!full && messageQueue.size() >= capacity) {
+                    connection.updateBackpressure(this, false);
+                }
+                return true;
+
+            case DROP_OLDEST_DATA:
+                while (messageQueue.size() >= capacity && messageQueue.dropOldestData()) {
+                    droppedMessages.incrementAndGet();
+                }
+                return messageQueue.offer(message);
+
+            case FAIL_CHANNEL:
+            default:
+                if (messageQueue.size() >= capacity) {
+                    fail();
+                    return false;
+                }
+                return messageQueue.offer(message);
+            }
+        }
+
+        private void fail() {
+            failed = true;
+            log.warn("{} exceeded its capacity of {} messages, failing it", this, capacity);
+            droppedMessages.addAndGet(messageQueue.size());
+            messageQueue.clear();
+            messageQueue.offer(new SignalFlowExceptionStreamMessage(new SignalFlowException(
+                    "channel " + getName() + " exceeded its capacity of " + capacity
+                            + " messages")));
+            connection.remove(this);
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return messageQueue.size();
+        }
+
+        @Override
+        public boolean setMessageListener(Runnable listener) {
+            this.messageListener = listener;
+            return true;
+        }
+
+        /**
+         * @return number of messages discarded by the overflow policy
+         */
+        public long getDroppedMessages() {
+            return droppedMessages.get();
+        }
+
+        @Override
+        public ChannelMessage poll(long timeout, TimeUnit unit) {
+            if (isClosed()) {
+                throw new IllegalStateException("channel is closed");
+            }
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (true) {
+                StreamMessage streamMessage = parser.poll(deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS);
+                if (streamMessage == null) {
+                    return null;
+                }
+                if (isIgnored(streamMessage.getKind())) {
+                    continue;
+                }
+                ChannelMessage message = ChannelMessage.decodeStreamMessage(streamMessage);
+                if (message != null) {
+                    return message;
+                }
+                log.warn("Unsupported control message {}. ignoring!", streamMessage);
+            }
         }
 
         @Override
         public void close() {
             super.close();
+            this.parser.close(); // wake up a consumer waiting for messages
             this.connection.remove(this); // deregister channel with transport connection
         }
     }
 
     /**
-     * Iterator over stream messages from websocket connection for a channel
+     * Message queue of a channel keeping data messages apart from the others, so that the
+     * oldest data message can be dropped in constant time while messages are still taken in
+     * the order they were offered.
+     */
+    protected static class ChannelQueue {
+
+        /**
+         * Queued message other than data, with the number of data messages offered before it.
+         */
+        private static class ControlEntry {
+            final StreamMessage message;
+            final long dataBefore;
+
+            ControlEntry(StreamMessage message, long dataBefore) {
+                this.message = message;
+                this.dataBefore = dataBefore;
+            }
+        }
+
+        private final Lock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final ArrayDeque<StreamMessage> data = new ArrayDeque<StreamMessage>();
+        private final ArrayDeque<ControlEntry> control = new ArrayDeque<ControlEntry>();
+        private long dataOffered;
+        private long dataRemoved;
+
+        public boolean offer(StreamMessage message) {
+            lock.lock();
+            try {
+                if (message.getKind() == Kind.DATA) {
+                    data.addLast(message);
+                    dataOffered++;
+                } else {
+                    control.addLast(new ControlEntry(message, dataOffered));
+                }
+                notEmpty.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return whether a data message was queued and got dropped
+         */
+        public boolean dropOldestData() {
+            lock.lock();
+            try {
+                if (data.pollFirst() == null) {
+                    return false;
+                }
+                dataRemoved++;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public StreamMessage take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                StreamMessage message;
+                while ((message = next()) == null) {
+                    notEmpty.await();
+                }
+                return message;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return the next message, or null if none arrived in time
+         */
+        public StreamMessage poll(long timeoutNanos) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                StreamMessage message;
+                while ((message = next()) == null) {
+                    if (timeoutNanos <= 0) {
+                        return null;
+                    }
+                    timeoutNanos = notEmpty.awaitNanos(timeoutNanos);
+                }
+                return message;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int size() {
+            lock.lock();
+            try {
+                return data.size() + control.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void clear() {
+            lock.lock();
+            try {
+                dataRemoved += data.size();
+                data.clear();
+                control.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return the message offered first, or null if the queue is empty
+         */
+        private StreamMessage next() {
+            ControlEntry head = control.peekFirst();
+            if (head != null && head.dataBefore <= dataRemoved) {
+                return control.pollFirst().message;
+            }
+            StreamMessage message = data.pollFirst();
+            if (message != null) {
+                dataRemoved++;
+            }
+            return message;
+        }
+    }
+
+    /**
+     * Iterator over stream messages from websocket connection for a channel. Consumers block
+     * until a message arrives or the parser is closed.
      */
     protected static class TransportEventStreamParser implements Iterator<StreamMessage> {
 
-        protected Queue<StreamMessage> messageQueue;
-        protected boolean isClosed = false;
+        /**
+         * Queued on close to wake up a blocked consumer.
+         */
+        private static final StreamMessage CLOSED = new StreamMessage();
+
+        protected BlockingQueue<StreamMessage> messageQueue;
+        protected volatile boolean isClosed = false;
 
-        public TransportEventStreamParser(Queue<StreamMessage> messageQueue) {
+        public TransportEventStreamParser(BlockingQueue<StreamMessage> messageQueue) {
             this.messageQueue = messageQueue;
         }
 
@@ -611,47 +1403,116 @@ public class WebSocketTransport implements SignalFlowTransport {
 
         @Override
         public StreamMessage next() {
-            StreamMessage streamMessage = null;
-            while ((!isClosed) && (streamMessage == null)) {
+            while (!isClosed) {
+                StreamMessage streamMessage;
+                try {
+                    streamMessage = take();
+                } catch (InterruptedException ex) {
+                    close();
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                onDequeue();
+                if (accept(streamMessage)) {
+                    return streamMessage;
+                }
+            }
+            throw new NoSuchElementException("no more stream messages");
+        }
 
-                streamMessage = messageQueue.poll();
-                if (streamMessage != null) {
+        /**
+         * Waits up to the given time for the next stream message.
+         *
+         * @param timeout
+         *            how long to wait
+         * @param unit
+         *            unit of the timeout
+         * @return the next stream message, or null if none arrived in time
+         * @throws NoSuchElementException
+         *             if the parser is closed, or gets closed because the waiting thread was
+         *             interrupted
+         */
+        public StreamMessage poll(long timeout, TimeUnit unit) {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isClosed) {
+                StreamMessage streamMessage;
+                try {
+                    streamMessage = poll(deadline - System.nanoTime());
+                } catch (InterruptedException ex) {
+                    close();
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (streamMessage == null) {
+                    return null;
+                }
+                onDequeue();
+                if (accept(streamMessage)) {
+                    return streamMessage;
+                }
+            }
+            throw new NoSuchElementException("no more stream messages");
+        }
 
-                    switch (streamMessage.getKind()) {
+        /**
+         * Waits for the next message of the queue.
+         */
+        protected StreamMessage take() throws InterruptedException {
+            return messageQueue.take();
+        }
 
-                    case CONTROL:
-                        ChannelMessage channelMessage = ChannelMessage
-                                .decodeStreamMessage(streamMessage);
-                        if ((channelMessage.getType() == Type.END_OF_CHANNEL)
-                                || (channelMessage.getType() == Type.CHANNEL_ABORT)) {
-                            close(); // this is the last message for computation
-                        }
-                        break;
+        /**
+         * Waits up to the given time for the next message of the queue.
+         *
+         * @return the message, or null if none arrived in time
+         */
+        protected StreamMessage poll(long timeoutNanos) throws InterruptedException {
+            return messageQueue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
 
-                    case ERROR:
-                        if (streamMessage instanceof SignalFlowExceptionStreamMessage) {
-                            close(); // no more messages now
-                            throw ((SignalFlowExceptionStreamMessage) streamMessage).getException();
-                        }
-                        break;
+        /**
+         * Wakes up a consumer waiting for a message after the parser was closed.
+         */
+        protected void wake() {
+            messageQueue.offer(CLOSED);
+        }
 
-                    default:
-                    }
+        /**
+         * Called after each message taken from the queue.
+         */
+        protected void onDequeue() {
+        }
 
-                } else {
-                    try {
-                        Thread.sleep(100L);
-                    } catch (InterruptedException ex) {
-                        close();
-                    }
-                }
+        /**
+         * Inspects a dequeued message, closing the parser after the last message of the
+         * computation.
+         *
+         * @return whether the message should be handed to the consumer
+         */
+        private boolean accept(StreamMessage streamMessage) {
+            if (streamMessage == CLOSED) {
+                return false;
             }
+            switch (streamMessage.getKind()) {
 
-            if (streamMessage != null) {
-                return streamMessage;
-            } else {
-                throw new NoSuchElementException("no more stream messages");
+            case CONTROL:
+                ChannelMessage channelMessage = ChannelMessage.decodeStreamMessage(streamMessage);
+                if ((channelMessage.getType() == Type.END_OF_CHANNEL)
+                        || (channelMessage.getType() == Type.CHANNEL_ABORT)) {
+                    close(); // this is the last message for computation
+                }
+                break;
+
+            case ERROR:
+                if (streamMessage instanceof SignalFlowExceptionStreamMessage) {
+                    close(); // no more messages now
+                    throw ((SignalFlowExceptionStreamMessage) streamMessage).getException();
+                }
+                break;
+
+            default:
             }
+            return true;
         }
 
         @Override
@@ -660,7 +1521,10 @@ public class WebSocketTransport implements SignalFlowTransport {
         }
 
         public void close() {
-            this.isClosed = true;
+            if (!this.isClosed) {
+                this.isClosed = true;
+                wake();
+            }
         }
     }
 }
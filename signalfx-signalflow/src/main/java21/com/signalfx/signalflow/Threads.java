@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016-2018 SignalFx, Inc. All rights reserved.
+ */
+package com.signalfx.signalflow;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the threads that the client runs blocking work on: Java 21 implementation, loaded from
+ * the multi-release jar in place of the Java 8 one.
+ *
+ * Every task runs on a virtual thread of its own, so executors need no sizing: a computation
+ * waiting for its next message only holds a virtual thread, and the blocking paths of the client
+ * wait on {@code java.util.concurrent} queues and locks, which do not pin the carrier thread.
+ */
+final class Threads {
+
+    private Threads() {
+    }
+
+    /**
+     * @param name
+     *            prefix of the names of the threads
+     * @param threads
+     *            ignored; virtual threads are started as needed
+     * @return an executor running each task on a new virtual thread
+     */
+    static ExecutorService newExecutor(String name, int threads) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+    }
+
+    /**
+     * @param name
+     *            name of the thread
+     * @param task
+     *            task to run
+     * @return a virtual thread, not started yet
+     */
+    static Thread newThread(String name, Runnable task) {
+        return Thread.ofVirtual().name(name).unstarted(task);
+    }
+}
@@ -0,0 +1,110 @@
+package com.signalfx.signalflow;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.BaseEncoding;
+import com.signalfx.signalflow.ChannelMessage.DataMessage;
+
+/**
+ * Compares decoding binary data frames straight into a {@link DataMessage} with the former
+ * path, which went through an intermediate map and a JSON round trip.
+ *
+ * <pre>
+ * java -cp ... com.signalfx.signalflow.BinaryDataMessageBenchmark [points per frame] [seconds]
+ * </pre>
+ */
+public class BinaryDataMessageBenchmark {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final BaseEncoding base64Encoder = BaseEncoding.base64Url().omitPadding();
+
+    public static void main(String[] args) throws Exception {
+        int points = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        byte[] body = frameBody(points);
+
+        // Warm up both paths before measuring.
+        run(body, false, 1);
+        run(body, true, 1);
+        double json = run(body, false, seconds);
+        double direct = run(body, true, seconds);
+
+        System.out.printf("points/frame=%d%n", points);
+        System.out.printf("json round trip: %.0f frames/s (%.0f points/s)%n", json, json * points);
+        System.out.printf("direct decode:   %.0f frames/s (%.0f points/s)%n", direct,
+                direct * points);
+        System.out.printf("speedup: %.2fx%n", direct / json);
+    }
+
+    static byte[] frameBody(int points) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 8 + 4 + points * 17);
+        buffer.putLong(System.currentTimeMillis());
+        buffer.putLong(1000L);
+        buffer.putInt(points);
+        for (int i = 0; i < points; i++) {
+            buffer.put((byte) (i % 2 == 0 ? 0x01 : 0x02));
+            buffer.putLong(0x1000000000000000L + i);
+            if (i % 2 == 0) {
+                buffer.putLong(i);
+            } else {
+                buffer.putDouble(i * 0.5);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static double run(byte[] body, boolean direct, int seconds) throws Exception {
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        long frames = 0;
+        long sink = 0;
+        while (System.nanoTime() < deadline) {
+            ChannelMessage message;
+            if (direct) {
+                message = ChannelMessage.decodeStreamMessage(new DecodedStreamMessage(
+                        WebSocketTransport.TransportConnection.decodeBinaryDataMessage((byte) 2,
+                                body)));
+            } else {
+                message = ChannelMessage.decodeStreamMessage(new StreamMessage("data", null,
+                        objectMapper.writeValueAsString(decodeToMap(body))));
+            }
+            sink += ((DataMessage) message).size();
+            frames++;
+        }
+        if (sink == 0) {
+            throw new IllegalStateException();
+        }
+        return frames / (double) seconds;
+    }
+
+    /**
+     * The map the transport used to build before serializing it to JSON.
+     */
+    private static Map<String, Object> decodeToMap(byte[] data) {
+        Map<String, Object> message = new HashMap<String, Object>();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        message.put("logicalTimestampMs", buffer.getLong());
+        message.put("maxDelayMs", buffer.getLong());
+        int count = buffer.getInt();
+        List<Map<String, Object>> datapoints = new ArrayList<Map<String, Object>>(count);
+        for (int element = 0; element < count; element++) {
+            Map<String, Object> elementMap = new HashMap<String, Object>(3);
+            byte type = buffer.get();
+            byte[] tsIdBytes = new byte[8];
+            buffer.get(tsIdBytes);
+            elementMap.put("tsId", base64Encoder.encode(tsIdBytes));
+            if (type == 0x02) {
+                elementMap.put("value", buffer.getDouble());
+            } else {
+                elementMap.put("value", buffer.getLong());
+            }
+            datapoints.add(elementMap);
+        }
+        message.put("data", datapoints);
+        return message;
+    }
+}
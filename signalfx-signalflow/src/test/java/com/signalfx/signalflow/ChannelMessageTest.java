@@ -0,0 +1,155 @@
+package com.signalfx.signalflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.signalfx.signalflow.ChannelMessage.ChannelAbortMessage;
+import com.signalfx.signalflow.ChannelMessage.DataMessage;
+import com.signalfx.signalflow.ChannelMessage.ErrorMessage;
+import com.signalfx.signalflow.ChannelMessage.EventMessage;
+import com.signalfx.signalflow.ChannelMessage.JobStartMessage;
+import com.signalfx.signalflow.ChannelMessage.MetadataMessage;
+import com.signalfx.signalflow.StreamMessage.Kind;
+
+public class ChannelMessageTest {
+
+    @Test
+    public void shouldDecodeJsonDataMessageIntoPrimitives() {
+        DataMessage message = (DataMessage) ChannelMessage.decodeStreamMessage(new StreamMessage(
+                "data", null, "{\"logicalTimestampMs\":1000,\"data\":["
+                        + "{\"tsId\":\"EAAAAAAAAAA\",\"value\":7},"
+                        + "{\"tsId\":\"EAAAAAAAAAE\",\"value\":1.5}]}"));
+
+        assertEquals(1000, message.getLogicalTimestampMs());
+        assertEquals(2, message.size());
+        assertTrue(message.hasBinaryTsIds());
+        assertEquals(0x1000000000000000L, message.getTsId(0));
+        assertFalse(message.isDoubleValue(0));
+        assertEquals(7, message.getLongValue(0));
+        assertTrue(message.isDoubleValue(1));
+        assertEquals(1.5, message.getDoubleValue(1), 0);
+        assertEquals("EAAAAAAAAAE", message.getTsIdString(1));
+        assertEquals(7L, message.getData().get("EAAAAAAAAAA"));
+    }
+
+    @Test
+    public void shouldFallBackToStringTsIds() {
+        DataMessage message = new DataMessage(1000, 1);
+        message.append(0x1000000000000000L, 1L);
+        message.addData(Collections.<String, Number>singletonMap("not-binary", 2.0));
+
+        assertFalse(message.hasBinaryTsIds());
+        assertEquals(2, message.size());
+        assertEquals("EAAAAAAAAAA", message.getTsIdString(0));
+        assertEquals("not-binary", message.getTsIdString(1));
+        assertEquals(2.0, message.getData().get("not-binary"));
+    }
+
+    @Test
+    public void shouldMergeBatches() {
+        DataMessage first = new DataMessage(1000, 1);
+        first.append(1L, 10L);
+        assertEquals(1, first.getData().size());
+
+        DataMessage second = new DataMessage(1000, 70);
+        for (int i = 0; i < 70; i++) {
+            second.append(100L + i, i * 0.5);
+        }
+        first.addData(second);
+
+        assertEquals(71, first.size());
+        assertFalse(first.isDoubleValue(0));
+        assertTrue(first.isDoubleValue(70));
+        assertEquals(34.5, first.getDoubleValue(70), 0);
+        assertEquals(169L, first.getTsId(70));
+        assertEquals(71, first.getData().size());
+    }
+
+    @Test
+    public void shouldRoundTripTsIds() {
+        for (long tsId : new long[] {0L, -1L, 0x1000000000000000L, 0x0123456789abcdefL}) {
+            assertEquals(tsId, TsIds.parse(TsIds.toString(tsId)));
+        }
+        assertFalse(TsIds.isBinary("EAAAAAAAAAB"));
+    }
+
+    @Test
+    public void shouldDecodeMessagesFromBytes() {
+        byte[] bytes = ("xx{\"channel\":\"c\",\"properties\":{\"sf_metric\":\"cpu\","
+                + "\"tags\":[\"a\",\"b\"],\"count\":3,\"nested\":{\"x\":null}},"
+                + "\"tsId\":\"EAAAAAAAAAA\"}yy").getBytes(Charset.forName("UTF-8"));
+        MetadataMessage message = (MetadataMessage) ChannelMessage.decodeStreamMessage(
+                new StreamMessage("metadata", null, bytes, 2, bytes.length - 4));
+
+        assertEquals("EAAAAAAAAAA", message.getTsId());
+        Map<String, Object> properties = message.getProperties();
+        assertEquals("cpu", properties.get("sf_metric"));
+        assertEquals(Arrays.asList("a", "b"), properties.get("tags"));
+        assertEquals(3, properties.get("count"));
+        assertTrue(((Map<?, ?>) properties.get("nested")).containsKey("x"));
+    }
+
+    @Test
+    public void shouldDecodeControlMessagesInAnyFieldOrder() {
+        JobStartMessage jobStart = (JobStartMessage) ChannelMessage.decodeStreamMessage(
+                new StreamMessage("control-message", null,
+                        "{\"handle\":\"DxYZ\",\"timestampMs\":5,\"event\":\"JOB_START\"}"));
+        assertEquals("DxYZ", jobStart.getHandle());
+        assertEquals(5, jobStart.getTimestampMs());
+
+        ChannelAbortMessage abort = (ChannelAbortMessage) ChannelMessage.decodeStreamMessage(
+                new StreamMessage("control-message", null, "{\"event\":\"CHANNEL_ABORT\","
+                        + "\"abortInfo\":{\"sf_job_abortReason\":\"stopped\"}}"));
+        assertEquals("stopped", abort.getAbortInfo().get("sf_job_abortReason"));
+    }
+
+    @Test(expected = SignalFlowException.class)
+    public void shouldRejectUnknownControlEvents() {
+        ChannelMessage.decodeStreamMessage(
+                new StreamMessage("control-message", null, "{\"event\":\"UNKNOWN\"}"));
+    }
+
+    @Test
+    public void shouldDecodeEventsAndErrors() {
+        EventMessage event = (EventMessage) ChannelMessage.decodeStreamMessage(new StreamMessage(
+                "event", null, "{\"tsId\":\"AAAAAAAAAAA\",\"timestampMs\":7,"
+                        + "\"metadata\":{\"sf_detector\":\"d\"},\"properties\":{\"is\":\"ok\"}}"));
+        assertEquals(7, event.getTimestampMs());
+        assertEquals("d", event.getMetadata().get("sf_detector"));
+        assertEquals("ok", event.getProperties().get("is"));
+
+        ErrorMessage error = (ErrorMessage) ChannelMessage.decodeStreamMessage(new StreamMessage(
+                "error", null, "{\"error\":400,\"errors\":[{\"code\":\"x\"}],"
+                        + "\"message\":\"bad\"}"));
+        assertEquals(400, error.getError());
+        assertEquals(1, ((List<?>) error.getErrors()).size());
+        assertEquals("bad", error.getMessage());
+    }
+
+    @Test
+    public void shouldSkipIgnoredKinds() {
+        Channel channel = new Channel(Arrays.asList(
+                new StreamMessage("metadata", null, "not even JSON"),
+                new StreamMessage("data", null, "{\"logicalTimestampMs\":1,\"data\":[]}"))
+                .iterator()) {};
+        channel.setIgnoredKinds(Collections.singleton(Kind.METADATA));
+
+        assertTrue(channel.isIgnored(Kind.METADATA));
+        assertEquals(1, ((DataMessage) channel.next()).getLogicalTimestampMs());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotIgnoreControlMessages() {
+        Channel channel = new Channel(Collections.<StreamMessage> emptyIterator()) {};
+        channel.setIgnoredKinds(Collections.singleton(Kind.CONTROL));
+    }
+}
@@ -0,0 +1,144 @@
+package com.signalfx.signalflow;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.server.WebSocketHandler;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
+import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A minimal SignalFlow WebSocket endpoint for tests: it accepts every token, answers executions
+ * and attachments with a STREAM_START message, and records the requests of each connection.
+ */
+class FakeSignalFlowServer {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Server server;
+    private final ServerConnector connector;
+    private final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+
+    FakeSignalFlowServer() throws Exception {
+        this.server = new Server();
+        this.connector = new ServerConnector(server);
+        this.connector.setHost(InetAddress.getLoopbackAddress().getHostAddress());
+        this.server.addConnector(connector);
+        this.server.setHandler(new WebSocketHandler() {
+            @Override
+            public void configure(WebSocketServletFactory factory) {
+                factory.setCreator(new WebSocketCreator() {
+                    @Override
+                    public Object createWebSocket(ServletUpgradeRequest request,
+                                                  ServletUpgradeResponse response) {
+                        // Recorded before the handshake completes, so in connection order.
+                        Connection connection = new Connection();
+                        connections.add(connection);
+                        return connection;
+                    }
+                });
+            }
+        });
+        this.server.start();
+    }
+
+    WebSocketTransport.TransportBuilder transportBuilder() {
+        return new WebSocketTransport.TransportBuilder("token").setProtocol("ws")
+                .setHost(connector.getHost())
+                .setPort(connector.getLocalPort());
+    }
+
+    List<Connection> getConnections() {
+        return connections;
+    }
+
+    void close() throws Exception {
+        for (Connection connection : connections) {
+            connection.drop();
+        }
+        server.stop();
+    }
+
+    /**
+     * One client connection, with the requests received on it.
+     */
+    static class Connection extends WebSocketAdapter {
+
+        final List<Map<String, Object>> requests = new CopyOnWriteArrayList<Map<String, Object>>();
+        final List<String> channels = new CopyOnWriteArrayList<String>();
+
+        @Override
+        public void onWebSocketText(String message) {
+            try {
+                onRequest(message);
+            } catch (IOException e) {
+                drop();
+            }
+        }
+
+        /**
+         * Sends a text message to the client.
+         */
+        synchronized void send(String message) throws IOException {
+            getRemote().sendString(message);
+        }
+
+        /**
+         * Sends the given number of empty data messages on each open channel.
+         */
+        void sendData(int count) throws IOException {
+            for (String channel : channels) {
+                for (int i = 0; i < count; i++) {
+                    send("{\"type\":\"data\",\"channel\":\"" + channel
+                            + "\",\"logicalTimestampMs\":" + i + ",\"data\":[]}");
+                }
+            }
+        }
+
+        /**
+         * Closes the connection without a closing handshake, as a lost connection would.
+         */
+        void drop() {
+            Session session = getSession();
+            if (session == null) {
+                return;
+            }
+            try {
+                session.disconnect();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+
+        boolean isOpen() {
+            Session session = getSession();
+            return session != null && session.isOpen();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void onRequest(String message) throws IOException {
+            Map<String, Object> request = objectMapper.readValue(message, Map.class);
+            requests.add(request);
+            Object type = request.get("type");
+            if ("authenticate".equals(type)) {
+                send("{\"type\":\"authenticated\",\"userId\":\"user\",\"orgId\":\"org\"}");
+            } else if ("execute".equals(type) || "attach".equals(type)) {
+                String channel = (String) request.get("channel");
+                channels.add(channel);
+                send("{\"type\":\"control-message\",\"channel\":\"" + channel
+                        + "\",\"event\":\"STREAM_START\",\"timestampMs\":1}");
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.signalfx.signalflow;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares the heap used by the metadata of a synthetic computation when kept in a map of
+ * Jackson-decoded maps, as computations used to, and in a {@link MetadataStore}.
+ *
+ * <pre>
+ * java -cp ... com.signalfx.signalflow.MetadataStoreBenchmark [timeseries]
+ * </pre>
+ */
+public class MetadataStoreBenchmark {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+
+        long baseline = usedHeap();
+        Map<String, Map<String, Object>> maps = new HashMap<String, Map<String, Object>>();
+        for (int i = 0; i < count; i++) {
+            maps.put(TsIds.toString(0x1000000000000000L + i), decode(i));
+        }
+        long mapBytes = usedHeap() - baseline;
+        int mapSize = maps.size();
+        maps = null;
+
+        baseline = usedHeap();
+        MetadataStore store = new MetadataStore();
+        for (int i = 0; i < count; i++) {
+            store.put(TsIds.toString(0x1000000000000000L + i), decode(i));
+        }
+        long storeBytes = usedHeap() - baseline;
+
+        System.out.printf("timeseries=%d (%d)%n", mapSize, store.size());
+        System.out.printf("map of maps:    %,d bytes (%d bytes/timeseries)%n", mapBytes,
+                mapBytes / count);
+        System.out.printf("metadata store: %,d bytes (%d bytes/timeseries)%n", storeBytes,
+                storeBytes / count);
+        System.out.printf("ratio: %.2fx%n", mapBytes / (double) storeBytes);
+    }
+
+    /**
+     * Decodes metadata the way metadata messages are, so that nothing is shared up front.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> decode(int i) throws Exception {
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("sf_metric", "cpu.utilization");
+        properties.put("sf_type", "MetricTimeSeries");
+        properties.put("sf_key", Arrays.asList("host", "cluster", "sf_metric"));
+        properties.put("sf_isActive", true);
+        properties.put("sf_createdOnMs", 1500000000000L + (i % 1000));
+        properties.put("host", "host-" + i);
+        properties.put("cluster", "cluster-" + (i % 50));
+        properties.put("region", "region-" + (i % 5));
+        properties.put("sf_organizationID", "AAAAAAAAAAA");
+        return objectMapper.readValue(objectMapper.writeValueAsBytes(properties),
+                LinkedHashMap.class);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,99 @@
+package com.signalfx.signalflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class MetadataStoreTest {
+
+    @Test
+    public void shouldStoreBinaryAndOtherIds() {
+        MetadataStore store = new MetadataStore();
+        store.put(TsIds.toString(42L), properties("host", "a"));
+        store.put("not-a-binary-id", properties("host", "b"));
+
+        assertEquals(2, store.size());
+        assertEquals(properties("host", "a"), store.get(TsIds.toString(42L)));
+        assertEquals("b", store.get("not-a-binary-id").get("host"));
+        assertTrue(store.getTsIds().contains(TsIds.toString(42L)));
+
+        store.remove("not-a-binary-id");
+        assertNull(store.get("not-a-binary-id"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void shouldShareInternedValues() {
+        MetadataStore store = new MetadataStore();
+        store.put(TsIds.toString(1L), properties("host", new String("shared")));
+        store.put(TsIds.toString(2L), properties("host", new String("shared")));
+
+        assertSame(store.get(TsIds.toString(1L)).get("host"),
+                store.get(TsIds.toString(2L)).get("host"));
+    }
+
+    @Test
+    public void shouldMatchHashMapThroughPutsAndRemoves() {
+        MetadataStore store = new MetadataStore();
+        Map<String, Map<String, Object>> expected = new HashMap<String, Map<String, Object>>();
+        Random random = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            String tsId = TsIds.toString(random.nextInt(2000));
+            if (random.nextInt(3) == 0) {
+                store.remove(tsId);
+                expected.remove(tsId);
+            } else {
+                Map<String, Object> properties = properties("value", Integer.toString(i));
+                store.put(tsId, properties);
+                expected.put(tsId, properties);
+            }
+        }
+
+        assertEquals(expected.size(), store.size());
+        for (int i = 0; i < 2000; i++) {
+            String tsId = TsIds.toString(i);
+            assertEquals(expected.get(tsId), store.get(tsId));
+        }
+    }
+
+    @Test
+    public void shouldEvictAndReloadWhenBounded() {
+        final AtomicInteger loads = new AtomicInteger();
+        MetadataStore store = new MetadataStore(100, new MetadataStore.Loader() {
+            @Override
+            public Map<String, Object> load(String tsId) {
+                loads.incrementAndGet();
+                return properties("reloaded", tsId);
+            }
+        });
+        for (int i = 0; i < 1000; i++) {
+            store.put(TsIds.toString(i), properties("host", "h" + i));
+            store.get(TsIds.toString(0)); // keep the first one in use
+        }
+
+        assertEquals(100, store.size());
+        assertEquals("h0", store.get(TsIds.toString(0)).get("host"));
+        assertEquals(0, loads.get());
+        assertEquals(TsIds.toString(1), store.get(TsIds.toString(1)).get("reloaded"));
+        assertEquals(1, loads.get());
+        assertEquals(100, store.size());
+    }
+
+    private static Map<String, Object> properties(String key, Object value) {
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("sf_metric", "cpu.utilization");
+        properties.put("sf_key", Arrays.asList("host"));
+        properties.put(key, value);
+        return properties;
+    }
+}
@@ -0,0 +1,109 @@
+package com.signalfx.signalflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.signalfx.signalflow.ChannelMessage.Type;
+
+public class PooledWebSocketTransportTest {
+
+    private static final Map<String, String> NO_PARAMETERS = Collections.emptyMap();
+
+    private FakeSignalFlowServer server;
+    private PooledWebSocketTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeSignalFlowServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (transport != null) {
+            transport.close(1000, null);
+        }
+        server.close();
+    }
+
+    @Test
+    public void shouldSpreadComputationsOverConnections() {
+        transport = new PooledWebSocketTransport(server.transportBuilder(), 3);
+        assertEquals(3, server.getConnections().size());
+
+        for (int i = 0; i < 6; i++) {
+            assertEquals(Type.STREAM_START, transport.execute("data('a').publish()",
+                    NO_PARAMETERS).next().getType());
+        }
+        for (FakeSignalFlowServer.Connection connection : server.getConnections()) {
+            assertEquals(2, connection.channels.size());
+        }
+    }
+
+    @Test
+    public void shouldPlaceComputationsOnLeastBusyConnection() throws Exception {
+        transport = new PooledWebSocketTransport(server.transportBuilder(), 2);
+        List<Channel> channels = new ArrayList<Channel>();
+        for (int i = 0; i < 2; i++) {
+            Channel channel = transport.execute("data('a').publish()", NO_PARAMETERS);
+            assertEquals(Type.STREAM_START, channel.next().getType());
+            channels.add(channel);
+        }
+        FakeSignalFlowServer.Connection busy = server.getConnections().get(0);
+        FakeSignalFlowServer.Connection quiet = server.getConnections().get(1);
+        assertEquals(1, busy.channels.size());
+        assertEquals(1, quiet.channels.size());
+
+        busy.sendData(500);
+        Thread.sleep(1100);
+        double[] rates = transport.getMessageRates();
+        assertTrue(rates[0] > rates[1]);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Type.STREAM_START, transport.execute("data('b').publish()",
+                    NO_PARAMETERS).next().getType());
+        }
+        assertEquals(1, busy.channels.size());
+        assertEquals(4, quiet.channels.size());
+        for (Channel channel : channels) {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void shouldOnlyFailOverComputationsOfLostConnection() throws Exception {
+        transport = new PooledWebSocketTransport(server.transportBuilder(), 2);
+        Channel lost = transport.execute("data('a').publish()", NO_PARAMETERS);
+        Channel kept = transport.execute("data('b').publish()", NO_PARAMETERS);
+        assertEquals(Type.STREAM_START, lost.next().getType());
+        assertEquals(Type.STREAM_START, kept.next().getType());
+
+        server.getConnections().get(0).drop();
+        try {
+            lost.next();
+            fail("expected the connection loss to reach the channel");
+        } catch (ConnectionLostException expected) {
+            // the computation reconnects through the pool
+        }
+
+        // Placed again on the connection that is still open.
+        Channel moved = transport.execute("data('a').publish()", NO_PARAMETERS);
+        assertEquals(Type.STREAM_START, moved.next().getType());
+        FakeSignalFlowServer.Connection open = server.getConnections().get(1);
+        assertEquals(2, open.channels.size());
+        assertEquals(2, server.getConnections().size());
+
+        open.sendData(1);
+        assertEquals(Type.DATA_MESSAGE, kept.next().getType());
+        assertTrue(transport.getTransports().get(1).isConnected());
+    }
+}
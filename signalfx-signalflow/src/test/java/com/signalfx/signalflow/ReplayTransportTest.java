@@ -0,0 +1,142 @@
+package com.signalfx.signalflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.signalfx.signalflow.ChannelMessage.DataMessage;
+import com.signalfx.signalflow.WebSocketTransport.ChannelOverflowPolicy;
+
+public class ReplayTransportTest {
+
+    private static final long FRAME_INTERVAL_MS = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldReplayRecordedChannel() throws Exception {
+        File file = folder.newFile();
+        String name = record(file, 3);
+
+        ReplayTransport transport = new ReplayTransport.TransportBuilder(file)
+                .setSpeed(ReplayTransport.AS_FAST_AS_POSSIBLE).build();
+        try {
+            assertEquals(Collections.singletonList(name), transport.getRecordedChannels());
+            Channel channel = transport.execute("ignored", Collections.<String, String>emptyMap());
+            assertEquals(name, channel.getName());
+
+            assertEquals(ChannelMessage.Type.JOB_START, channel.next().getType());
+            for (long timestamp = 0; timestamp < 3; timestamp++) {
+                DataMessage data = (DataMessage) channel.next();
+                assertEquals(timestamp, data.getLogicalTimestampMs());
+                assertEquals(1, data.size());
+            }
+            assertEquals(ChannelMessage.Type.END_OF_CHANNEL, channel.next().getType());
+            assertEquals(4, transport.getReplayedFrames());
+
+            try {
+                transport.execute("ignored", Collections.<String, String>emptyMap());
+                fail("expected SignalFlowException");
+            } catch (SignalFlowException expected) {
+                // only one channel was recorded
+            }
+        } finally {
+            transport.close(1000, null);
+        }
+    }
+
+    @Test
+    public void shouldReplayAtRecordedPace() throws Exception {
+        File file = folder.newFile();
+        record(file, 4);
+
+        long original = replay(file, ReplayTransport.ORIGINAL_SPEED);
+        long fastest = replay(file, ReplayTransport.AS_FAST_AS_POSSIBLE);
+        assertTrue(original >= 3 * FRAME_INTERVAL_MS - 10);
+        assertTrue(fastest < original);
+    }
+
+    @Test
+    public void shouldReplayAppendedRecordingsInOrder() throws Exception {
+        File file = folder.newFile();
+        String first = record(file, 1);
+        String second = record(file, 1);
+
+        ReplayTransport transport = new ReplayTransport.TransportBuilder(file).build();
+        assertEquals(Arrays.asList(first, second), transport.getRecordedChannels());
+        transport.close(1000, null);
+
+        transport = new ReplayTransport.TransportBuilder(file).setMaxChannels(1).build();
+        assertEquals(Collections.singletonList(first), transport.getRecordedChannels());
+        transport.close(1000, null);
+    }
+
+    /**
+     * Records a channel receiving a job start and data frames a fixed interval apart.
+     *
+     * @return name of the recorded channel
+     */
+    private static String record(File file, int frames) throws Exception {
+        FrameRecorder recorder = new FrameRecorder(file);
+        try {
+            WebSocketTransport.TransportConnection connection =
+                    new WebSocketTransport.TransportConnection("token", 0,
+                            ChannelOverflowPolicy.BACKPRESSURE, null, recorder);
+            WebSocketTransport.TransportChannel channel =
+                    new WebSocketTransport.TransportChannel(connection);
+            connection.onWebSocketText("{\"type\":\"control-message\",\"channel\":\""
+                    + channel.getName()
+                    + "\",\"event\":\"JOB_START\",\"handle\":\"h\",\"timestampMs\":1}");
+            for (long timestamp = 0; timestamp < frames; timestamp++) {
+                Thread.sleep(timestamp == 0 ? 0 : FRAME_INTERVAL_MS);
+                byte[] frame = binaryFrame(channel.getName(), timestamp);
+                connection.onWebSocketBinary(frame, 0, frame.length);
+            }
+            assertEquals(frames + 1, recorder.getRecordedFrames());
+            return channel.getName();
+        } finally {
+            recorder.close();
+        }
+    }
+
+    /**
+     * @return milliseconds taken to receive every message of the recorded channel
+     */
+    private static long replay(File file, double speed) {
+        ReplayTransport transport = new ReplayTransport.TransportBuilder(file).setSpeed(speed)
+                .build();
+        try {
+            long start = System.nanoTime();
+            Channel channel = transport.execute("ignored", Collections.<String, String>emptyMap());
+            while (channel.next().getType() != ChannelMessage.Type.END_OF_CHANNEL) {
+                // drain
+            }
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            transport.close(1000, null);
+        }
+    }
+
+    private static byte[] binaryFrame(String channel, long timestamp) {
+        byte[] body = BinaryDataMessageBenchmark.frameBody(1);
+        ByteBuffer.wrap(body).putLong(timestamp);
+        ByteBuffer frame = ByteBuffer.allocate(20 + body.length);
+        frame.put(new byte[] { 2, 0, 5, 0 }); // version 2, data message, no flags
+        for (char c : channel.toCharArray()) {
+            frame.put((byte) c);
+        }
+        frame.put(body);
+        return frame.array();
+    }
+}
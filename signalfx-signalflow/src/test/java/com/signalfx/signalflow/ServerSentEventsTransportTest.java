@@ -0,0 +1,262 @@
+package com.signalfx.signalflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.Test;
+
+import com.signalfx.signalflow.ChannelMessage.DataMessage;
+import com.signalfx.signalflow.ChannelMessage.Type;
+import com.signalfx.signalflow.ServerSentEventsTransport.TransportEventStreamParser;
+import com.signalfx.signalflow.StreamMessage.Kind;
+
+public class ServerSentEventsTransportTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void shouldParseEvents() throws IOException {
+        TransportEventStreamParser parser = new TransportEventStreamParser(stream(
+                ": comment\n"
+                        + "event: control-message\n"
+                        + "id: 1\n"
+                        + "data: {\"event\":\"STREAM_START\",\n"
+                        + "data:\"timestampMs\":1}\n"
+                        + "\n"
+                        + "retry: 2500\n"
+                        + "\n"
+                        + "event: data\r\n"
+                        + "data: {\"logicalTimestampMs\":1000,\"data\":[]}\r\n"
+                        + "\r\n"
+                        + "data: é\r"
+                        + "\r", 1000));
+
+        StreamMessage control = parser.next();
+        assertEquals(Kind.CONTROL, control.getKind());
+        assertEquals("1", control.getId());
+        assertEquals("{\"event\":\"STREAM_START\",\n\"timestampMs\":1}", control.getData());
+
+        StreamMessage data = parser.next();
+        assertEquals(Kind.DATA, data.getKind());
+        assertEquals("1", data.getId());
+        assertEquals(2500, parser.getReconnectionTimeoutMs());
+        assertEquals(1000, ((DataMessage) ChannelMessage.decodeStreamMessage(data))
+                .getLogicalTimestampMs());
+
+        StreamMessage message = parser.next();
+        assertEquals("message", message.getEvent());
+        assertEquals("é", message.getData());
+        assertFalse(parser.hasNext());
+    }
+
+    @Test
+    public void shouldParseEventsSplitAcrossReads() throws IOException {
+        StringBuilder events = new StringBuilder();
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            payload.append('x');
+        }
+        for (int i = 0; i < 10; i++) {
+            events.append("event: message\r\ndata: ").append(i).append(payload).append("\r\n\r\n");
+        }
+
+        TransportEventStreamParser parser = new TransportEventStreamParser(
+                stream(events.toString(), 7));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(parser.hasNext());
+            assertEquals(i + payload.toString(), parser.next().getData());
+        }
+        assertFalse(parser.hasNext());
+    }
+
+    @Test
+    public void shouldDispatchLastEventAtEndOfStream() throws IOException {
+        TransportEventStreamParser parser = new TransportEventStreamParser(
+                stream("event: data\ndata: last", 1000));
+
+        assertEquals("last", parser.next().getData());
+        assertFalse(parser.hasNext());
+    }
+
+    @Test
+    public void shouldShareConnectionsBetweenChannelsAndRequests() throws Exception {
+        SignalFlowHandler handler = new SignalFlowHandler();
+        Server server = new Server(0);
+        server.setHandler(handler);
+        server.start();
+        try {
+            URI uri = server.getURI();
+            ServerSentEventsTransport transport = new ServerSentEventsTransport.TransportBuilder(
+                    "token").setProtocol(uri.getScheme()).setHost(uri.getHost())
+                    .setPort(uri.getPort()).build();
+
+            Channel first = transport.execute("data('a').publish()",
+                    Collections.<String, String> emptyMap());
+            Channel second = transport.execute("data('b').publish()",
+                    Collections.<String, String> emptyMap());
+            assertEquals(Type.STREAM_START, first.next().getType());
+            assertEquals(Type.STREAM_START, second.next().getType());
+
+            for (int i = 0; i < 3; i++) {
+                transport.keepalive("handle");
+            }
+            assertEquals(1, handler.keepalivePorts.size());
+
+            // Closing a channel leaves the transport usable.
+            first.close();
+            transport.keepalive("handle");
+            assertEquals(1, handler.keepalivePorts.size());
+
+            second.close();
+            transport.close(1000, null);
+        } finally {
+            handler.release.countDown();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void shouldDecompressFlushedEventsAsTheyArrive() throws Exception {
+        SignalFlowHandler handler = new SignalFlowHandler();
+        handler.encoding = "gzip";
+        Server server = new Server(0);
+        server.setHandler(handler);
+        server.start();
+        try {
+            URI uri = server.getURI();
+            ServerSentEventsTransport transport = new ServerSentEventsTransport.TransportBuilder(
+                    "token").setProtocol(uri.getScheme()).setHost(uri.getHost())
+                    .setPort(uri.getPort()).build();
+
+            // The response stays open: the event must not wait for the end of the stream.
+            Channel channel = transport.execute("data('a').publish()",
+                    Collections.<String, String> emptyMap());
+            assertEquals(Type.STREAM_START, channel.next().getType());
+            assertEquals("gzip, deflate", handler.acceptEncoding);
+
+            channel.close();
+            transport.close(1000, null);
+        } finally {
+            handler.release.countDown();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void shouldDecompressDeflateStreams() throws IOException {
+        String events = "event: data\ndata: {\"logicalTimestampMs\":1,\"data\":[]}\n\n";
+        for (boolean nowrap : new boolean[] {false, true}) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            OutputStream out = new DeflaterOutputStream(compressed,
+                    new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap));
+            out.write(events.getBytes(UTF_8));
+            out.close();
+
+            TransportEventStreamParser parser = new TransportEventStreamParser(
+                    new StreamInflater(new ByteArrayInputStream(compressed.toByteArray()),
+                            "deflate"));
+            assertEquals(Kind.DATA, parser.next().getKind());
+            assertFalse(parser.hasNext());
+        }
+    }
+
+    @Test(expected = ZipException.class)
+    public void shouldRejectCorruptGzipStreams() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(compressed);
+        out.write("data: x\n\n".getBytes(UTF_8));
+        out.close();
+        byte[] bytes = compressed.toByteArray();
+        bytes[bytes.length - 5]++; // uncompressed size in the trailer
+
+        InputStream in = new StreamInflater(stream(bytes, 3), "gzip");
+        byte[] buffer = new byte[64];
+        while (in.read(buffer, 0, buffer.length) >= 0) {
+            // read to the trailer
+        }
+    }
+
+    /**
+     * Streams a STREAM_START message for executions, holding them open until released, and
+     * records the client ports of keepalive requests.
+     */
+    private static class SignalFlowHandler extends AbstractHandler {
+
+        private final CountDownLatch release = new CountDownLatch(1);
+        private String encoding;
+        private volatile String acceptEncoding;
+        private final Set<Integer> keepalivePorts = Collections
+                .synchronizedSet(new HashSet<Integer>());
+
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request,
+                           HttpServletResponse response) throws IOException {
+            baseRequest.setHandled(true);
+            if (target.endsWith("/keepalive")) {
+                keepalivePorts.add(request.getRemotePort());
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.getWriter().write("OK");
+                return;
+            }
+
+            acceptEncoding = request.getHeader("Accept-Encoding");
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("text/event-stream");
+            OutputStream out = response.getOutputStream();
+            if ("gzip".equals(encoding)) {
+                response.setHeader("Content-Encoding", "gzip");
+                out = new GZIPOutputStream(out, true);
+            }
+            out.write(("event: control-message\n"
+                    + "data: {\"event\":\"STREAM_START\",\"timestampMs\":1}\n\n")
+                    .getBytes(UTF_8));
+            out.flush();
+            response.flushBuffer();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return a stream returning at most the given number of bytes per read
+     */
+    private static InputStream stream(String events, int chunkSize) {
+        return stream(events.getBytes(UTF_8), chunkSize);
+    }
+
+    private static InputStream stream(byte[] bytes, final int chunkSize) {
+        return new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunkSize));
+            }
+        };
+    }
+}
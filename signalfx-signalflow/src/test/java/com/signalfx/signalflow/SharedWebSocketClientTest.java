@@ -0,0 +1,91 @@
+package com.signalfx.signalflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.junit.Test;
+
+public class SharedWebSocketClientTest {
+
+    @Test
+    public void shouldStopClientWhenLastUserReleasesIt() throws Exception {
+        SharedWebSocketClient shared = new SharedWebSocketClient.Builder()
+                .setSelectorThreads(1).setMinThreads(2).setMaxThreads(6).build();
+
+        WebSocketClient first = shared.acquire();
+        WebSocketClient second = shared.acquire();
+        assertSame(first, second);
+        assertTrue(first.isStarted());
+        assertEquals(6, ((QueuedThreadPool) first.getExecutor()).getMaxThreads());
+        assertEquals(2, ((QueuedThreadPool) first.getExecutor()).getMinThreads());
+
+        shared.release();
+        assertTrue(first.isStarted());
+        shared.release();
+        assertFalse(first.isStarted());
+        assertEquals(0, shared.getReferenceCount());
+
+        WebSocketClient restarted = shared.acquire();
+        assertNotSame(first, restarted);
+        assertTrue(restarted.isStarted());
+        shared.release();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectUnbalancedRelease() {
+        new SharedWebSocketClient.Builder().build().release();
+    }
+
+    @Test
+    public void shouldReleaseClientWhenTransportFailsToConnect() throws Exception {
+        Server server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) {
+                baseRequest.setHandled(true);
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            }
+        });
+        server.start();
+        try {
+            URI uri = server.getURI();
+            SharedWebSocketClient shared = new SharedWebSocketClient.Builder().build();
+            WebSocketClient client = shared.acquire();
+            try {
+                new WebSocketTransport.TransportBuilder("token").setProtocol("ws")
+                        .setHost(uri.getHost()).setPort(uri.getPort())
+                        .setWebSocketClient(shared).build();
+                fail("expected the upgrade to be refused");
+            } catch (SignalFlowException expected) {
+                // no WebSocket endpoint
+            }
+            assertEquals(1, shared.getReferenceCount());
+            assertTrue(client.isStarted());
+            shared.release();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectBufferSettingsWithSharedClient() {
+        new WebSocketTransport.TransportBuilder("token")
+                .setWebSocketClient(new SharedWebSocketClient.Builder().build())
+                .setInputBufferSize(65536).build();
+    }
+}
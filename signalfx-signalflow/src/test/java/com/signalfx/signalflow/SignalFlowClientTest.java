@@ -2,8 +2,23 @@ package com.signalfx.signalflow;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import com.signalfx.signalflow.ChannelMessage.DataMessage;
+import com.signalfx.signalflow.ChannelMessage.MetadataMessage;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class SignalFlowClientTest {
@@ -17,9 +32,357 @@ public class SignalFlowClientTest {
         assertTrue(transport.isClosed());
     }
 
+    @Test
+    public void shouldPushMessagesAsRequested() throws Exception {
+        StubTransport transport = new StubTransport();
+        WebSocketTransport.TransportChannel channel = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token"));
+        transport.channels.add(channel);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+
+        try (SignalFlowClient client = new SignalFlowClient(transport)) {
+            Computation computation = client.subscribe("data('cpu').publish()", subscriber);
+            channel.offer(metadata("AAAAAAAAAAA"));
+            channel.offer(metadata("AAAAAAAAAAE"));
+            Thread.sleep(50);
+            assertEquals(0, subscriber.messages.size());
+            assertEquals(2, computation.getQueueDepth());
+
+            subscriber.subscription.request(1);
+            awaitMessages(subscriber, 1);
+            Thread.sleep(50);
+            assertEquals(1, subscriber.messages.size());
+
+            subscriber.subscription.request(Long.MAX_VALUE);
+            channel.offer(new StreamMessage("control-message", null,
+                    "{\"event\":\"END_OF_CHANNEL\",\"timestampMs\":2}"));
+            assertTrue(subscriber.completed.await(1, TimeUnit.SECONDS));
+            assertEquals(2, subscriber.messages.size());
+            assertEquals("AAAAAAAAAAE",
+                    ((MetadataMessage) subscriber.messages.get(1)).getTsId());
+            assertEquals(Computation.State.STATE_COMPLETED, computation.getState());
+        }
+    }
+
+    @Test
+    public void shouldNotBlockExecutorOnChannelsWithoutListener() throws Exception {
+        StubTransport transport = new StubTransport();
+        BlockingQueue<StreamMessage> stream = new LinkedBlockingQueue<StreamMessage>();
+        transport.channels.add(blockingChannel(stream));
+        transport.channels.add(blockingChannel(new LinkedBlockingQueue<StreamMessage>()));
+        WebSocketTransport.TransportChannel channel = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token"));
+        transport.channels.add(channel);
+        RecordingSubscriber[] subscribers = new RecordingSubscriber[3];
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try (SignalFlowClient client = new SignalFlowClient(transport, executor)) {
+            for (int i = 0; i < subscribers.length; i++) {
+                subscribers[i] = new RecordingSubscriber();
+                client.subscribe("data('cpu').publish()", subscribers[i]);
+                subscribers[i].subscription.request(Long.MAX_VALUE);
+            }
+            channel.offer(metadata("AAAAAAAAAAA"));
+            awaitMessages(subscribers[2], 1);
+            assertEquals(1, subscribers[2].messages.size());
+
+            stream.offer(metadata("AAAAAAAAAAE"));
+            awaitMessages(subscribers[0], 1);
+            assertEquals("AAAAAAAAAAE",
+                    ((MetadataMessage) subscribers[0].messages.get(0)).getTsId());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotIterateSubscribedComputation() {
+        StubTransport transport = new StubTransport();
+        transport.channels.add(new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token")));
+
+        try (SignalFlowClient client = new SignalFlowClient(transport)) {
+            client.subscribe("data('cpu').publish()", new RecordingSubscriber()).next();
+        }
+    }
+
+    @Test
+    public void shouldResumeFromLastTimestampAfterConnectionLoss() {
+        StubTransport transport = new StubTransport();
+        WebSocketTransport.TransportChannel first = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token"));
+        WebSocketTransport.TransportChannel second = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token"));
+        transport.channels.add(first);
+        transport.channels.add(second);
+
+        first.offer(data(1000));
+        first.offer(new StreamMessage("message", null,
+                "{\"logicalTimestampMs\":1000,\"message\":{\"messageCode\":\"FETCH_NUM_TIMESERIES\"}}"));
+        first.offer(data(2000));
+        first.offer(new WebSocketTransport.SignalFlowExceptionStreamMessage(
+                new ConnectionLostException(1006, "lost")));
+        second.offer(data(2000));
+        second.offer(data(3000));
+
+        SignalFlowClient client = new SignalFlowClient(transport);
+        Computation computation = client.execute("data('cpu').publish()")
+                .setReconnectBackoff(1, 10, 3);
+        assertEquals(1000, ((DataMessage) computation.next()).getLogicalTimestampMs());
+        assertEquals(2000, ((DataMessage) computation.next()).getLogicalTimestampMs());
+        assertEquals(3000, ((DataMessage) computation.next()).getLogicalTimestampMs());
+        assertEquals(2, transport.executions.size());
+        assertEquals("2000", transport.executions.get(1).get("start"));
+    }
+
+    @Test
+    public void shouldResumePushedComputationAfterConnectionLoss() throws Exception {
+        StubTransport transport = new StubTransport();
+        WebSocketTransport.TransportChannel first = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token"));
+        WebSocketTransport.TransportChannel second = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token"));
+        transport.channels.add(first);
+        transport.channels.add(second);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+
+        try (SignalFlowClient client = new SignalFlowClient(transport)) {
+            Computation computation = client.execute("data('cpu').publish()")
+                    .setReconnectBackoff(1, 10, 3);
+            client.subscribe(computation, subscriber);
+            subscriber.subscription.request(Long.MAX_VALUE);
+            first.offer(data(1000));
+            first.offer(data(2000));
+            first.offer(new WebSocketTransport.SignalFlowExceptionStreamMessage(
+                    new ConnectionLostException(1006, "lost")));
+            awaitMessages(subscriber, 1);
+
+            second.offer(data(2000));
+            second.offer(data(3000));
+            awaitMessages(subscriber, 2);
+            assertEquals(2000,
+                    ((DataMessage) subscriber.messages.get(1)).getLogicalTimestampMs());
+            assertEquals(2, transport.executions.size());
+            assertEquals("2000", transport.executions.get(1).get("start"));
+        }
+    }
+
+    @Test
+    public void shouldNotResumeClosedComputation() throws Exception {
+        StubTransport transport = new StubTransport();
+        WebSocketTransport.TransportChannel first = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token"));
+        WebSocketTransport.TransportChannel second = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token"));
+        transport.channels.add(first);
+        transport.channels.add(second);
+        second.offer(data(1000));
+        second.offer(data(2000));
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+
+        try (SignalFlowClient client = new SignalFlowClient(transport)) {
+            Computation computation = client.execute("data('cpu').publish()")
+                    .setReconnectBackoff(50, 50, 3);
+            client.subscribe(computation, subscriber);
+            subscriber.subscription.request(Long.MAX_VALUE);
+            first.offer(new WebSocketTransport.SignalFlowExceptionStreamMessage(
+                    new ConnectionLostException(1006, "lost")));
+            computation.close();
+            Thread.sleep(200);
+
+            assertEquals(0, subscriber.messages.size());
+            // Either the reconnection was not attempted, or its channel was closed.
+            assertTrue(transport.executions.size() == 1 || second.isClosed());
+        }
+    }
+
+    @Test
+    public void shouldCompleteTimestampWhenNextOneArrives() {
+        StubTransport transport = new StubTransport();
+        WebSocketTransport.TransportChannel channel = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token"));
+        transport.channels.add(channel);
+        channel.offer(data(1000, "AAAAAAAAAAA"));
+        channel.offer(data(1000, "AAAAAAAAAAE"));
+        channel.offer(data(2000, "AAAAAAAAAAA"));
+        channel.offer(data(2000, "AAAAAAAAAAE"));
+
+        SignalFlowClient client = new SignalFlowClient(transport);
+        Computation computation = client.execute("data('cpu').publish()")
+                .setBatchFlushTimeout(-1);
+        DataMessage first = (DataMessage) computation.next();
+        assertEquals(1000, first.getLogicalTimestampMs());
+        assertEquals(2, first.size());
+        // Two batches per timestamp were learned from the first one.
+        DataMessage second = (DataMessage) computation.next();
+        assertEquals(2000, second.getLogicalTimestampMs());
+        assertEquals(2, second.size());
+        assertEquals(0, computation.getQueueDepth());
+    }
+
+    @Test
+    public void shouldExpectBatchesOfPreviousTimestamp() {
+        StubTransport transport = new StubTransport();
+        WebSocketTransport.TransportChannel channel = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token"));
+        transport.channels.add(channel);
+        channel.offer(data(1000, "AAAAAAAAAAA"));
+        channel.offer(data(1000, "AAAAAAAAAAE"));
+        channel.offer(data(1000, "AAAAAAAAAAI"));
+        channel.offer(data(2000, "AAAAAAAAAAA"));
+        channel.offer(data(2000, "AAAAAAAAAAE"));
+        channel.offer(data(3000, "AAAAAAAAAAA"));
+        channel.offer(data(3000, "AAAAAAAAAAE"));
+
+        SignalFlowClient client = new SignalFlowClient(transport);
+        Computation computation = client.execute("data('cpu').publish()");
+        assertEquals(3, ((DataMessage) computation.next()).size());
+        assertEquals(2, ((DataMessage) computation.next()).size());
+        // A timestamp with more batches does not raise the count for good.
+        DataMessage third = (DataMessage) computation.next();
+        assertEquals(3000, third.getLogicalTimestampMs());
+        assertEquals(2, third.size());
+    }
+
+    @Test
+    public void shouldFlushTimestampAfterTimeout() {
+        StubTransport transport = new StubTransport();
+        WebSocketTransport.TransportChannel channel = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token"));
+        transport.channels.add(channel);
+        channel.offer(data(1000, "AAAAAAAAAAA"));
+
+        SignalFlowClient client = new SignalFlowClient(transport);
+        Computation computation = client.execute("data('cpu').publish()")
+                .setBatchFlushTimeout(50);
+        long start = System.nanoTime();
+        assertEquals(1000, ((DataMessage) computation.next()).getLogicalTimestampMs());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+        // A batch arriving after its timestamp was emitted is emitted on its own.
+        channel.offer(data(1000, "AAAAAAAAAAE"));
+        DataMessage late = (DataMessage) computation.next();
+        assertEquals(1000, late.getLogicalTimestampMs());
+        assertEquals(1, late.size());
+    }
+
+    @Test
+    public void shouldEmitPartialBatches() {
+        StubTransport transport = new StubTransport();
+        WebSocketTransport.TransportChannel channel = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token"));
+        transport.channels.add(channel);
+        channel.offer(data(1000, "AAAAAAAAAAA"));
+        channel.offer(data(1000, "AAAAAAAAAAE"));
+
+        SignalFlowClient client = new SignalFlowClient(transport);
+        Computation computation = client.execute("data('cpu').publish()")
+                .setBatchFlushTimeout(-1).setPartialBatches(true);
+        assertEquals(1, ((DataMessage) computation.next()).size());
+        assertEquals(1, ((DataMessage) computation.next()).size());
+        assertEquals(1000, computation.getLastLogicalTimestampMs());
+    }
+
+    @Test
+    public void shouldPushTimestampAfterTimeout() throws Exception {
+        StubTransport transport = new StubTransport();
+        WebSocketTransport.TransportChannel channel = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token"));
+        transport.channels.add(channel);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+
+        try (SignalFlowClient client = new SignalFlowClient(transport)) {
+            client.subscribe("data('cpu').publish()", subscriber).setBatchFlushTimeout(50);
+            subscriber.subscription.request(Long.MAX_VALUE);
+            channel.offer(data(1000, "AAAAAAAAAAA"));
+            awaitMessages(subscriber, 1);
+            assertEquals(1, subscriber.messages.size());
+            assertEquals(1000,
+                    ((DataMessage) subscriber.messages.get(0)).getLogicalTimestampMs());
+        }
+    }
+
+    private static StreamMessage data(long timestamp) {
+        return new StreamMessage("data", null,
+                "{\"logicalTimestampMs\":" + timestamp + ",\"data\":[]}");
+    }
+
+    private static StreamMessage data(long timestamp, String tsId) {
+        return new StreamMessage("data", null, "{\"logicalTimestampMs\":" + timestamp
+                + ",\"data\":[{\"tsId\":\"" + tsId + "\",\"value\":1}]}");
+    }
+
+    private static StreamMessage metadata(String tsId) {
+        return new StreamMessage("metadata", null,
+                "{\"tsId\":\"" + tsId + "\",\"properties\":{}}");
+    }
+
+    /**
+     * @return a channel that cannot notify of new messages and blocks until the next one
+     */
+    private static Channel blockingChannel(final BlockingQueue<StreamMessage> stream) {
+        return new Channel(new Iterator<StreamMessage>() {
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public StreamMessage next() {
+                try {
+                    return stream.take();
+                } catch (InterruptedException e) {
+                    throw new NoSuchElementException("interrupted");
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }) {
+        };
+    }
+
+    private static void awaitMessages(RecordingSubscriber subscriber, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (subscriber.messages.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static class RecordingSubscriber implements ComputationSubscriber {
+
+        private final List<ChannelMessage> messages = new CopyOnWriteArrayList<ChannelMessage>();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile ComputationSubscription subscription;
+
+        @Override
+        public void onSubscribe(ComputationSubscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(ChannelMessage message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void onError(RuntimeException error) {
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+
     private static class StubTransport implements SignalFlowTransport {
 
         private boolean closed = false;
+        private final List<Channel> channels = new ArrayList<Channel>();
+        private final List<Map<String, String>> executions = new ArrayList<Map<String, String>>();
 
         public boolean isClosed() {
             return closed;
@@ -37,7 +400,8 @@ public class SignalFlowClientTest {
 
         @Override
         public Channel execute(String program, Map<String, String> parameters) {
-            return null;
+            executions.add(parameters);
+            return channels.get(executions.size() - 1);
         }
 
         @Override
@@ -0,0 +1,187 @@
+package com.signalfx.signalflow;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compares the bandwidth and CPU cost of the compression options of {@link WebSocketTransport}
+ * on a stream of binary data frames: application-level gzip ({@code useCompression}), where
+ * every frame is compressed on its own, and permessage-deflate ({@code usePerMessageDeflate}),
+ * where a compression context is kept across frames.
+ *
+ * Frames carry the same timeseries at every timestamp, with gauges that move a little and
+ * counters that grow, as computations usually output.
+ *
+ * <pre>
+ * java -cp ... com.signalfx.signalflow.WebSocketCompressionBenchmark [series] [frames]
+ * </pre>
+ */
+public class WebSocketCompressionBenchmark {
+
+    private static final byte[] DEFLATE_TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+
+    public static void main(String[] args) throws Exception {
+        int series = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int frameCount = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        List<byte[]> frames = frames(series, frameCount);
+
+        long raw = 0;
+        for (byte[] frame : frames) {
+            raw += frame.length;
+        }
+        System.out.printf("series=%d frames=%d raw=%d bytes/frame%n", series, frameCount,
+                raw / frameCount);
+        System.out.printf("%-20s %12s %8s %16s %16s%n", "mode", "bytes/frame", "ratio",
+                "server us/frame", "client us/frame");
+
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            boolean print = round == 1;
+            measure("gzip per frame", frames, raw, false, true, print);
+            measure("permessage-deflate", frames, raw, true, false, print);
+            measure("both", frames, raw, true, true, print);
+        }
+    }
+
+    private static void measure(String mode, List<byte[]> frames, long raw,
+                                boolean perMessageDeflate, boolean gzip, boolean print)
+            throws Exception {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        List<byte[]> sent = new ArrayList<byte[]>(frames.size());
+        long start = System.nanoTime();
+        for (byte[] frame : frames) {
+            byte[] body = gzip ? gzip(frame) : frame;
+            sent.add(perMessageDeflate ? deflateMessage(deflater, body) : body);
+        }
+        long serverNanos = System.nanoTime() - start;
+        deflater.end();
+
+        long bytes = 0;
+        for (byte[] message : sent) {
+            bytes += message.length;
+        }
+
+        FrameInflater frameInflater = new FrameInflater(8192);
+        MessageInflater messageInflater = new MessageInflater();
+        long sink = 0;
+        start = System.nanoTime();
+        for (byte[] message : sent) {
+            byte[] body = message;
+            int length = message.length;
+            if (perMessageDeflate) {
+                messageInflater.inflate(message);
+                body = messageInflater.buffer;
+                length = messageInflater.length;
+            }
+            if (gzip) {
+                frameInflater.inflate(body, 0, length);
+                length = frameInflater.length();
+            }
+            sink += length;
+        }
+        long clientNanos = System.nanoTime() - start;
+        messageInflater.inflater.end();
+        frameInflater.end();
+        if (sink == 0) {
+            throw new IllegalStateException();
+        }
+
+        if (print) {
+            int count = frames.size();
+            System.out.printf("%-20s %12d %7.1fx %16.1f %16.1f%n", mode, bytes / count,
+                    raw / (double) bytes, serverNanos / 1000.0 / count,
+                    clientNanos / 1000.0 / count);
+        }
+    }
+
+    /**
+     * Compresses a message the way permessage-deflate does: flushed, without the trailing
+     * empty block, and with the context kept for the next message.
+     */
+    private static byte[] deflateMessage(Deflater deflater, byte[] message) {
+        deflater.setInput(message);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(message.length / 2 + 64);
+        byte[] buffer = new byte[8192];
+        int length;
+        do {
+            length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            out.write(buffer, 0, length);
+        } while (length == buffer.length);
+        byte[] compressed = out.toByteArray();
+        return Arrays.copyOf(compressed, compressed.length - DEFLATE_TAIL.length);
+    }
+
+    /**
+     * Decompresses permessage-deflate messages with the context kept across them.
+     */
+    private static class MessageInflater {
+
+        private final Inflater inflater = new Inflater(true);
+        private byte[] buffer = new byte[8192];
+        private int length;
+
+        private void inflate(byte[] message) throws Exception {
+            byte[] input = Arrays.copyOf(message, message.length + DEFLATE_TAIL.length);
+            System.arraycopy(DEFLATE_TAIL, 0, input, message.length, DEFLATE_TAIL.length);
+            inflater.setInput(input);
+            length = 0;
+            while (!inflater.needsInput()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length += inflater.inflate(buffer, length, buffer.length - length);
+            }
+        }
+    }
+
+    private static byte[] gzip(byte[] frame) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(frame.length / 2 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(frame);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * @return version 2 binary data message bodies, one per logical timestamp
+     */
+    static List<byte[]> frames(int series, int frameCount) {
+        Random random = new Random(42);
+        long[] tsIds = new long[series];
+        double[] values = new double[series];
+        for (int i = 0; i < series; i++) {
+            tsIds[i] = random.nextLong();
+            values[i] = random.nextInt(1000);
+        }
+
+        List<byte[]> frames = new ArrayList<byte[]>(frameCount);
+        long timestamp = 1500000000000L;
+        for (int frame = 0; frame < frameCount; frame++) {
+            ByteBuffer buffer = ByteBuffer.allocate(8 + 8 + 4 + series * 17);
+            buffer.putLong(timestamp);
+            buffer.putLong(1000L);
+            buffer.putInt(series);
+            for (int i = 0; i < series; i++) {
+                boolean counter = i % 4 == 0;
+                buffer.put((byte) (counter ? 0x01 : 0x02));
+                buffer.putLong(tsIds[i]);
+                if (counter) {
+                    values[i] += random.nextInt(10);
+                    buffer.putLong((long) values[i]);
+                } else {
+                    values[i] += random.nextGaussian();
+                    buffer.putDouble(Math.round(values[i] * 100) / 100.0);
+                }
+            }
+            frames.add(buffer.array());
+            timestamp += 1000;
+        }
+        return frames;
+    }
+}
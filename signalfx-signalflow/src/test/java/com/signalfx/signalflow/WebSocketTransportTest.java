@@ -0,0 +1,332 @@
+package com.signalfx.signalflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.Test;
+
+import com.signalfx.signalflow.ChannelMessage.DataMessage;
+import com.signalfx.signalflow.WebSocketTransport.ChannelOverflowPolicy;
+
+public class WebSocketTransportTest {
+
+    @Test
+    public void shouldDecodeBinaryDataMessage() {
+        byte[] body = BinaryDataMessageBenchmark.frameBody(3);
+        DataMessage message = WebSocketTransport.TransportConnection
+                .decodeBinaryDataMessage((byte) 2, body);
+
+        assertEquals(1000L, message.getMaxDelayMs());
+        Map<String, Number> data = message.getData();
+        assertEquals(3, data.size());
+        // 0x1000000000000000 in unpadded url-safe base64
+        assertEquals(0L, data.get("EAAAAAAAAAA"));
+        assertEquals(0.5, data.get("EAAAAAAAAAE").doubleValue(), 0);
+        assertEquals(2L, data.get("EAAAAAAAAAI"));
+    }
+
+    @Test
+    public void shouldReuseInflaterAcrossCompressedFrames() throws Exception {
+        FrameInflater inflater = new FrameInflater(16);
+        for (int points : new int[] { 100, 3 }) {
+            byte[] compressed = gzip(BinaryDataMessageBenchmark.frameBody(points));
+            byte[] frame = new byte[compressed.length + 7];
+            System.arraycopy(compressed, 0, frame, 5, compressed.length);
+
+            inflater.inflate(frame, 5, compressed.length);
+            DataMessage message = WebSocketTransport.TransportConnection.decodeBinaryDataMessage(
+                    (byte) 2, inflater.buffer(), 0, inflater.length());
+            assertEquals(points, message.size());
+            assertEquals(2L, message.getLongValue(2));
+        }
+    }
+
+    @Test
+    public void shouldPassDecodedMessagesThrough() {
+        DataMessage message = WebSocketTransport.TransportConnection
+                .decodeBinaryDataMessage((byte) 2, BinaryDataMessageBenchmark.frameBody(1));
+        DecodedStreamMessage streamMessage = new DecodedStreamMessage(message);
+
+        assertEquals(StreamMessage.Kind.DATA, streamMessage.getKind());
+        assertSame(message, ChannelMessage.decodeStreamMessage(streamMessage));
+    }
+
+    @Test
+    public void shouldWakeConsumerAsSoonAsMessageArrives() throws Exception {
+        BlockingQueue<StreamMessage> queue = new LinkedBlockingQueue<StreamMessage>();
+        final WebSocketTransport.TransportEventStreamParser parser =
+                new WebSocketTransport.TransportEventStreamParser(queue);
+        final AtomicReference<Long> wokenAt = new AtomicReference<Long>();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                parser.next();
+                wokenAt.set(System.nanoTime());
+            }
+        });
+        consumer.start();
+        Thread.sleep(50);
+
+        long offeredAt = System.nanoTime();
+        queue.offer(new StreamMessage("data", null, "{}"));
+        consumer.join(1000);
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(wokenAt.get() - offeredAt) < 50);
+    }
+
+    @Test
+    public void shouldTimeOutAndWakeOnClose() throws Exception {
+        final WebSocketTransport.TransportEventStreamParser parser =
+                new WebSocketTransport.TransportEventStreamParser(
+                        new LinkedBlockingQueue<StreamMessage>());
+        assertNull(parser.poll(10, TimeUnit.MILLISECONDS));
+
+        final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    parser.next();
+                } catch (Throwable t) {
+                    thrown.set(t);
+                }
+            }
+        });
+        consumer.start();
+        Thread.sleep(50);
+        parser.close();
+        consumer.join(1000);
+
+        assertFalse(consumer.isAlive());
+        assertTrue(thrown.get() instanceof NoSuchElementException);
+    }
+
+    @Test
+    public void shouldCloseAndKeepInterruptFlagWhenInterrupted() {
+        WebSocketTransport.TransportEventStreamParser parser =
+                new WebSocketTransport.TransportEventStreamParser(
+                        new LinkedBlockingQueue<StreamMessage>());
+        Thread.currentThread().interrupt();
+        try {
+            parser.poll(1, TimeUnit.SECONDS);
+            fail("expected NoSuchElementException");
+        } catch (NoSuchElementException e) {
+            assertTrue(Thread.interrupted());
+            assertFalse(parser.hasNext());
+        }
+    }
+
+    @Test
+    public void shouldSuspendWhileChannelIsFull() {
+        final List<String> events = new ArrayList<String>();
+        WebSocketTransport.TransportConnection connection =
+                new WebSocketTransport.TransportConnection("token", 4,
+                        ChannelOverflowPolicy.BACKPRESSURE) {
+                    @Override
+                    protected void channelFull(WebSocketTransport.TransportChannel channel) {
+                        events.add("full");
+                    }
+
+                    @Override
+                    protected void channelDrained(WebSocketTransport.TransportChannel channel) {
+                        events.add("drained");
+                    }
+                };
+        WebSocketTransport.TransportChannel channel =
+                new WebSocketTransport.TransportChannel(connection);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(channel.offer(data(i)));
+        }
+        assertEquals(6, channel.getQueueDepth());
+        assertEquals(1, events.size());
+
+        for (int i = 0; i < 3; i++) {
+            channel.next();
+        }
+        assertEquals(1, events.size());
+        channel.next();
+        assertEquals(2, events.size());
+        assertEquals("drained", events.get(1));
+    }
+
+    @Test
+    public void shouldDropOldestDataWhenFull() {
+        WebSocketTransport.TransportChannel channel = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token", 2,
+                        ChannelOverflowPolicy.DROP_OLDEST_DATA));
+        channel.offer(new StreamMessage("control-message", null,
+                "{\"event\":\"JOB_START\",\"handle\":\"h\",\"timestampMs\":1}"));
+        for (int i = 0; i < 4; i++) {
+            channel.offer(data(i));
+        }
+
+        assertEquals(2, channel.getQueueDepth());
+        assertEquals(3, channel.getDroppedMessages());
+        channel.next();
+        assertEquals(3L, ((DataMessage) channel.next()).getLogicalTimestampMs());
+    }
+
+    @Test
+    public void shouldKeepArrivalOrderWhenDroppingData() {
+        WebSocketTransport.TransportChannel channel = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token", 3,
+                        ChannelOverflowPolicy.DROP_OLDEST_DATA));
+        channel.offer(data(0));
+        channel.offer(data(1));
+        channel.offer(new StreamMessage("control-message", null,
+                "{\"event\":\"JOB_START\",\"handle\":\"h\",\"timestampMs\":1}"));
+        channel.offer(data(2));
+
+        assertEquals(3, channel.getQueueDepth());
+        assertEquals(1, channel.getDroppedMessages());
+        assertEquals(1L, ((DataMessage) channel.next()).getLogicalTimestampMs());
+        assertEquals(ChannelMessage.Type.JOB_START, channel.next().getType());
+        assertEquals(2L, ((DataMessage) channel.next()).getLogicalTimestampMs());
+    }
+
+    @Test
+    public void shouldFailChannelWhenFull() {
+        WebSocketTransport.TransportChannel channel = new WebSocketTransport.TransportChannel(
+                new WebSocketTransport.TransportConnection("token", 2,
+                        ChannelOverflowPolicy.FAIL_CHANNEL));
+        assertTrue(channel.offer(data(0)));
+        assertTrue(channel.offer(data(1)));
+        assertFalse(channel.offer(data(2)));
+        assertFalse(channel.offer(data(3)));
+
+        try {
+            channel.next();
+            fail("expected SignalFlowException");
+        } catch (SignalFlowException e) {
+            assertTrue(e.getMessage().contains("capacity"));
+        }
+        assertEquals(2, channel.getDroppedMessages());
+    }
+
+    @Test
+    public void shouldDeregisterClosedChannels() {
+        WebSocketTransport.TransportConnection connection =
+                new WebSocketTransport.TransportConnection("token");
+        WebSocketTransport.TransportChannel first =
+                new WebSocketTransport.TransportChannel(connection);
+        new WebSocketTransport.TransportChannel(connection);
+        assertEquals(2, connection.getChannelCount());
+
+        first.close();
+        assertEquals(1, connection.getChannelCount());
+    }
+
+    @Test
+    public void shouldRouteBinaryFramesInOrderWhenDispatched() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            WebSocketTransport.TransportConnection connection =
+                    new WebSocketTransport.TransportConnection("token", 0,
+                            ChannelOverflowPolicy.BACKPRESSURE, executor);
+            WebSocketTransport.TransportChannel first =
+                    new WebSocketTransport.TransportChannel(connection);
+            WebSocketTransport.TransportChannel second =
+                    new WebSocketTransport.TransportChannel(connection);
+            for (long timestamp = 0; timestamp < 50; timestamp++) {
+                byte[] frame = binaryFrame(timestamp % 2 == 0 ? first : second, timestamp);
+                connection.onWebSocketBinary(frame, 0, frame.length);
+            }
+
+            for (long timestamp = 0; timestamp < 50; timestamp += 2) {
+                assertEquals(timestamp, ((DataMessage) first.poll(1, TimeUnit.SECONDS))
+                        .getLogicalTimestampMs());
+                assertEquals(timestamp + 1, ((DataMessage) second.poll(1, TimeUnit.SECONDS))
+                        .getLogicalTimestampMs());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldOfferPerMessageDeflateWhenEnabled() throws Exception {
+        final BlockingQueue<String> extensions = new LinkedBlockingQueue<String>();
+        Server server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) {
+                // Record the offer and refuse the upgrade.
+                String header = request.getHeader("Sec-WebSocket-Extensions");
+                extensions.add(header == null ? "" : header);
+                baseRequest.setHandled(true);
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            }
+        });
+        server.start();
+        try {
+            URI uri = server.getURI();
+            for (boolean enabled : new boolean[] { false, true }) {
+                try {
+                    new WebSocketTransport.TransportBuilder("token").setProtocol("ws")
+                            .setHost(uri.getHost()).setPort(uri.getPort())
+                            .usePerMessageDeflate(enabled).setInputBufferSize(16384)
+                            .setMessageBufferSize(65536).build();
+                    fail("expected the upgrade to be refused");
+                } catch (SignalFlowException expected) {
+                    // no WebSocket endpoint
+                }
+                String offered = extensions.poll(5, TimeUnit.SECONDS);
+                assertEquals(enabled, offered.contains("permessage-deflate"));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static byte[] binaryFrame(WebSocketTransport.TransportChannel channel,
+                                      long timestamp) {
+        byte[] body = BinaryDataMessageBenchmark.frameBody(1);
+        ByteBuffer.wrap(body).putLong(timestamp);
+        ByteBuffer frame = ByteBuffer.allocate(20 + body.length);
+        frame.put(new byte[] { 2, 0, 5, 0 }); // version 2, data message, no flags
+        for (char c : channel.getName().toCharArray()) {
+            frame.put((byte) c);
+        }
+        frame.put(body);
+        return frame.array();
+    }
+
+    private static byte[] gzip(byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static StreamMessage data(long timestamp) {
+        return new StreamMessage("data", null,
+                "{\"type\":\"data\",\"logicalTimestampMs\":" + timestamp + ",\"data\":[]}");
+    }
+}
@@ -0,0 +1,303 @@
+package com.signalfx.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.signalfx.endpoint.SignalFxEndpoint;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+
+/**
+ * <p>Local ingest endpoint, to load-test senders of datapoints and events without a real
+ * backend. It accepts {@code /v2/datapoint}, {@code /v2/event} and {@code /v1/backfill}
+ * requests with any token, decodes them and counts what they carry.</p>
+ *
+ * <p>Every request can be delayed by a fixed latency plus a random jitter, and failed at a
+ * given rate with a given status, to see how senders behave when the backend is slow or
+ * unavailable.</p>
+ *
+ * <pre>
+ * {@code
+ *  IngestSimulator simulator = new IngestSimulator.Builder()
+ *      .setLatencyMs(20)
+ *      .setErrorRate(0.01)
+ *      .build();
+ *  simulator.start();
+ *  SignalFxEndpoint endpoint = simulator.getEndpoint();
+ * }
+ * </pre>
+ */
+public class IngestSimulator implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(IngestSimulator.class);
+
+    public static final String DEFAULT_HOST = "127.0.0.1";
+    public static final int DEFAULT_ERROR_STATUS = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+
+    private final int latencyMs;
+    private final int latencyJitterMs;
+    private final double errorRate;
+    private final int errorStatus;
+    private final Server server;
+    private final ServerConnector connector;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong dataPoints = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong backfillPoints = new AtomicLong();
+
+    protected IngestSimulator(Builder builder) {
+        this.latencyMs = builder.latencyMs;
+        this.latencyJitterMs = builder.latencyJitterMs;
+        this.errorRate = builder.errorRate;
+        this.errorStatus = builder.errorStatus;
+
+        this.server = new Server();
+        this.connector = new ServerConnector(server);
+        this.connector.setHost(builder.host);
+        this.connector.setPort(builder.port);
+        this.server.addConnector(connector);
+        this.server.setHandler(new IngestHandler());
+    }
+
+    /**
+     * Starts accepting requests.
+     *
+     * @throws IOException if the simulator could not listen on its port
+     */
+    public void start() throws IOException {
+        try {
+            server.start();
+        } catch (Exception e) {
+            throw new IOException("Unable to start ingest simulator", e);
+        }
+        log.info("ingest simulator listening on {}", getURI());
+    }
+
+    /**
+     * @return Address the simulator listens on, once started
+     */
+    public URI getURI() {
+        return URI.create("http://" + connector.getHost() + ":" + connector.getLocalPort());
+    }
+
+    /**
+     * @return Endpoint for receiver factories sending to this simulator, once started
+     */
+    public SignalFxEndpoint getEndpoint() {
+        return new SignalFxEndpoint("http", connector.getHost(), connector.getLocalPort());
+    }
+
+    /**
+     * @return Number of requests received, including failed ones
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return Number of requests failed on purpose
+     */
+    public long getFailedRequestCount() {
+        return failedRequests.get();
+    }
+
+    /**
+     * @return Number of datapoints accepted on {@code /v2/datapoint}
+     */
+    public long getDataPointCount() {
+        return dataPoints.get();
+    }
+
+    /**
+     * @return Number of events accepted on {@code /v2/event}
+     */
+    public long getEventCount() {
+        return events.get();
+    }
+
+    /**
+     * @return Number of points accepted on {@code /v1/backfill}
+     */
+    public long getBackfillPointCount() {
+        return backfillPoints.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            server.stop();
+        } catch (Exception e) {
+            throw new IOException("Unable to stop ingest simulator", e);
+        }
+    }
+
+    private class IngestHandler extends AbstractHandler {
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request,
+                           HttpServletResponse response) throws IOException {
+            baseRequest.setHandled(true);
+            if (!"/v2/datapoint".equals(target) && !"/v2/event".equals(target)
+                    && !"/v1/backfill".equals(target)) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            if (!"POST".equals(request.getMethod())) {
+                response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+                return;
+            }
+            requests.incrementAndGet();
+
+            InputStream body = request.getInputStream();
+            if ("gzip".equalsIgnoreCase(request.getHeader("Content-Encoding"))) {
+                body = new GZIPInputStream(body);
+            }
+            long received;
+            try {
+                received = read(target, body);
+            } catch (InvalidProtocolBufferException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int delayMs = latencyMs + (latencyJitterMs > 0 ? random.nextInt(latencyJitterMs + 1)
+                    : 0);
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (errorRate > 0 && random.nextDouble() < errorRate) {
+                failedRequests.incrementAndGet();
+                response.setStatus(errorStatus);
+                response.setContentType("application/json");
+                response.getWriter().write("\"simulated failure\"");
+                return;
+            }
+
+            count(target).addAndGet(received);
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("application/json");
+            response.getWriter().write("\"OK\"");
+        }
+
+        /**
+         * @return number of datapoints, events or points in the request
+         */
+        private long read(String target, InputStream body) throws IOException {
+            if ("/v2/datapoint".equals(target)) {
+                return SignalFxProtocolBuffers.DataPointUploadMessage.parseFrom(body)
+                        .getDatapointsCount();
+            }
+            if ("/v2/event".equals(target)) {
+                return SignalFxProtocolBuffers.EventUploadMessage.parseFrom(body)
+                        .getEventsCount();
+            }
+            long points = 0;
+            while (SignalFxProtocolBuffers.PointValue.parseDelimitedFrom(body) != null) {
+                points++;
+            }
+            return points;
+        }
+
+        private AtomicLong count(String target) {
+            if ("/v2/datapoint".equals(target)) {
+                return dataPoints;
+            }
+            return "/v2/event".equals(target) ? events : backfillPoints;
+        }
+    }
+
+    /**
+     * Builder of simulator instances
+     */
+    public static class Builder {
+        private String host = DEFAULT_HOST;
+        private int port = 0;
+        private int latencyMs = 0;
+        private int latencyJitterMs = 0;
+        private double errorRate = 0;
+        private int errorStatus = DEFAULT_ERROR_STATUS;
+
+        public Builder setHost(String host) {
+            this.host = host;
+            return this;
+        }
+
+        /**
+         * @param port    Port to listen on; 0 picks a free port
+         * @return this
+         */
+        public Builder setPort(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * @param latencyMs    Time every request is held for before it is answered
+         * @return this
+         */
+        public Builder setLatencyMs(int latencyMs) {
+            this.latencyMs = latencyMs;
+            return this;
+        }
+
+        /**
+         * @param latencyJitterMs    Upper bound of a random delay added to the latency of each
+         *                           request
+         * @return this
+         */
+        public Builder setLatencyJitterMs(int latencyJitterMs) {
+            this.latencyJitterMs = latencyJitterMs;
+            return this;
+        }
+
+        /**
+         * @param errorRate    Fraction of requests to fail, between 0 and 1
+         * @return this
+         */
+        public Builder setErrorRate(double errorRate) {
+            this.errorRate = errorRate;
+            return this;
+        }
+
+        /**
+         * @param errorStatus    HTTP status of failed requests
+         * @return this
+         */
+        public Builder setErrorStatus(int errorStatus) {
+            this.errorStatus = errorStatus;
+            return this;
+        }
+
+        public IngestSimulator build() {
+            if (latencyMs < 0 || latencyJitterMs < 0) {
+                throw new IllegalArgumentException("latency must not be negative");
+            }
+            if (errorRate < 0 || errorRate > 1) {
+                throw new IllegalArgumentException("error rate must be between 0 and 1");
+            }
+            return new IngestSimulator(this);
+        }
+    }
+}
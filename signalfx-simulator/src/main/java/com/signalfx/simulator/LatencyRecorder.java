@@ -0,0 +1,104 @@
+package com.signalfx.simulator;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Lock-free histogram of latencies, for percentiles over a load test.</p>
+ *
+ * <p>Latencies are counted in log-linear buckets: each power of two is split in
+ * {@value #SUB_BUCKETS} buckets, so a percentile is within about 6% of the exact value whatever
+ * its magnitude, in a fixed amount of memory.</p>
+ */
+public class LatencyRecorder {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param latency    Latency to record; negative latencies, from clocks going back, count as 0
+     * @param unit       Unit of the latency
+     */
+    public void record(long latency, TimeUnit unit) {
+        long nanos = Math.max(0, unit.toNanos(latency));
+        buckets.incrementAndGet(bucketOf(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMean(TimeUnit unit) {
+        long recorded = count.get();
+        return recorded == 0 ? 0 : (double) total.get() / recorded / unit.toNanos(1);
+    }
+
+    public double getMax(TimeUnit unit) {
+        return (double) max.get() / unit.toNanos(1);
+    }
+
+    /**
+     * @param percentile    Percentile, between 0 and 100
+     * @param unit          Unit to return the latency in
+     * @return Upper bound of the bucket holding the given percentile, at most the largest
+     *         latency recorded; 0 if nothing was recorded
+     */
+    public double getPercentile(double percentile, TimeUnit unit) {
+        long recorded = count.get();
+        if (recorded == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * recorded));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return (double) Math.min(upperBoundOf(i), max.get()) / unit.toNanos(1);
+            }
+        }
+        return getMax(unit);
+    }
+
+    /**
+     * @return p50, p90, p99 and max, in milliseconds
+     */
+    @Override
+    public String toString() {
+        TimeUnit ms = TimeUnit.MILLISECONDS;
+        return String.format("p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                getPercentile(50, ms), getPercentile(90, ms), getPercentile(99, ms),
+                getMax(ms));
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+    }
+}
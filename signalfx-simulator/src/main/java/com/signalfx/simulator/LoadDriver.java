@@ -0,0 +1,362 @@
+package com.signalfx.simulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.signalfx.endpoint.SignalFxReceiverEndpoint;
+import com.signalfx.metrics.auth.StaticAuthToken;
+import com.signalfx.metrics.connection.HttpDataPointProtobufReceiverFactory;
+import com.signalfx.metrics.connection.HttpEventProtobufReceiverFactory;
+import com.signalfx.metrics.errorhandler.CountingOnSendErrorHandler;
+import com.signalfx.metrics.errorhandler.OnSendErrorHandler;
+import com.signalfx.metrics.flush.AggregateMetricSender;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers;
+import com.signalfx.signalflow.ChannelMessage;
+import com.signalfx.signalflow.ChannelMessage.DataMessage;
+import com.signalfx.signalflow.Computation;
+import com.signalfx.signalflow.ComputationSubscriber;
+import com.signalfx.signalflow.ComputationSubscription;
+import com.signalfx.signalflow.SignalFlowClient;
+import com.signalfx.signalflow.SignalFlowException;
+import com.signalfx.signalflow.WebSocketTransport;
+
+/**
+ * <p>Drives load through the clients and reports their end-to-end throughput and latency
+ * percentiles. It targets any endpoint, but is meant to run against a
+ * {@link SignalFlowSimulator} and an {@link IngestSimulator}.</p>
+ *
+ * <ul>
+ * <li>{@link #runComputations} executes computations and subscribes to them; the latency of a
+ * data message is the time between its logical timestamp and its delivery to the
+ * subscriber.</li>
+ * <li>{@link #runSender} sends datapoints and events from several threads, each with its own
+ * {@link AggregateMetricSender}; the latency of a session is the time it takes to close it,
+ * that is to send what it holds.</li>
+ * </ul>
+ *
+ * <p>{@link #main} runs both against simulators started in-process and logs their reports:
+ * {@code LoadDriver [seconds [computations [series [senderThreads]]]]}.</p>
+ */
+public class LoadDriver {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadDriver.class);
+
+    public static final String PROGRAM = "data('simulated.metric').publish()";
+    public static final int DEFAULT_COMPUTATIONS = 10;
+    public static final int DEFAULT_SENDER_THREADS = 4;
+    public static final int DEFAULT_DATAPOINTS_PER_SESSION = 100;
+    public static final long DEFAULT_DURATION_MS = 10000;
+
+    private static final int METRICS = 100;
+
+    private final String token;
+    private final int computations;
+    private final int senderThreads;
+    private final int datapointsPerSession;
+    private final int eventsPerSession;
+    private final long durationMs;
+
+    protected LoadDriver(Builder builder) {
+        this.token = builder.token;
+        this.computations = builder.computations;
+        this.senderThreads = builder.senderThreads;
+        this.datapointsPerSession = builder.datapointsPerSession;
+        this.eventsPerSession = builder.eventsPerSession;
+        this.durationMs = builder.durationMs;
+    }
+
+    /**
+     * Runs computations for the duration of the test, consuming their output through
+     * subscribers.
+     *
+     * @param transportBuilder    Builder of the transport of the client running the computations
+     * @return Data messages received and their latency; items are datapoints and errors are
+     *         computations that failed
+     * @throws InterruptedException if interrupted while the computations run
+     */
+    public Report runComputations(WebSocketTransport.TransportBuilder transportBuilder)
+            throws InterruptedException {
+        final LatencyRecorder latency = new LatencyRecorder();
+        final AtomicLong datapoints = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        List<Computation> running = new ArrayList<Computation>(computations);
+        SignalFlowClient client = new SignalFlowClient(transportBuilder.build());
+        long start = System.nanoTime();
+        long elapsed;
+        try {
+            for (int i = 0; i < computations; i++) {
+                Computation computation = client.execute(PROGRAM);
+                client.subscribe(computation, new ComputationSubscriber() {
+                    @Override
+                    public void onSubscribe(ComputationSubscription subscription) {
+                        subscription.request(Long.MAX_VALUE);
+                    }
+
+                    @Override
+                    public void onNext(ChannelMessage message) {
+                        if (message instanceof DataMessage) {
+                            DataMessage data = (DataMessage) message;
+                            latency.record(System.currentTimeMillis()
+                                    - data.getLogicalTimestampMs(), TimeUnit.MILLISECONDS);
+                            datapoints.addAndGet(data.size());
+                        }
+                    }
+
+                    @Override
+                    public void onError(RuntimeException error) {
+                        errors.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onComplete() {
+                    }
+                });
+                running.add(computation);
+            }
+            Thread.sleep(durationMs);
+        } finally {
+            elapsed = System.nanoTime() - start;
+            for (Computation computation : running) {
+                try {
+                    if (computation.getId() != null) {
+                        client.stop(computation, "load test finished");
+                    } else {
+                        computation.close();
+                    }
+                } catch (SignalFlowException e) {
+                    computation.close();
+                }
+            }
+            client.close();
+        }
+        return new Report("computations", latency.getCount(), datapoints.get(), errors.get(),
+                elapsed, latency);
+    }
+
+    /**
+     * Sends datapoints and events for the duration of the test.
+     *
+     * @param endpoint    Ingest endpoint to send to
+     * @return Sessions closed and their latency; items are datapoints and errors are those
+     *         reported to the senders' error handlers or thrown when closing sessions
+     * @throws InterruptedException if interrupted while the senders run
+     */
+    public Report runSender(final SignalFxReceiverEndpoint endpoint) throws InterruptedException {
+        final LatencyRecorder latency = new LatencyRecorder();
+        final AtomicLong datapoints = new AtomicLong();
+        final CountingOnSendErrorHandler errors = new CountingOnSendErrorHandler();
+        final AtomicLong failedSessions = new AtomicLong();
+        final AtomicLong deadline = new AtomicLong();
+
+        List<Thread> threads = new ArrayList<Thread>(senderThreads);
+        for (int i = 0; i < senderThreads; i++) {
+            // Senders are not thread-safe; each thread has its own.
+            final AggregateMetricSender sender = new AggregateMetricSender("load-driver",
+                    new HttpDataPointProtobufReceiverFactory(endpoint),
+                    new HttpEventProtobufReceiverFactory(endpoint),
+                    new StaticAuthToken(token),
+                    Collections.<OnSendErrorHandler>singletonList(errors));
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long value = 0;
+                    while (System.nanoTime() < deadline.get()) {
+                        AggregateMetricSender.Session session = sender.createSession();
+                        for (int p = 0; p < datapointsPerSession; p++) {
+                            session.setGauge("simulated.gauge." + (p % METRICS), value++);
+                        }
+                        for (int e = 0; e < eventsPerSession; e++) {
+                            session.setEvent(SignalFxProtocolBuffers.Event.newBuilder()
+                                    .setEventType("simulated.event")
+                                    .setCategory(SignalFxProtocolBuffers.EventCategory.USER_DEFINED)
+                                    .setTimestamp(System.currentTimeMillis())
+                                    .build());
+                        }
+                        long start = System.nanoTime();
+                        try {
+                            session.close();
+                        } catch (Exception e) {
+                            // Some receivers throw instead of reporting to the error handlers.
+                            failedSessions.incrementAndGet();
+                        }
+                        latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        datapoints.addAndGet(datapointsPerSession);
+                    }
+                }
+            }, "signalfx-load-driver-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+
+        long start = System.nanoTime();
+        deadline.set(start + TimeUnit.MILLISECONDS.toNanos(durationMs));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new Report("sender", latency.getCount(), datapoints.get(),
+                errors.getTotalErrorCount() + failedSessions.get(), System.nanoTime() - start,
+                latency);
+    }
+
+    /**
+     * Runs both scenarios against simulators started in-process and prints their reports.
+     *
+     * @param args    Optional duration in seconds, computations, series per computation and
+     *                sender threads
+     * @throws Exception if a simulator could not start or the run was interrupted
+     */
+    public static void main(String[] args) throws Exception {
+        long durationMs = args.length > 0 ? Long.parseLong(args[0]) * 1000 : DEFAULT_DURATION_MS;
+        int computations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_COMPUTATIONS;
+        int series = args.length > 2 ? Integer.parseInt(args[2])
+                : SignalFlowSimulator.DEFAULT_SERIES;
+        int senderThreads = args.length > 3 ? Integer.parseInt(args[3])
+                : DEFAULT_SENDER_THREADS;
+
+        LoadDriver driver = new Builder()
+                .setDurationMs(durationMs)
+                .setComputations(computations)
+                .setSenderThreads(senderThreads)
+                .build();
+        SignalFlowSimulator signalflow = new SignalFlowSimulator.Builder()
+                .setSeries(series)
+                .setResolutionMs(100)
+                .build();
+        IngestSimulator ingest = new IngestSimulator.Builder().build();
+        signalflow.start();
+        ingest.start();
+        try {
+            log.info("{}", driver.runComputations(signalflow.transportBuilder("token")));
+            log.info("{}", driver.runSender(ingest.getEndpoint()));
+        } finally {
+            signalflow.close();
+            ingest.close();
+        }
+    }
+
+    /**
+     * Outcome of a scenario.
+     */
+    public static class Report {
+        private final String scenario;
+        private final long operations;
+        private final long items;
+        private final long errors;
+        private final long elapsedNanos;
+        private final LatencyRecorder latency;
+
+        Report(String scenario, long operations, long items, long errors, long elapsedNanos,
+               LatencyRecorder latency) {
+            this.scenario = scenario;
+            this.operations = operations;
+            this.items = items;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+        }
+
+        public String getScenario() {
+            return scenario;
+        }
+
+        public long getOperations() {
+            return operations;
+        }
+
+        public long getItems() {
+            return items;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getElapsed(TimeUnit unit) {
+            return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return Operations per second
+         */
+        public double getThroughput() {
+            return operations * 1e9 / Math.max(1, elapsedNanos);
+        }
+
+        /**
+         * @return Items per second
+         */
+        public double getItemThroughput() {
+            return items * 1e9 / Math.max(1, elapsedNanos);
+        }
+
+        public LatencyRecorder getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d ops (%.1f/s), %d items (%.1f/s), %d errors, %s",
+                    scenario, operations, getThroughput(), items, getItemThroughput(), errors,
+                    latency);
+        }
+    }
+
+    /**
+     * Builder of load drivers
+     */
+    public static class Builder {
+        private String token = "token";
+        private int computations = DEFAULT_COMPUTATIONS;
+        private int senderThreads = DEFAULT_SENDER_THREADS;
+        private int datapointsPerSession = DEFAULT_DATAPOINTS_PER_SESSION;
+        private int eventsPerSession = 0;
+        private long durationMs = DEFAULT_DURATION_MS;
+
+        public Builder setToken(String token) {
+            this.token = token;
+            return this;
+        }
+
+        public Builder setComputations(int computations) {
+            this.computations = computations;
+            return this;
+        }
+
+        public Builder setSenderThreads(int senderThreads) {
+            this.senderThreads = senderThreads;
+            return this;
+        }
+
+        public Builder setDatapointsPerSession(int datapointsPerSession) {
+            this.datapointsPerSession = datapointsPerSession;
+            return this;
+        }
+
+        public Builder setEventsPerSession(int eventsPerSession) {
+            this.eventsPerSession = eventsPerSession;
+            return this;
+        }
+
+        /**
+         * @param durationMs    How long each scenario runs
+         * @return this
+         */
+        public Builder setDurationMs(long durationMs) {
+            this.durationMs = durationMs;
+            return this;
+        }
+
+        public LoadDriver build() {
+            return new LoadDriver(this);
+        }
+    }
+}
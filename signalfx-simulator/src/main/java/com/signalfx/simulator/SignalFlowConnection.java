@@ -0,0 +1,389 @@
+package com.signalfx.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.api.WebSocketException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.signalfx.signalflow.TsIds;
+
+/**
+ * Server side of one SignalFlow WebSocket connection of a {@link SignalFlowSimulator}: answers
+ * the client's requests and streams the output of the computations it starts.
+ */
+class SignalFlowConnection extends WebSocketAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(SignalFlowConnection.class);
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final byte DATA_MESSAGE_TYPE = 5;
+    private static final byte LONG_TYPE = 0x01;
+    private static final byte DOUBLE_TYPE = 0x02;
+    private static final byte COMPRESSED_FLAG = 1 << 0;
+    private static final int CHANNEL_NAME_LENGTH = 16;
+
+    /**
+     * Identifier of the first simulated timeseries; the others follow.
+     */
+    private static final long FIRST_TSID = 0x1A2B3C4D00000000L;
+
+    private final SignalFlowSimulator simulator;
+    private final int version;
+    private final Object sendLock = new Object();
+    private final ConcurrentMap<String, Stream> streams = new ConcurrentHashMap<String, Stream>();
+
+    SignalFlowConnection(SignalFlowSimulator simulator, int version) {
+        this.simulator = simulator;
+        this.version = version;
+    }
+
+    @Override
+    public void onWebSocketConnect(Session session) {
+        super.onWebSocketConnect(session);
+        simulator.connections.add(this);
+    }
+
+    @Override
+    public void onWebSocketText(String message) {
+        try {
+            onRequest(message);
+        } catch (IOException e) {
+            log.debug("closing connection after invalid request", e);
+            getSession().close(StatusCode.BAD_DATA, "invalid request");
+        }
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason) {
+        super.onWebSocketClose(statusCode, reason);
+        simulator.connections.remove(this);
+        for (Stream stream : streams.values()) {
+            stream.cancel();
+        }
+    }
+
+    /**
+     * Closes the connection with a closing handshake telling the client the server is going
+     * away.
+     */
+    void goAway() {
+        Session session = getSession();
+        if (session != null) {
+            session.close(StatusCode.SHUTDOWN, "simulator stopped");
+        }
+    }
+
+    int getStreamCount() {
+        return streams.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onRequest(String message) throws IOException {
+        Map<String, Object> request = objectMapper.readValue(message, Map.class);
+        String type = String.valueOf(request.get("type"));
+        String channel = (String) request.get("channel");
+        String handle = (String) request.get("handle");
+
+        if ("authenticate".equals(type)) {
+            Map<String, Object> response = new LinkedHashMap<String, Object>();
+            response.put("type", "authenticated");
+            response.put("userId", "simulator");
+            response.put("orgId", "simulator");
+            sendJson(response);
+        } else if ("execute".equals(type) || "attach".equals(type)) {
+            if (handle == null) {
+                handle = UUID.randomUUID().toString();
+            }
+            Stream stream = new Stream(channel, handle,
+                    parameter(request, "resolution", simulator.resolutionMs),
+                    parameter(request, "maxDelay", simulator.maxDelayMs),
+                    !"false".equals(request.get("compress")));
+            Stream previous = streams.put(channel, stream);
+            if (previous != null) {
+                previous.cancel();
+            }
+            simulator.handles.put(handle, stream);
+            stream.start();
+        } else if ("preflight".equals(type)) {
+            sendControl(channel, "STREAM_START", null);
+            sendControl(channel, "JOB_START", UUID.randomUUID().toString());
+            sendControl(channel, "END_OF_CHANNEL", null);
+        } else if ("stop".equals(type)) {
+            Stream stream = handle != null ? simulator.handles.get(handle) : null;
+            if (stream != null) {
+                stream.end();
+            }
+        } else if ("detach".equals(type)) {
+            Stream stream = channel != null ? streams.get(channel) : null;
+            if (stream != null) {
+                stream.end();
+            }
+        } else if (!"start".equals(type) && !"keepalive".equals(type)) {
+            Map<String, Object> error = new LinkedHashMap<String, Object>();
+            error.put("type", "error");
+            if (channel != null) {
+                error.put("channel", channel);
+            }
+            error.put("error", 400);
+            error.put("message", "unsupported request type " + type);
+            sendJson(error);
+        }
+    }
+
+    private static long parameter(Map<String, Object> request, String name, long defaultValue) {
+        Object value = request.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private void sendControl(String channel, String event, String handle) throws IOException {
+        Map<String, Object> message = new LinkedHashMap<String, Object>();
+        message.put("type", "control-message");
+        message.put("channel", channel);
+        message.put("event", event);
+        message.put("timestampMs", System.currentTimeMillis());
+        if (handle != null) {
+            message.put("handle", handle);
+        }
+        sendJson(message);
+    }
+
+    private void sendJson(Map<String, Object> message) throws IOException {
+        String text = objectMapper.writeValueAsString(message);
+        synchronized (sendLock) {
+            try {
+                remote().sendString(text);
+            } catch (WebSocketException e) {
+                throw new IOException("failed to send message", e);
+            }
+        }
+    }
+
+    /**
+     * Sends a binary message, waiting for it to be written. Jetty does not allow blocking sends
+     * from several threads at once, so messages from the reading thread and from the streams
+     * are sent one at a time.
+     */
+    private void sendBinary(byte[] payload) throws IOException {
+        synchronized (sendLock) {
+            try {
+                remote().sendBytes(ByteBuffer.wrap(payload));
+            } catch (WebSocketException e) {
+                throw new IOException("failed to send message", e);
+            }
+        }
+    }
+
+    private RemoteEndpoint remote() throws IOException {
+        Session session = getSession();
+        if (session == null || !session.isOpen()) {
+            throw new IOException("connection closed");
+        }
+        return session.getRemote();
+    }
+
+    /**
+     * Closes the connection without a closing handshake, after it failed.
+     */
+    private void disconnect() {
+        Session session = getSession();
+        if (session == null) {
+            return;
+        }
+        try {
+            session.disconnect();
+        } catch (IOException e) {
+            log.debug("failed to disconnect", e);
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 32);
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(data);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Output of one computation, sent every resolution on the simulator's stream threads.
+     */
+    final class Stream implements Runnable {
+
+        private final String channel;
+        private final String handle;
+        private final long resolutionMs;
+        private final long maxDelayMs;
+        private final boolean compress;
+        private final byte[] channelName;
+
+        private ScheduledFuture<?> future;
+        private boolean ended;
+        private long ticks;
+        private long lastTimestampMs;
+
+        private Stream(String channel, String handle, long resolutionMs, long maxDelayMs,
+                       boolean compress) {
+            this.channel = channel;
+            this.handle = handle;
+            this.resolutionMs = Math.max(1, resolutionMs);
+            this.maxDelayMs = maxDelayMs;
+            this.compress = compress;
+            this.channelName = new byte[CHANNEL_NAME_LENGTH];
+            byte[] name = channel.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(name, 0, channelName, 0, Math.min(name.length, channelName.length));
+        }
+
+        private synchronized void start() throws IOException {
+            sendControl(channel, "STREAM_START", null);
+            sendControl(channel, "JOB_START", handle);
+            future = simulator.streams.scheduleAtFixedRate(this, 0, resolutionMs,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public synchronized void run() {
+            if (ended) {
+                return;
+            }
+            try {
+                if (ticks == 0) {
+                    sendMetadata();
+                }
+                long timestampMs = Math.max(System.currentTimeMillis(), lastTimestampMs + 1);
+                lastTimestampMs = timestampMs;
+                int batches = simulator.batchesPerTimestamp;
+                int series = simulator.series;
+                for (int batch = 0; batch < batches; batch++) {
+                    int from = (int) ((long) batch * series / batches);
+                    int to = (int) ((long) (batch + 1) * series / batches);
+                    sendBinary(dataFrame(timestampMs, from, to));
+                    simulator.dataFrames.incrementAndGet();
+                    simulator.datapoints.addAndGet(to - from);
+                }
+                if (ticks == 0) {
+                    // As the service does, announce the resolution once the first timestamp is
+                    // complete; clients take it as the end of the first batch.
+                    sendResolution(timestampMs);
+                }
+                ticks++;
+            } catch (IOException e) {
+                log.debug("closing connection after failing to stream {}", channel, e);
+                cancel();
+                disconnect();
+            }
+        }
+
+        /**
+         * Stops the stream and tells the client its channel ended.
+         */
+        private synchronized void end() throws IOException {
+            if (ended) {
+                return;
+            }
+            cancel();
+            sendControl(channel, "END_OF_CHANNEL", null);
+        }
+
+        private synchronized void cancel() {
+            ended = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+            streams.remove(channel, this);
+            simulator.handles.remove(handle, this);
+        }
+
+        private void sendMetadata() throws IOException {
+            for (int i = 0; i < simulator.series; i++) {
+                Map<String, Object> properties = new LinkedHashMap<String, Object>();
+                properties.put("sf_metric", "simulated.metric");
+                properties.put("sf_key", Collections.singletonList("host"));
+                properties.put("host", "host-" + i);
+                Map<String, Object> message = new LinkedHashMap<String, Object>();
+                message.put("type", "metadata");
+                message.put("channel", channel);
+                message.put("tsId", TsIds.toString(FIRST_TSID + i));
+                message.put("properties", properties);
+                sendJson(message);
+            }
+        }
+
+        private void sendResolution(long timestampMs) throws IOException {
+            Map<String, Object> contents = new LinkedHashMap<String, Object>();
+            contents.put("resolutionMs", resolutionMs);
+            Map<String, Object> info = new LinkedHashMap<String, Object>();
+            info.put("messageCode", "JOB_RUNNING_RESOLUTION");
+            info.put("messageLevel", "INFO");
+            info.put("timestampMs", System.currentTimeMillis());
+            info.put("contents", contents);
+            Map<String, Object> message = new LinkedHashMap<String, Object>();
+            message.put("type", "message");
+            message.put("channel", channel);
+            message.put("logicalTimestampMs", timestampMs);
+            message.put("message", info);
+            sendJson(message);
+        }
+
+        /**
+         * Encodes the values of series {@code from} (inclusive) to {@code to} (exclusive) as a
+         * binary data frame. Even series are longs and odd series doubles.
+         */
+        private byte[] dataFrame(long timestampMs, int from, int to) throws IOException {
+            int count = to - from;
+            ByteBuffer body = ByteBuffer.allocate((version == 2 ? 20 : 12) + count * 17);
+            body.putLong(timestampMs);
+            if (version == 2) {
+                body.putLong(maxDelayMs);
+            }
+            body.putInt(count);
+            for (int i = from; i < to; i++) {
+                if (i % 2 == 0) {
+                    body.put(LONG_TYPE).putLong(FIRST_TSID + i).putLong(ticks + i);
+                } else {
+                    body.put(DOUBLE_TYPE).putLong(FIRST_TSID + i).putDouble(ticks + i + 0.5);
+                }
+            }
+
+            byte[] payload = body.array();
+            byte flags = 0;
+            if (compress) {
+                payload = gzip(payload);
+                flags |= COMPRESSED_FLAG;
+            }
+            ByteBuffer frame = ByteBuffer.allocate(4 + CHANNEL_NAME_LENGTH + payload.length);
+            if (version == 2) {
+                frame.put((byte) 2).put((byte) 0).put(DATA_MESSAGE_TYPE).put(flags);
+            } else {
+                frame.put((byte) 1).put(DATA_MESSAGE_TYPE).put(flags).put((byte) 0);
+            }
+            frame.put(channelName).put(payload);
+            return frame.array();
+        }
+    }
+}
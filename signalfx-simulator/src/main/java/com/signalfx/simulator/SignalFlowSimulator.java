@@ -0,0 +1,312 @@
+package com.signalfx.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.websocket.server.WebSocketHandler;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
+import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.signalfx.signalflow.WebSocketTransport;
+
+/**
+ * <p>Local SignalFlow endpoint, to load-test consumers of computations without a real backend.
+ * It serves the WebSocket API on {@code /v1/signalflow/connect} and
+ * {@code /v2/signalflow/connect} and accepts any token.</p>
+ *
+ * <p>Every computation executed or attached to streams the same synthetic output, whatever its
+ * program: a {@code STREAM_START} and a {@code JOB_START} message, metadata for each of its
+ * timeseries, then one binary data frame per batch every resolution, in the encoding version of
+ * the connection (gzipped if the request asks for compression). Logical timestamps are the time
+ * the frames are generated, so a consumer can measure its end-to-end latency from them. The
+ * stream ends when the computation is stopped or detached, or when the connection closes.</p>
+ *
+ * <pre>
+ * {@code
+ *  SignalFlowSimulator simulator = new SignalFlowSimulator.Builder()
+ *      .setSeries(1000)
+ *      .setResolutionMs(100)
+ *      .build();
+ *  simulator.start();
+ *  SignalFlowClient client = new SignalFlowClient(simulator.transportBuilder("token").build());
+ * }
+ * </pre>
+ */
+public class SignalFlowSimulator implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(SignalFlowSimulator.class);
+
+    public static final String DEFAULT_HOST = "127.0.0.1";
+    public static final int DEFAULT_SERIES = 100;
+    public static final long DEFAULT_RESOLUTION_MS = 1000;
+    public static final int DEFAULT_STREAM_THREADS = 2;
+
+    final int series;
+    final int batchesPerTimestamp;
+    final long resolutionMs;
+    final long maxDelayMs;
+    final ScheduledExecutorService streams;
+
+    final Set<SignalFlowConnection> connections =
+            ConcurrentHashMap.<SignalFlowConnection>newKeySet();
+    final ConcurrentMap<String, SignalFlowConnection.Stream> handles =
+            new ConcurrentHashMap<String, SignalFlowConnection.Stream>();
+    final AtomicLong dataFrames = new AtomicLong();
+    final AtomicLong datapoints = new AtomicLong();
+
+    private final Server server;
+    private final ServerConnector connector;
+
+    protected SignalFlowSimulator(Builder builder) {
+        this.series = builder.series;
+        this.batchesPerTimestamp = builder.batchesPerTimestamp;
+        this.resolutionMs = builder.resolutionMs;
+        this.maxDelayMs = builder.maxDelayMs;
+
+        this.server = new Server();
+        this.connector = new ServerConnector(server);
+        this.connector.setHost(builder.host);
+        this.connector.setPort(builder.port);
+        this.server.addConnector(connector);
+        this.server.setHandler(new ConnectHandler());
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.streams = Executors.newScheduledThreadPool(builder.streamThreads,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                "signalfx-simulator-stream-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Starts accepting connections.
+     *
+     * @throws IOException if the simulator could not listen on its port
+     */
+    public void start() throws IOException {
+        try {
+            server.start();
+        } catch (Exception e) {
+            throw new IOException("Unable to start SignalFlow simulator", e);
+        }
+        log.info("SignalFlow simulator listening on {}", getURI());
+    }
+
+    /**
+     * @return Address the simulator listens on, once started
+     */
+    public URI getURI() {
+        return URI.create("ws://" + connector.getHost() + ":" + connector.getLocalPort());
+    }
+
+    /**
+     * @param token    Token to authenticate with; any token is accepted
+     * @return Builder of transports connecting to this simulator
+     */
+    public WebSocketTransport.TransportBuilder transportBuilder(String token) {
+        return new WebSocketTransport.TransportBuilder(token).setProtocol("ws")
+                .setHost(connector.getHost()).setPort(connector.getLocalPort());
+    }
+
+    /**
+     * @return Number of open connections
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * @return Number of computations currently streaming
+     */
+    public int getStreamCount() {
+        int count = 0;
+        for (SignalFlowConnection connection : connections) {
+            count += connection.getStreamCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of binary data frames sent since the simulator started
+     */
+    public long getDataFrameCount() {
+        return dataFrames.get();
+    }
+
+    /**
+     * @return Number of datapoints sent in data frames since the simulator started
+     */
+    public long getDataPointCount() {
+        return datapoints.get();
+    }
+
+    /**
+     * Stops every stream and closes every connection.
+     */
+    @Override
+    public void close() throws IOException {
+        streams.shutdownNow();
+        for (SignalFlowConnection connection : connections) {
+            connection.goAway();
+        }
+        try {
+            server.stop();
+        } catch (Exception e) {
+            throw new IOException("Unable to stop SignalFlow simulator", e);
+        }
+    }
+
+    private static int version(String path) {
+        if ("/v1/signalflow/connect".equals(path)) {
+            return 1;
+        } else if ("/v2/signalflow/connect".equals(path)) {
+            return 2;
+        }
+        return 0;
+    }
+
+    /**
+     * Accepts WebSocket upgrades on the connect paths and hands each connection over to a
+     * {@link SignalFlowConnection}.
+     */
+    private class ConnectHandler extends WebSocketHandler {
+        @Override
+        public void configure(WebSocketServletFactory factory) {
+            // Connections stay open while idle, as clients only send keepalives every few
+            // minutes.
+            factory.getPolicy().setIdleTimeout(0);
+            // Data frames are gzipped by the protocol itself.
+            factory.getExtensionFactory().unregister("permessage-deflate");
+            factory.setCreator(new WebSocketCreator() {
+                @Override
+                public Object createWebSocket(ServletUpgradeRequest request,
+                                              ServletUpgradeResponse response) {
+                    return new SignalFlowConnection(SignalFlowSimulator.this,
+                            version(request.getRequestURI().getPath()));
+                }
+            });
+        }
+
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request,
+                           HttpServletResponse response) throws IOException, ServletException {
+            if (version(target) == 0) {
+                baseRequest.setHandled(true);
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            super.handle(target, baseRequest, request, response);
+        }
+    }
+
+    /**
+     * Builder of simulator instances
+     */
+    public static class Builder {
+        private String host = DEFAULT_HOST;
+        private int port = 0;
+        private int series = DEFAULT_SERIES;
+        private int batchesPerTimestamp = 1;
+        private long resolutionMs = DEFAULT_RESOLUTION_MS;
+        private long maxDelayMs = 0;
+        private int streamThreads = DEFAULT_STREAM_THREADS;
+
+        public Builder setHost(String host) {
+            this.host = host;
+            return this;
+        }
+
+        /**
+         * @param port    Port to listen on; 0 picks a free port
+         * @return this
+         */
+        public Builder setPort(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * @param series    Number of timeseries each computation outputs
+         * @return this
+         */
+        public Builder setSeries(int series) {
+            this.series = series;
+            return this;
+        }
+
+        /**
+         * @param batchesPerTimestamp    Number of data frames the timeseries of each logical
+         *                               timestamp are split in
+         * @return this
+         */
+        public Builder setBatchesPerTimestamp(int batchesPerTimestamp) {
+            this.batchesPerTimestamp = batchesPerTimestamp;
+            return this;
+        }
+
+        /**
+         * @param resolutionMs    Interval between logical timestamps, unless a computation asks
+         *                        for another resolution
+         * @return this
+         */
+        public Builder setResolutionMs(long resolutionMs) {
+            this.resolutionMs = resolutionMs;
+            return this;
+        }
+
+        /**
+         * @param maxDelayMs    Max delay carried by version 2 data frames, unless a computation
+         *                      asks for another one
+         * @return this
+         */
+        public Builder setMaxDelayMs(long maxDelayMs) {
+            this.maxDelayMs = maxDelayMs;
+            return this;
+        }
+
+        /**
+         * @param streamThreads    Threads generating and sending the data frames of all streams
+         * @return this
+         */
+        public Builder setStreamThreads(int streamThreads) {
+            this.streamThreads = streamThreads;
+            return this;
+        }
+
+        public SignalFlowSimulator build() {
+            if (series < 1 || batchesPerTimestamp < 1 || batchesPerTimestamp > series) {
+                throw new IllegalArgumentException(
+                        "need at least one series and between 1 and series batches");
+            }
+            if (resolutionMs < 1) {
+                throw new IllegalArgumentException("resolution must be at least 1ms");
+            }
+            return new SignalFlowSimulator(this);
+        }
+    }
+}
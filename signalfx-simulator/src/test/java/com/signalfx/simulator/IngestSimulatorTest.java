@@ -0,0 +1,84 @@
+package com.signalfx.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.signalfx.metrics.SignalFxMetricsException;
+import com.signalfx.metrics.connection.DataPointReceiver;
+import com.signalfx.metrics.connection.HttpDataPointProtobufReceiverFactory;
+import com.signalfx.metrics.connection.HttpEventProtobufReceiverFactory;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.DataPoint;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.Datum;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.Event;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.MetricType;
+import com.signalfx.metrics.protobuf.SignalFxProtocolBuffers.PointValue;
+
+public class IngestSimulatorTest {
+
+    private IngestSimulator simulator;
+
+    @After
+    public void tearDown() throws Exception {
+        simulator.close();
+    }
+
+    @Test
+    public void testCountsWhatRequestsCarry() throws Exception {
+        simulator = new IngestSimulator.Builder().build();
+        simulator.start();
+
+        DataPointReceiver receiver = new HttpDataPointProtobufReceiverFactory(
+                simulator.getEndpoint()).createDataPointReceiver();
+        receiver.addDataPoints("token", Arrays.asList(point("a", 1), point("b", 2)));
+        receiver.backfillDataPoints("token", "a", "gauge", "org",
+                Collections.<String, String>emptyMap(), Arrays.asList(
+                        PointValue.newBuilder().setTimestamp(1)
+                                .setValue(Datum.newBuilder().setIntValue(1)).build(),
+                        PointValue.newBuilder().setTimestamp(2)
+                                .setValue(Datum.newBuilder().setIntValue(2)).build(),
+                        PointValue.newBuilder().setTimestamp(3)
+                                .setValue(Datum.newBuilder().setIntValue(3)).build()));
+        new HttpEventProtobufReceiverFactory(simulator.getEndpoint()).createEventReceiver()
+                .addEvents("token", Collections.singletonList(
+                        Event.newBuilder().setEventType("deploy").build()));
+
+        assertEquals(3, simulator.getRequestCount());
+        assertEquals(2, simulator.getDataPointCount());
+        assertEquals(3, simulator.getBackfillPointCount());
+        assertEquals(1, simulator.getEventCount());
+    }
+
+    @Test
+    public void testInjectsLatencyAndErrors() throws Exception {
+        simulator = new IngestSimulator.Builder()
+                .setLatencyMs(50)
+                .setErrorRate(1)
+                .build();
+        simulator.start();
+
+        DataPointReceiver receiver = new HttpDataPointProtobufReceiverFactory(
+                simulator.getEndpoint()).createDataPointReceiver();
+        long start = System.nanoTime();
+        try {
+            receiver.addDataPoints("token", Collections.singletonList(point("a", 1)));
+            fail("expected the request to fail");
+        } catch (SignalFxMetricsException expected) {
+            // 503
+        }
+        assertTrue(System.nanoTime() - start >= 50000000L);
+        assertEquals(1, simulator.getFailedRequestCount());
+        assertEquals(0, simulator.getDataPointCount());
+    }
+
+    private static DataPoint point(String metric, long value) {
+        return DataPoint.newBuilder().setMetric(metric).setMetricType(MetricType.GAUGE)
+                .setValue(Datum.newBuilder().setIntValue(value)).build();
+    }
+}
@@ -0,0 +1,71 @@
+package com.signalfx.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LoadDriverTest {
+
+    @Test
+    public void testReportsComputationThroughputAndLatency() throws Exception {
+        SignalFlowSimulator simulator = new SignalFlowSimulator.Builder()
+                .setSeries(50)
+                .setResolutionMs(10)
+                .build();
+        simulator.start();
+        try {
+            LoadDriver.Report report = new LoadDriver.Builder()
+                    .setComputations(3)
+                    .setDurationMs(500)
+                    .build()
+                    .runComputations(simulator.transportBuilder("token"));
+            assertEquals(0, report.getErrors());
+            assertTrue(report.getOperations() > 0);
+            assertEquals(report.getOperations() * 50, report.getItems());
+            assertTrue(report.getThroughput() > 0);
+            assertTrue(report.getLatency().getPercentile(99, TimeUnit.MILLISECONDS)
+                    <= report.getLatency().getMax(TimeUnit.MILLISECONDS));
+        } finally {
+            simulator.close();
+        }
+    }
+
+    @Test
+    public void testReportsSenderErrors() throws Exception {
+        IngestSimulator simulator = new IngestSimulator.Builder()
+                .setErrorRate(1)
+                .build();
+        simulator.start();
+        try {
+            LoadDriver.Report report = new LoadDriver.Builder()
+                    .setSenderThreads(2)
+                    .setDatapointsPerSession(10)
+                    .setEventsPerSession(1)
+                    .setDurationMs(200)
+                    .build()
+                    .runSender(simulator.getEndpoint());
+            assertTrue(report.getOperations() > 0);
+            // Datapoints and events of every session fail.
+            assertEquals(report.getOperations() * 2, report.getErrors());
+            assertEquals(0, simulator.getDataPointCount());
+        } finally {
+            simulator.close();
+        }
+    }
+
+    @Test
+    public void testPercentilesAreWithinBucketPrecision() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        for (int i = 1; i <= 1000; i++) {
+            recorder.record(i, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(1000, recorder.getCount());
+        assertEquals(500, recorder.getPercentile(50, TimeUnit.MILLISECONDS), 500 / 16.0);
+        assertEquals(990, recorder.getPercentile(99, TimeUnit.MILLISECONDS), 990 / 16.0);
+        assertEquals(1000, recorder.getPercentile(100, TimeUnit.MILLISECONDS), 0.001);
+        assertEquals(500.5, recorder.getMean(TimeUnit.MILLISECONDS), 0.001);
+    }
+}
@@ -0,0 +1,97 @@
+package com.signalfx.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.signalfx.signalflow.ChannelMessage;
+import com.signalfx.signalflow.ChannelMessage.DataMessage;
+import com.signalfx.signalflow.Computation;
+import com.signalfx.signalflow.SignalFlowClient;
+import com.signalfx.signalflow.WebSocketTransport;
+
+public class SignalFlowSimulatorTest {
+
+    private SignalFlowSimulator simulator;
+    private SignalFlowClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new SignalFlowSimulator.Builder()
+                .setSeries(10)
+                .setBatchesPerTimestamp(2)
+                .setResolutionMs(20)
+                .build();
+        simulator.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+        simulator.close();
+    }
+
+    @Test
+    public void testStreamsBatchedDataFrames() throws Exception {
+        assertStreams(simulator.transportBuilder("token"));
+    }
+
+    @Test
+    public void testStreamsUncompressedVersion1Frames() throws Exception {
+        assertStreams(simulator.transportBuilder("token").setAPIVersion(1)
+                .useCompression(false));
+    }
+
+    @Test
+    public void testStopEndsStream() throws Exception {
+        client = new SignalFlowClient(simulator.transportBuilder("token").build());
+        Computation computation = client.execute("data('cpu').publish()");
+        nextData(computation);
+        assertEquals(1, simulator.getStreamCount());
+
+        client.stop(computation, "done");
+        long deadline = System.currentTimeMillis() + 1000;
+        while (simulator.getStreamCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, simulator.getStreamCount());
+    }
+
+    private void assertStreams(WebSocketTransport.TransportBuilder transportBuilder) {
+        client = new SignalFlowClient(transportBuilder.build());
+        Computation computation = client.execute("data('cpu').publish()");
+        List<DataMessage> data = new ArrayList<DataMessage>();
+        for (int i = 0; i < 3; i++) {
+            data.add(nextData(computation));
+        }
+
+        assertEquals(10, computation.getKnownTSIDs().size());
+        for (int i = 0; i < data.size(); i++) {
+            // Both batches of each timestamp are merged back into one message.
+            assertEquals(10, data.get(i).size());
+            if (i > 0) {
+                assertTrue(data.get(i).getLogicalTimestampMs()
+                        > data.get(i - 1).getLogicalTimestampMs());
+            }
+        }
+        assertEquals(20, computation.getResolution());
+        assertEquals(1, simulator.getConnectionCount());
+    }
+
+    private static DataMessage nextData(Computation computation) {
+        while (true) {
+            ChannelMessage message = computation.next();
+            if (message instanceof DataMessage) {
+                return (DataMessage) message;
+            }
+        }
+    }
+}